@@ -60,6 +60,16 @@ EggBus eggBus;
 MPL3115A2 myPressure;
 /////////////////////////////////////////////////////////////////
 
+// Request id to send with the next sensor data (READ_SENSOR_WITH_ID), -1 if none
+int replyId = -1;
+
+///////////////////////// HEARTBEAT //////////////////////////////
+#define MISSED_HEARTBEATS 3
+unsigned long lastCommandTime = 0; // millis() when the last command arrived
+unsigned long phoneTimeout = 0;    // Milliseconds without commands to fall back (0 until the first HEARTBEAT)
+boolean isPhoneLost = false;
+//////////////////////////////////////////////////////////////////
+
 void intHandler() {
   timeNow = micros();
 
@@ -144,17 +154,49 @@ void setup() {
   mode = MANUAL;
 }
 
-void sendSensorData(byte sensor, float value) {
-  bufferO[0] = sensor;
+// Tag the reply with the request id (if any). Returns the bytes used in bufferO
+int writeReplyId() {
+  if (replyId < 0) { return 0; }
 
-  // float to bytes (4)
+  bufferO[0] = DATA_ID;
+  bufferO[1] = replyId;
+  replyId = -1;
+  return 2;
+}
+
+// float to bytes (4), HSB first
+void writeFloat(int position, float value) {
   byte *bytePointer = (byte*) &value;
-  bufferO[4] = *(bytePointer    );
-  bufferO[3] = *(bytePointer + 1);
-  bufferO[2] = *(bytePointer + 2);
-  bufferO[1] = *(bytePointer + 3);
+  bufferO[position + 3] = *(bytePointer    );
+  bufferO[position + 2] = *(bytePointer + 1);
+  bufferO[position + 1] = *(bytePointer + 2);
+  bufferO[position    ] = *(bytePointer + 3);
+}
 
-  acc.write(bufferO, 5);
+void sendSensorData(byte sensor, float value) {
+  int len = writeReplyId();
+
+  bufferO[len] = sensor;
+  writeFloat(len + 1, value);
+
+  acc.write(bufferO, len + 5);
+}
+
+void sendHeartbeat() {
+  bufferO[0] = DATA_HEARTBEAT;
+  acc.write(bufferO, 1);
+}
+
+// temperature, humidity, NO2, CO and altitude in a single frame
+void sendAllSensorData(float values[5]) {
+  int len = writeReplyId();
+
+  bufferO[len] = DATA_ALL_SENSORS;
+  for (int i = 0; i < 5; i++) {
+    writeFloat(len + 1 + 4*i, values[i]);
+  }
+
+  acc.write(bufferO, len + 21);
 }
 
 void setPPMChannel(int channel, int value) {
@@ -169,8 +211,88 @@ void setPPMChannel(int channel, int value) {
   ppm[channel-1] = value;
 }
 
-void attendCommand(byte command, int value) {
+// Set all channels from a SET_ALL_CHANNELS command (values start at 'data', 2 bytes each, HSB first)
+// Copied with interrupts off: the ISR never reads a half written value, and a PPM frame in
+// progress takes the new values from its next channel on (the next frame has all of them)
+void setPPMChannels(byte *data) {
+  int values[chanel_number];
+
+  // Same rules as setPPMChannel
+  for (int i = 0; i < chanel_number; i++) {
+    int value = data[2*i];
+    value = value << 8;          // HSB read
+    value = value + data[2*i+1]; // LSB read
+
+    if (value < CH_MIN || value > CH_MAX) {
+      value = ppm[i]; // Rejected, keep the old value
+    }
+    if (i+1 == CH_THROTTLE && value < THROTTLE_MIN) {
+      value = THROTTLE_MIN;
+    }
+    values[i] = value;
+  }
+
+  cli();
+  memcpy(ppm, values, sizeof(ppm));
+  sei();
+}
+
+// Length of a command (including the command byte) or -1 if unknown
+int commandLength(byte command) {
+  switch(command) {
+  case READ_SENSOR_TEMPERATURE:
+  case READ_SENSOR_HUMIDITY:
+  case READ_SENSOR_NO2:
+  case READ_SENSOR_CO:
+  case READ_SENSOR_ALTITUDE:
+  case READ_ALL_SENSORS:
+  case SET_MODE_ALTHOLD:
+  case SET_MODE_LOITTER:
+  case SET_MODE_AUTO:
+  case SET_MODE_RTL:
+  case SET_MODE_STB:
+    return 1;
+
+  case SET_CH1:
+  case SET_CH2:
+  case SET_CH3:
+  case SET_CH4:
+  case SET_CH5:
+  case SET_CH6:
+  case SET_CH7:
+  case SET_CH8:
+  case READ_SENSOR_WITH_ID:
+  case HEARTBEAT:
+    return 3;
+
+  case SET_ALL_CHANNELS:
+    return 1 + 2*chanel_number;
+
+  default:
+    return -1;
+  }
+}
+
+// Commands that can go in a READ_SENSOR_WITH_ID
+boolean isSensorRead(byte command) {
+  switch(command) {
+  case READ_SENSOR_TEMPERATURE:
+  case READ_SENSOR_HUMIDITY:
+  case READ_SENSOR_NO2:
+  case READ_SENSOR_CO:
+  case READ_SENSOR_ALTITUDE:
+  case READ_ALL_SENSORS:
+    return true;
+
+  default:
+    return false;
+  }
+}
+
+// 'data' points to the bytes after the command (for commands longer than 3 bytes)
+void attendCommand(byte command, int value, byte *data) {
   float sensorData;
+  float sensorValues[5];
   int ch;
 
   switch(command) {
@@ -217,6 +339,43 @@ void attendCommand(byte command, int value) {
     sendSensorData(DATA_SENSOR_ALTITUDE, sensorData);
     break;
 
+  case READ_ALL_SENSORS:
+    // All of them in one pass (same instant, one EggBus enumeration)
+    sensorValues[0] = dht.readTemperature();
+    sensorValues[1] = dht.readHumidity();
+
+    eggBus.init();
+    if(eggBus.next()!=0) {
+      sensorValues[2] = eggBus.getSensorValue(0); // NO2
+      sensorValues[3] = eggBus.getSensorValue(1); // CO
+    } else {
+      sensorValues[2] = -1;
+      sensorValues[3] = -1;
+    }
+
+    sensorValues[4] = myPressure.readAltitude();
+
+    sendAllSensorData(sensorValues);
+    break;
+
+  case READ_SENSOR_WITH_ID:
+    // value: READ_SENSOR_X (HSB) and request id (LSB)
+    // Only sensor reads (anything else may need data we don't have)
+    if (!isSensorRead(value >> 8)) {
+      Serial.print("Bad sensor request");
+      break;
+    }
+    replyId = value & 0xFF;
+    attendCommand(value >> 8, 0, NULL);
+    replyId = -1;
+    break;
+
+  case HEARTBEAT:
+    // value: heartbeat period of the phone (milliseconds)
+    phoneTimeout = (unsigned long) value * MISSED_HEARTBEATS;
+    sendHeartbeat();
+    break;
+
   case SET_MODE_ALTHOLD:
     setFlightMode(MODE_ALTHOLD);
     break;
@@ -249,6 +408,10 @@ void attendCommand(byte command, int value) {
     setPPMChannel(ch, value);
     break;
 
+  case SET_ALL_CHANNELS:
+    setPPMChannels(data);
+    break;
+
   default:
     Serial.print("Unknown command");
     break;
@@ -285,6 +448,18 @@ void setFlightMode(int mode) {
   setPPMChannel(CH_MODE, mode);
 }
 
+// Phone silent for too long (app hung, cable unplugged...): hold position
+void checkPhone() {
+  if (phoneTimeout == 0 || isPhoneLost) { return; }
+
+  if (millis() - lastCommandTime > phoneTimeout) {
+    isPhoneLost = true;
+    setFlightMode(MODE_LOITTER);
+    setSlidersNeutral();
+    Serial.println("Phone lost");
+  }
+}
+
 void loop() {
   byte receivedCommand;
 
@@ -330,28 +505,41 @@ void loop() {
 
   // Manage ADK connection
   if (acc.isConnected()) {
-    // Read command
+    // Read commands (Android sends several of them in a single write)
     int len = acc.read(bufferI, sizeof(bufferI), 1);
+    int position = 0;
 
-    if (len == 1) {
-      // Command (1 byte)
-      receivedCommand = bufferI[0];
+    while (position < len) {
+      receivedCommand = bufferI[position];
+      int commandLen = commandLength(receivedCommand);
 
-      attendCommand(receivedCommand, 0);
-    }
-    else if (len == 3) {
-      // Command with 2 bytes of data
-      receivedCommand = bufferI[0];
-      int value = bufferI[1];
-      value = value << 8; // HSB read
-      value = value + bufferI[2]; // LSB read
-
-      attendCommand(receivedCommand, value);
+      if (commandLen < 0 || position + commandLen > len) {
+        // Not a command (or incomplete), ignore the rest
+        Serial.print("Unknown command");
+        break;
+      }
+
+      int value = 0;
+      if (commandLen == 3) {
+        // Command with 2 bytes of data
+        value = bufferI[position + 1];
+        value = value << 8; // HSB read
+        value = value + bufferI[position + 2]; // LSB read
+      }
+
+      attendCommand(receivedCommand, value, bufferI + position + 1);
+      position += commandLen;
     }
-    else {
-      // Not a command, ignore
+
+    // After attending them (a slow sensor read is not the phone being silent)
+    if (len > 0) {
+      lastCommandTime = millis();
+      isPhoneLost = false;
     }
   }
+
+  // Also when the accessory is disconnected
+  checkPhone();
 }
 
 // Do not modify (PPM signal generation)
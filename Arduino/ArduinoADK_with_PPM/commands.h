@@ -14,6 +14,20 @@
 #define READ_SENSOR_ALTITUDE 0x05
 #define DATA_SENSOR_ALTITUDE 0x15
 
+// All the sensors at once. Reply: command and 5 floats (temperature, humidity, NO2, CO, altitude)
+#define READ_ALL_SENSORS 0x06
+#define DATA_ALL_SENSORS 0x16
+
+// Read a sensor and tag the reply: command, READ_SENSOR_X, request id (1 byte)
+// The reply is DATA_ID, request id and then the normal DATA_SENSOR_X frame
+#define READ_SENSOR_WITH_ID 0x0A
+#define DATA_ID 0x1A
+
+// Link check: command and heartbeat period in milliseconds (2 bytes). Reply: DATA_HEARTBEAT (1 byte)
+// If nothing arrives for MISSED_HEARTBEATS periods we fall back to loiter (see checkPhone)
+#define HEARTBEAT 0x0B
+#define DATA_HEARTBEAT 0x1B
+
 // RC RELATED COMMANDS
 #define SET_CH1 0xF1
 #define SET_CH2 0xF2
@@ -24,6 +38,9 @@
 #define SET_CH7 0xF7
 #define SET_CH8 0xF8
 
+// Set all channels at once: 8 values of 2 bytes (HSB first), channel 1 first
+#define SET_ALL_CHANNELS 0xF0
+
 #define SET_MODE_ALTHOLD 0xE0
 #define SET_MODE_LOITTER 0xE1
 #define SET_MODE_AUTO    0xE2
@@ -0,0 +1,48 @@
+function [ latitude, longitude, altitude, accuracy, time ] = readFlightLog( fileName )
+% Read the GPS fixes of a binary flight log (.flog, see FlightLog.java)
+% time is in seconds from the first record
+
+    fd = fopen(fileName,'r','ieee-le');
+
+    magic = fread(fd,4,'*char')';
+    if ~strcmp(magic,'QLOG')
+        fclose(fd);
+        error('Not a flight log');
+    end
+    header = fread(fd,4,'uint16'); % version, header size, record size, schema length
+    headerSize = header(2);
+    recordSize = header(3);
+
+    % Only complete records (the app may have died while writing)
+    fseek(fd,0,'eof');
+    records = floor((ftell(fd) - headerSize) / recordSize);
+
+    fseek(fd,headerSize,'bof');
+    time = fread(fd,records,'int64',recordSize - 8);
+    fseek(fd,headerSize + 8,'bof');
+    latitude = fread(fd,records,'double',recordSize - 8);
+    fseek(fd,headerSize + 16,'bof');
+    longitude = fread(fd,records,'double',recordSize - 8);
+    fseek(fd,headerSize + 24,'bof');
+    altitude = fread(fd,records,'double',recordSize - 8);
+    fseek(fd,headerSize + 32,'bof');
+    accuracy = fread(fd,records,'single',recordSize - 4);
+    fseek(fd,headerSize + 36,'bof');
+    type = fread(fd,records,'uint8',recordSize - 1);
+
+    fclose(fd);
+
+    % Type 0 is the end of the log, 1 a fix
+    last = find(type == 0, 1) - 1;
+    if isempty(last)
+        last = records;
+    end
+    fixes = find(type(1:last) == 1);
+
+    latitude = latitude(fixes);
+    longitude = longitude(fixes);
+    altitude = altitude(fixes);
+    accuracy = accuracy(fixes);
+    time = (time(fixes) - time(fixes(1))) / 1e9;
+
+end
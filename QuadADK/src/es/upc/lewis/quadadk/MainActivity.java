@@ -1,5 +1,6 @@
 package es.upc.lewis.quadadk;
 
+import java.io.File;
 import java.io.IOException;
 
 import android.app.Activity;
@@ -16,6 +17,7 @@ import android.support.v4.content.LocalBroadcastManager;
 import android.util.Log;
 import android.view.View;
 import android.view.View.OnClickListener;
+import android.view.View.OnLongClickListener;
 import android.widget.Button;
 import android.widget.FrameLayout;
 import android.widget.TextView;
@@ -25,8 +27,14 @@ import com.android.future.usb.UsbAccessory;
 import com.android.future.usb.UsbManager;
 
 import es.upc.lewis.quadadk.comms.CommunicationsThread;
+import es.upc.lewis.quadadk.comms.HTTPCalls;
+import es.upc.lewis.quadadk.comms.LinkListener;
 import es.upc.lewis.quadadk.comms.MissionStatusPolling;
+import es.upc.lewis.quadadk.comms.Outbox;
+import es.upc.lewis.quadadk.comms.TelemetryDispatcher;
+import es.upc.lewis.quadadk.comms.UplinkScheduler;
 import es.upc.lewis.quadadk.mission.MissionThread;
+import es.upc.lewis.quadadk.tools.GPSLogger;
 import es.upc.lewis.quadadk.tools.MyLocation;
 import es.upc.lewis.quadadk.tools.SimpleCamera;
 
@@ -42,9 +50,16 @@ public class MainActivity extends Activity {
 	private UsbManager mUsbManager;
 	private UsbAccessory mAccessory;
 	private ParcelFileDescriptor mFileDescriptor;
+	
+	// ADK link metrics are appended here (external files dir)
+	private static final String LINK_METRICS_FILE = "link_metrics.txt";
+	
+	// GroundStation address to use instead of the default one (for a local GroundStationServer):
+	// adb shell am start -n es.upc.lewis.quadadk/.MainActivity -e server_addr http://192.168.1.2:8080/
+	private static final String EXTRA_SERVER_ADDRESS = "server_addr";
 
 	// GPS Logger
-	//public static GPSLogger gpsLogger;
+	public static GPSLogger gpsLogger;
 	
 	// Worker thread for ADK communications
 	private CommunicationsThread comms;
@@ -73,13 +88,15 @@ public class MainActivity extends Activity {
 	// UI states
 	public static final int CONNECTED = 1;
 	public static final int DISCONNECTED = 2;
+	public static final int LINK_LOST = 3;
 
 	private void openAccessory(UsbAccessory accessory) {
 		mFileDescriptor = mUsbManager.openAccessory(accessory);
 		if (mFileDescriptor != null) {
 			mAccessory = accessory;
 
-			comms = new CommunicationsThread(this, mFileDescriptor.getFileDescriptor());
+			comms = new CommunicationsThread(mFileDescriptor.getFileDescriptor());
+			comms.getEventBus().register(linkListener);
 			comms.start();
 
 			setADKStatus(CONNECTED);
@@ -94,6 +111,7 @@ public class MainActivity extends Activity {
 	private void closeAccessory() {
 		// Stop worker thread
 		if (comms != null) {
+			dumpLinkMetrics();
 			comms.interrupt();
 			comms = null;
 		}
@@ -112,6 +130,38 @@ public class MainActivity extends Activity {
 		setADKStatus(DISCONNECTED);
 	}
 
+	/**
+	 * Write the ADK link metrics to logcat and to a file (LINK_METRICS_FILE)
+	 */
+	private void dumpLinkMetrics() {
+		if (comms == null) { return; }
+		
+		String report = comms.getMetrics().report();
+		Log.i(TAG, report);
+		Log.i(TAG, TelemetryDispatcher.getTelemetry().report());
+		Log.i(TAG, TelemetryDispatcher.getPictures().report());
+		Log.i(TAG, TelemetryDispatcher.getPreviews().report());
+		Log.i(TAG, UplinkScheduler.getInstance().report());
+		if (Outbox.getInstance() != null) { Log.i(TAG, Outbox.getInstance().report()); }
+		
+		File dir = getExternalFilesDir(null);
+		if (dir == null) { return; }
+		try {
+			comms.getMetrics().writeReport(new File(dir, LINK_METRICS_FILE));
+		} catch (IOException e) {
+			Log.e(TAG, "Error writing link metrics: " + e.getMessage());
+		}
+	}
+	
+	// Long click on the ADK status to dump the link metrics
+	private OnLongClickListener adkStatusLongClickListener = new OnLongClickListener() {
+		@Override
+		public boolean onLongClick(View v) {
+			dumpLinkMetrics();
+			return true;
+		}
+	};
+
 	private OnClickListener cameraButtonListener = new OnClickListener() {
 		@Override
 		public void onClick(View v) {
@@ -148,6 +198,7 @@ public class MainActivity extends Activity {
 		setContentView(R.layout.main_activity);
 		getUiReferences();
 		CameraButton.setOnClickListener(cameraButtonListener);
+		adkStatusText.setOnLongClickListener(adkStatusLongClickListener);
 
 		setADKStatus(DISCONNECTED);
 		setGPSStatus(DISCONNECTED);
@@ -156,6 +207,12 @@ public class MainActivity extends Activity {
 		mPermissionIntent = PendingIntent.getBroadcast(this, 0, new Intent(ACTION_USB_PERMISSION), 0);
 		registerReceivers();
 
+		String serverAddress = getIntent().getStringExtra(EXTRA_SERVER_ADDRESS);
+		if (serverAddress != null) { HTTPCalls.setServerAddress(serverAddress); }
+		
+		// Data not sent in a previous run is sent again
+		Outbox.open(getFilesDir());
+
 		// Start camera
 		camera = new SimpleCamera(this, (FrameLayout) findViewById(R.id.camera_preview));
 
@@ -228,6 +285,12 @@ public class MainActivity extends Activity {
 		
 		// Stop polling server
 		if (pollingWorker != null) { pollingWorker.finnish(); }
+		
+		// Write the log if a mission is still running
+		if (gpsLogger != null) { gpsLogger.close(); }
+		
+		// Close the server connections
+		HTTPCalls.shutdown();
 	}
 
 	private void getUiReferences() {
@@ -250,8 +313,41 @@ public class MainActivity extends Activity {
 			adkStatusText.setText("Disconnected");
 			adkStatusText.setTextColor(Color.RED);
 			break;
+		case LINK_LOST:
+			adkStatusText.setText("No answer");
+			adkStatusText.setTextColor(Color.RED);
+			break;
 		}
 	}
+	
+	// Heartbeats from the Arduino stopped or resumed (see LinkMonitor)
+	private LinkListener linkListener = new LinkListener() {
+		@Override
+		public void onLinkDown(final int reason, long timestampNanos) {
+			Log.e(TAG, "Link down, reason " + reason);
+			
+			// closeAccessory already shows it
+			if (reason == LinkListener.CLOSED) { return; }
+			
+			runOnUiThread(new Runnable() {
+				public void run() {
+					setADKStatus(LINK_LOST);
+					Toast.makeText(MainActivity.this, "Arduino not answering", Toast.LENGTH_SHORT).show();
+				}
+			});
+		}
+		
+		@Override
+		public void onLinkUp(long timestampNanos) {
+			Log.i(TAG, "Link up");
+			
+			runOnUiThread(new Runnable() {
+				public void run() {
+					setADKStatus(CONNECTED);
+				}
+			});
+		}
+	};
 
 	private void setGPSStatus(int type) {
 		switch (type) {
@@ -272,7 +368,7 @@ public class MainActivity extends Activity {
 		if (isMissionRunning == false && comms != null) {
 		//if (isMissionRunning == false) { // DEBUG (to start mission without an Arduino)
 			// Start logger
-			//gpsLogger = new GPSLogger(getApplicationContext());
+			gpsLogger = new GPSLogger(getApplicationContext());
 						
 			new MissionThread(comms, this, locationProvider);
 			Log.i(TAG, "Mission started");
@@ -323,6 +419,9 @@ public class MainActivity extends Activity {
 
 			displayLocation(location);
 			setGPSStatus(MainActivity.CONNECTED);
+			
+			// Only while a mission is running (see MissionThread)
+			if (gpsLogger != null) { gpsLogger.write(locationProvider.getHistory()); }
 		}
 	};
 
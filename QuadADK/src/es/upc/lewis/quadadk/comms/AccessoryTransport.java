@@ -0,0 +1,65 @@
+package es.upc.lewis.quadadk.comms;
+
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Transport for the USB accessory (file descriptor from UsbManager.openAccessory).
+ * Uses FileChannels with direct buffers, so the bytes are not copied again by the VM on each read and write.
+ */
+public class AccessoryTransport implements Transport {
+	// Buffer sizes (bytes). Accessory reads need a buffer as big as a USB packet
+	private static final int READ_BUFFER_SIZE = 1024;
+	private static final int WRITE_BUFFER_SIZE = 1024;
+
+	private FileChannel inputChannel;
+	private FileChannel outputChannel;
+
+	// Only used by the reading thread
+	private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+	// Only used by the writing thread
+	private final ByteBuffer writeBuffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+
+	public AccessoryTransport(FileDescriptor fd) {
+		inputChannel = new FileInputStream(fd).getChannel();
+		outputChannel = new FileOutputStream(fd).getChannel();
+	}
+
+	@Override
+	public int read(byte[] buffer, int offset, int length) throws IOException {
+		readBuffer.clear();
+		if (length < readBuffer.capacity()) { readBuffer.limit(length); }
+
+		int bytes = inputChannel.read(readBuffer);
+		if (bytes <= 0) { return bytes; }
+
+		readBuffer.flip();
+		readBuffer.get(buffer, offset, bytes);
+		return bytes;
+	}
+
+	@Override
+	public void write(byte[] buffer, int offset, int length) throws IOException {
+		while (length > 0) {
+			int count = (length < writeBuffer.capacity()) ? length : writeBuffer.capacity();
+
+			writeBuffer.clear();
+			writeBuffer.put(buffer, offset, count);
+			writeBuffer.flip();
+			while (writeBuffer.hasRemaining()) { outputChannel.write(writeBuffer); }
+
+			offset += count;
+			length -= count;
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		inputChannel.close();
+		outputChannel.close();
+	}
+}
@@ -18,6 +18,20 @@ public interface ArduinoCommands {
 	public static final byte READ_SENSOR_ALTITUDE = 0x05;
 	public static final byte DATA_SENSOR_ALTITUDE = 0x15;
 	
+	// All the sensors at once. Reply: command and 5 floats (temperature, humidity, NO2, CO, altitude)
+	public static final byte READ_ALL_SENSORS = 0x06;
+	public static final byte DATA_ALL_SENSORS = 0x16;
+	
+	// Read a sensor and tag the reply: command, READ_SENSOR_X, request id (1 byte)
+	// The reply is DATA_ID, request id and then the normal DATA_SENSOR_X frame
+	public static final byte READ_SENSOR_WITH_ID = 0x0A;
+	public static final byte DATA_ID             = 0x1A;
+	
+	// Link check: command and heartbeat period in milliseconds (2 bytes). Reply: DATA_HEARTBEAT (1 byte)
+	// The Arduino falls back to loiter if nothing arrives for 3 periods
+	public static final byte HEARTBEAT      = 0x0B;
+	public static final byte DATA_HEARTBEAT = 0x1B;
+	
 	// RC RELATED COMMANDS
 	public static final byte SET_CH1 = (byte) 0xF1;
 	public static final byte SET_CH2 = (byte) 0xF2;
@@ -28,6 +42,10 @@ public interface ArduinoCommands {
 	public static final byte SET_CH7 = (byte) 0xF7;
 	public static final byte SET_CH8 = (byte) 0xF8;
 	
+	// Set all channels at once: 8 values of 2 bytes, channel 1 first
+	public static final byte SET_ALL_CHANNELS = (byte) 0xF0;
+	public static final int NUMBER_OF_CHANNELS = 8;
+	
 	public static final byte SET_MODE_ALTHOLD = (byte) 0xE0;
 	public static final byte SET_MODE_LOITTER = (byte) 0xE1;
 	public static final byte SET_MODE_AUTO    = (byte) 0xE2;
@@ -0,0 +1,513 @@
+package es.upc.lewis.quadadk.comms;
+
+import java.io.IOException;
+
+/**
+ * Behaves like the ArduinoADK_with_PPM firmware at the byte level, to test the
+ * app without the ADK board (connect it to the other end of a LoopbackTransport).
+ *
+ * Same command parsing as loop(), same rules as setPPMChannel and setPPMChannels
+ * (out of range values are rejected, throttle is clamped to THROTTLE_MIN), same
+ * replies as sendSensorData and sendAllSensorData. Sensor values and the time
+ * each sensor read takes are configurable. Like checkPhone, it falls back to loiter with
+ * neutral sticks if the phone stops sending for MISSED_HEARTBEATS heartbeat periods.
+ *
+ * Differences with the board: there is no RC receiver (the output is always the
+ * channels set by the app) and a command split between two reads is kept for the
+ * next read instead of being ignored (the loopback doesn't keep USB packet boundaries).
+ */
+public class ArduinoEmulator extends Thread {
+	// Same as rc.h and ArduinoADK_with_PPM.ino
+	public static final int MODE_LOITTER = 1296;
+	public static final int MODE_AUTO    = 1426;
+	public static final int MODE_STB     = 1556;
+	public static final int MODE_ALTHOLD = 1685;
+	public static final int MODE_RTL     = 1900;
+
+	public static final int CH_ROLL     = 1;
+	public static final int CH_PITCH    = 2;
+	public static final int CH_THROTTLE = 3;
+	public static final int CH_YAW      = 4;
+	public static final int CH_MODE     = 5;
+	public static final int CH_SWITCH   = 7;
+
+	public static final int THROTTLE_MIN     = 1150;
+	public static final int THROTTLE_NEUTRAL = 1650;
+	public static final int CH_MIN     = 1000;
+	public static final int CH_NEUTRAL = 1500;
+	public static final int CH_MAX     = 2000;
+
+	private static final int CHANNELS = ArduinoCommands.NUMBER_OF_CHANNELS;
+
+	// Same as the firmware (and LinkMonitor)
+	public static final int MISSED_HEARTBEATS = 3;
+
+	// Same as BUFFER_SIZE_FOR_IO
+	private static final int BUFFER_SIZE = 256;
+
+	private Transport transport;
+	private volatile boolean enabled = true;
+
+	private final byte[] bufferI = new byte[BUFFER_SIZE];
+	private final byte[] bufferO = new byte[BUFFER_SIZE];
+	// Bytes of an incomplete command kept at the start of bufferI
+	private int pendingBytes = 0;
+
+	// Channel values (guarded by 'this', like cli/sei on the board)
+	private final int[] ppm = new int[CHANNELS];
+
+	// Sensor values, by READ_SENSOR_X - 1
+	private final float[] sensorValues = new float[EventBus.NUMBER_OF_SENSORS];
+	private final float[] allSensorValues = new float[EventBus.NUMBER_OF_SENSORS];
+	// Time to read each sensor (milliseconds), by READ_SENSOR_X - 1
+	private final long[] sensorDelays = new long[EventBus.NUMBER_OF_SENSORS];
+
+	// Request id to send with the next sensor data (READ_SENSOR_WITH_ID), -1 if none
+	private int replyId = -1;
+
+	// Heartbeat (guarded by 'this'), milliseconds
+	private long lastCommandTime = 0;
+	private long phoneTimeout = 0; // 0 until the first HEARTBEAT
+	private boolean isPhoneLost = false;
+
+	// Statistics
+	private volatile long commands = 0;
+	private volatile long unknownCommands = 0;
+	private volatile long rejectedValues = 0;
+	private volatile long replies = 0;
+	private volatile long phoneLosses = 0;
+
+	public ArduinoEmulator(Transport transport) {
+		this.transport = transport;
+
+		// Same as setup()
+		setFlightMode(MODE_LOITTER);
+		setSlidersNeutralNoThrottle();
+	}
+
+	/**
+	 * Stop the thread (close the transport to stop a blocked read)
+	 */
+	public void finish() {
+		enabled = false;
+		interrupt();
+	}
+
+	/**
+	 * Value returned when the app reads a sensor
+	 * @param sensor ArduinoCommands.READ_SENSOR_X
+	 * @param value
+	 */
+	public synchronized void setSensorValue(byte sensor, float value) {
+		sensorValues[sensor - 1] = value;
+	}
+
+	/**
+	 * Time it takes to read a sensor. Like on the board, no other command is attended meanwhile
+	 * @param sensor ArduinoCommands.READ_SENSOR_X
+	 * @param delay milliseconds
+	 */
+	public synchronized void setSensorDelay(byte sensor, long delay) {
+		sensorDelays[sensor - 1] = delay;
+	}
+
+	/**
+	 * Current value of a channel
+	 * @param channel 1 to 8
+	 */
+	public synchronized int getChannel(int channel) {
+		checkPhone();
+		return ppm[channel - 1];
+	}
+
+	/**
+	 * Copy of all the channels (taken at once)
+	 */
+	public synchronized int[] getChannels() {
+		checkPhone();
+		int[] channels = new int[CHANNELS];
+		System.arraycopy(ppm, 0, channels, 0, CHANNELS);
+		return channels;
+	}
+
+	@Override
+	public void run() {
+		while (enabled) {
+			int bytes;
+			try {
+				bytes = transport.read(bufferI, pendingBytes, bufferI.length - pendingBytes);
+			} catch (IOException e) {
+				return; // Connection lost
+			}
+			if (bytes < 0) { return; } // End of stream
+			checkPhone(); // The silence may have been long enough
+
+			int len = pendingBytes + bytes;
+			int position = 0;
+			pendingBytes = 0;
+
+			// Same as loop()
+			while (position < len) {
+				byte receivedCommand = bufferI[position];
+				int commandLen = commandLength(receivedCommand);
+
+				if (commandLen < 0) {
+					// Not a command, ignore the rest
+					unknownCommands++;
+					break;
+				}
+				if (position + commandLen > len) {
+					// Incomplete, wait for the rest
+					pendingBytes = len - position;
+					System.arraycopy(bufferI, position, bufferI, 0, pendingBytes);
+					break;
+				}
+
+				int value = 0;
+				if (commandLen == 3) {
+					value = ((bufferI[position + 1] & 0xFF) << 8) + (bufferI[position + 2] & 0xFF);
+				}
+
+				if (!attendCommand(receivedCommand, value, position + 1)) { return; }
+				commands++;
+				position += commandLen;
+			}
+
+			// After attending them (a slow sensor read is not the phone being silent)
+			commandsAttended();
+		}
+	}
+
+	/**
+	 * Length of a command (including the command byte) or -1 if unknown
+	 */
+	private static int commandLength(byte command) {
+		switch (command) {
+		case ArduinoCommands.READ_SENSOR_TEMPERATURE:
+		case ArduinoCommands.READ_SENSOR_HUMIDITY:
+		case ArduinoCommands.READ_SENSOR_NO2:
+		case ArduinoCommands.READ_SENSOR_CO:
+		case ArduinoCommands.READ_SENSOR_ALTITUDE:
+		case ArduinoCommands.READ_ALL_SENSORS:
+		case ArduinoCommands.SET_MODE_ALTHOLD:
+		case ArduinoCommands.SET_MODE_LOITTER:
+		case ArduinoCommands.SET_MODE_AUTO:
+		case ArduinoCommands.SET_MODE_RTL:
+		case ArduinoCommands.SET_MODE_STB:
+			return 1;
+
+		case ArduinoCommands.SET_CH1:
+		case ArduinoCommands.SET_CH2:
+		case ArduinoCommands.SET_CH3:
+		case ArduinoCommands.SET_CH4:
+		case ArduinoCommands.SET_CH5:
+		case ArduinoCommands.SET_CH6:
+		case ArduinoCommands.SET_CH7:
+		case ArduinoCommands.SET_CH8:
+		case ArduinoCommands.READ_SENSOR_WITH_ID:
+		case ArduinoCommands.HEARTBEAT:
+			return 3;
+
+		case ArduinoCommands.SET_ALL_CHANNELS:
+			return 1 + 2 * CHANNELS;
+
+		default:
+			return -1;
+		}
+	}
+
+	/**
+	 * Commands that can go in a READ_SENSOR_WITH_ID
+	 */
+	private static boolean isSensorRead(byte command) {
+		switch (command) {
+		case ArduinoCommands.READ_SENSOR_TEMPERATURE:
+		case ArduinoCommands.READ_SENSOR_HUMIDITY:
+		case ArduinoCommands.READ_SENSOR_NO2:
+		case ArduinoCommands.READ_SENSOR_CO:
+		case ArduinoCommands.READ_SENSOR_ALTITUDE:
+		case ArduinoCommands.READ_ALL_SENSORS:
+			return true;
+
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * @param data position in bufferI of the bytes after the command
+	 * @return false if the connection was lost
+	 */
+	private boolean attendCommand(byte command, int value, int data) {
+		switch (command) {
+		case ArduinoCommands.READ_SENSOR_TEMPERATURE:
+		case ArduinoCommands.READ_SENSOR_HUMIDITY:
+		case ArduinoCommands.READ_SENSOR_NO2:
+		case ArduinoCommands.READ_SENSOR_CO:
+		case ArduinoCommands.READ_SENSOR_ALTITUDE:
+			// DATA_SENSOR_X is READ_SENSOR_X + 0x10
+			return sendSensorData((byte) (command + 0x10), readSensor(command));
+
+		case ArduinoCommands.READ_ALL_SENSORS:
+			return sendAllSensorData(readAllSensors());
+
+		case ArduinoCommands.READ_SENSOR_WITH_ID:
+			// value: READ_SENSOR_X (HSB) and request id (LSB)
+			// Only sensor reads (anything else may need data we don't have)
+			if (!isSensorRead((byte) (value >> 8))) { return true; }
+			replyId = value & 0xFF;
+			boolean isSent = attendCommand((byte) (value >> 8), 0, 0);
+			replyId = -1;
+			return isSent;
+
+		case ArduinoCommands.HEARTBEAT:
+			// value: heartbeat period of the phone (milliseconds)
+			synchronized (this) { phoneTimeout = (long) value * MISSED_HEARTBEATS; }
+			bufferO[0] = ArduinoCommands.DATA_HEARTBEAT;
+			return write(1);
+
+		case ArduinoCommands.SET_MODE_ALTHOLD:
+			setFlightMode(MODE_ALTHOLD);
+			break;
+
+		case ArduinoCommands.SET_MODE_LOITTER:
+			setFlightMode(MODE_LOITTER);
+			break;
+
+		case ArduinoCommands.SET_MODE_AUTO:
+			setFlightMode(MODE_AUTO);
+			break;
+
+		case ArduinoCommands.SET_MODE_RTL:
+			setFlightMode(MODE_RTL);
+			break;
+
+		case ArduinoCommands.SET_MODE_STB:
+			setFlightMode(MODE_STB);
+			break;
+
+		case ArduinoCommands.SET_CH1:
+		case ArduinoCommands.SET_CH2:
+		case ArduinoCommands.SET_CH3:
+		case ArduinoCommands.SET_CH4:
+		case ArduinoCommands.SET_CH5:
+		case ArduinoCommands.SET_CH6:
+		case ArduinoCommands.SET_CH7:
+		case ArduinoCommands.SET_CH8:
+			setPPMChannel(command & 0x0F, value); // Channel number (lower 4 bits)
+			break;
+
+		case ArduinoCommands.SET_ALL_CHANNELS:
+			setPPMChannels(data);
+			break;
+
+		default:
+			unknownCommands++;
+			break;
+		}
+		return true;
+	}
+
+	private synchronized void setPPMChannel(int channel, int value) {
+		// Reject out of range values
+		if (value < CH_MIN || value > CH_MAX) {
+			rejectedValues++;
+			return;
+		}
+		if (channel == CH_THROTTLE && value < THROTTLE_MIN) {
+			value = THROTTLE_MIN;
+		}
+
+		ppm[channel - 1] = value;
+	}
+
+	/**
+	 * Same rules as setPPMChannel, all channels updated at once
+	 * @param data position in bufferI of the first value
+	 */
+	private synchronized void setPPMChannels(int data) {
+		for (int i = 0; i < CHANNELS; i++) {
+			int value = ((bufferI[data + 2 * i] & 0xFF) << 8) + (bufferI[data + 2 * i + 1] & 0xFF);
+
+			if (value < CH_MIN || value > CH_MAX) {
+				rejectedValues++;
+				continue; // Rejected, keep the old value
+			}
+			if (i + 1 == CH_THROTTLE && value < THROTTLE_MIN) {
+				value = THROTTLE_MIN;
+			}
+			ppm[i] = value;
+		}
+	}
+
+	private void setFlightMode(int mode) {
+		setPPMChannel(CH_MODE, mode);
+	}
+
+	private void setSlidersNeutral() {
+		setPPMChannel(CH_ROLL, CH_NEUTRAL);
+		setPPMChannel(CH_PITCH, CH_NEUTRAL);
+		setPPMChannel(CH_THROTTLE, THROTTLE_NEUTRAL);
+		setPPMChannel(CH_YAW, CH_NEUTRAL);
+
+		setPPMChannel(CH_SWITCH, CH_MIN); // No simple mode
+
+		// Unused channels
+		setPPMChannel(6, CH_MIN);
+		setPPMChannel(8, CH_MIN);
+	}
+
+	private void setSlidersNeutralNoThrottle() {
+		setPPMChannel(CH_ROLL, CH_NEUTRAL);
+		setPPMChannel(CH_PITCH, CH_NEUTRAL);
+		setPPMChannel(CH_THROTTLE, THROTTLE_MIN);
+		setPPMChannel(CH_YAW, CH_NEUTRAL);
+
+		setPPMChannel(CH_SWITCH, CH_MIN); // No simple mode
+
+		// Unused channels
+		setPPMChannel(6, CH_MIN);
+		setPPMChannel(8, CH_MIN);
+	}
+
+	private synchronized void commandsAttended() {
+		lastCommandTime = millis();
+		isPhoneLost = false;
+	}
+
+	/**
+	 * Fall back to loiter if the phone is silent for too long. The board checks it
+	 * in every loop(), here it's checked when the channels are read or a command arrives
+	 */
+	private synchronized void checkPhone() {
+		if (phoneTimeout == 0 || isPhoneLost) { return; }
+
+		if (millis() - lastCommandTime > phoneTimeout) {
+			isPhoneLost = true;
+			phoneLosses++;
+			setFlightMode(MODE_LOITTER);
+			setSlidersNeutral();
+		}
+	}
+
+	private static long millis() {
+		return System.nanoTime() / 1000000L;
+	}
+
+	private float readSensor(byte sensor) {
+		long delay;
+		float value;
+		synchronized (this) {
+			delay = sensorDelays[sensor - 1];
+			value = sensorValues[sensor - 1];
+		}
+
+		waitForSensor(delay);
+		return value;
+	}
+
+	private float[] readAllSensors() {
+		long delay = 0;
+		synchronized (this) {
+			for (int i = 0; i < sensorValues.length; i++) {
+				allSensorValues[i] = sensorValues[i];
+				delay += sensorDelays[i];
+			}
+		}
+
+		waitForSensor(delay);
+		return allSensorValues;
+	}
+
+	private void waitForSensor(long delay) {
+		if (delay <= 0) { return; }
+
+		try {
+			Thread.sleep(delay);
+		} catch (InterruptedException e) {
+			enabled = false;
+		}
+	}
+
+	/**
+	 * Tag the reply with the request id (if any)
+	 * @return the bytes used in bufferO
+	 */
+	private int writeReplyId() {
+		if (replyId < 0) { return 0; }
+
+		bufferO[0] = ArduinoCommands.DATA_ID;
+		bufferO[1] = (byte) replyId;
+		replyId = -1;
+		return 2;
+	}
+
+	/**
+	 * float to bytes (4), HSB first
+	 */
+	private void writeFloat(int position, float value) {
+		int bits = Float.floatToIntBits(value);
+		bufferO[position    ] = (byte) (bits >> 24);
+		bufferO[position + 1] = (byte) (bits >> 16);
+		bufferO[position + 2] = (byte) (bits >> 8);
+		bufferO[position + 3] = (byte) bits;
+	}
+
+	private boolean sendSensorData(byte sensor, float value) {
+		int len = writeReplyId();
+
+		bufferO[len] = sensor;
+		writeFloat(len + 1, value);
+
+		return write(len + 5);
+	}
+
+	private boolean sendAllSensorData(float[] values) {
+		int len = writeReplyId();
+
+		bufferO[len] = ArduinoCommands.DATA_ALL_SENSORS;
+		for (int i = 0; i < values.length; i++) {
+			writeFloat(len + 1 + 4 * i, values[i]);
+		}
+
+		return write(len + 21);
+	}
+
+	private boolean write(int length) {
+		try {
+			transport.write(bufferO, 0, length);
+		} catch (IOException e) {
+			return false; // Connection lost
+		}
+		replies++;
+		return true;
+	}
+
+	/**
+	 * Number of commands attended
+	 */
+	public long getCommands() { return commands; }
+
+	/**
+	 * Number of unknown command bytes found (the rest of their read was ignored)
+	 */
+	public long getUnknownCommands() { return unknownCommands; }
+
+	/**
+	 * Number of channel values rejected because they were out of range
+	 */
+	public long getRejectedValues() { return rejectedValues; }
+
+	/**
+	 * Number of frames sent (sensor data)
+	 */
+	public long getReplies() { return replies; }
+
+	/**
+	 * Number of times the phone went silent (and the channels fell back to loiter)
+	 */
+	public synchronized long getPhoneLosses() {
+		checkPhone();
+		return phoneLosses;
+	}
+}
@@ -0,0 +1,263 @@
+package es.upc.lewis.quadadk.comms;
+
+import java.io.IOException;
+
+/**
+ * Sends commands to the Arduino from its own thread.
+ *
+ * Callers copy their command into a preallocated slot of a ring buffer and return
+ * without waiting for the USB write. This thread takes all the queued commands that fit
+ * in a USB packet and writes them with a single write().
+ *
+ * No memory is allocated after construction.
+ */
+public class CommandWriter extends Thread {
+	// Number of commands that can be queued
+	private static final int SLOTS = 64;
+
+	// Longest command (SET_ALL_CHANNELS)
+	public static final int MAX_COMMAND_LENGTH = 1 + 2 * ArduinoCommands.NUMBER_OF_CHANNELS;
+
+	// Maximum bytes per write (USB full speed bulk packet, the Arduino reads one at a time)
+	private static final int MAX_WRITE_LENGTH = 64;
+
+	// How long a caller waits for a free slot before dropping its command (milliseconds)
+	private static final long FULL_QUEUE_TIMEOUT = 1000;
+
+	private Transport transport;
+	private LinkMetrics metrics;
+	private volatile boolean enabled = true;
+
+	// Ring buffer (guarded by 'lock')
+	private final Object lock = new Object();
+	private final byte[] slots = new byte[SLOTS * MAX_COMMAND_LENGTH];
+	private final int[] lengths = new int[SLOTS];
+	private final long[] enqueueTimes = new long[SLOTS];
+	private int head = 0; // Next slot to fill
+	private int tail = 0; // Next slot to send
+	private int depth = 0;
+
+	// Buffer for write() (only used by this thread)
+	private final byte[] writeBuffer = new byte[MAX_WRITE_LENGTH];
+	private final long[] writeEnqueueTimes = new long[SLOTS];
+
+	// Statistics
+	private volatile int maxDepth = 0;
+	private volatile long lastLatency = 0; // Nanoseconds
+	private volatile long maxLatency = 0;  // Nanoseconds
+	private volatile long writes = 0;
+	private volatile long commands = 0;
+	private volatile long droppedCommands = 0;
+
+	public CommandWriter(Transport transport, LinkMetrics metrics) {
+		this.transport = transport;
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Stop the thread. Queued commands are not sent
+	 */
+	public void finish() {
+		enabled = false;
+		synchronized (lock) { lock.notifyAll(); }
+	}
+
+	/**
+	 * Queue a command (1 byte)
+	 * @return false if the command was dropped
+	 */
+	public boolean enqueue(byte command) {
+		synchronized (lock) {
+			int slot = claimSlot(true);
+			if (slot < 0) { return false; }
+
+			slots[slot * MAX_COMMAND_LENGTH] = command;
+			return commitSlot(slot, 1);
+		}
+	}
+
+	/**
+	 * Queue a command with a 2 bytes value
+	 * @return false if the command was dropped
+	 */
+	public boolean enqueue(byte command, int value) {
+		return enqueue(command, value, true);
+	}
+
+	/**
+	 * Queue a command with a 2 bytes value only if there's a free slot, never waits
+	 * (heartbeats: a late one is useless, the next one goes a period later)
+	 * @return false if the command was dropped
+	 */
+	public boolean offer(byte command, int value) {
+		return enqueue(command, value, false);
+	}
+
+	private boolean enqueue(byte command, int value, boolean wait) {
+		synchronized (lock) {
+			int slot = claimSlot(wait);
+			if (slot < 0) { return false; }
+
+			int position = slot * MAX_COMMAND_LENGTH;
+			slots[position    ] = command;
+			slots[position + 1] = (byte) (value >> 8);
+			slots[position + 2] = (byte) (value & 0xFF);
+			return commitSlot(slot, 3);
+		}
+	}
+
+	/**
+	 * Queue a command followed by several 2 bytes values
+	 * @return false if the command was dropped
+	 */
+	public boolean enqueue(byte command, int[] values) {
+		int length = 1 + 2 * values.length;
+		if (length > MAX_COMMAND_LENGTH) { throw new IllegalArgumentException("Command too long"); }
+
+		synchronized (lock) {
+			int slot = claimSlot(true);
+			if (slot < 0) { return false; }
+
+			int position = slot * MAX_COMMAND_LENGTH;
+			slots[position] = command;
+			for (int i = 0; i < values.length; i++) {
+				slots[position + 1 + 2 * i] = (byte) (values[i] >> 8);
+				slots[position + 2 + 2 * i] = (byte) (values[i] & 0xFF);
+			}
+			return commitSlot(slot, length);
+		}
+	}
+
+	/**
+	 * Wait for a free slot. Call it holding 'lock'
+	 * @param wait up to FULL_QUEUE_TIMEOUT if the queue is full
+	 * @return slot index or -1 if there's no free slot (command has to be dropped)
+	 */
+	private int claimSlot(boolean wait) {
+		if (wait && depth == SLOTS && enabled) {
+			long deadline = System.currentTimeMillis() + FULL_QUEUE_TIMEOUT;
+			long remaining = FULL_QUEUE_TIMEOUT;
+
+			while (depth == SLOTS && enabled && remaining > 0) {
+				try {
+					lock.wait(remaining);
+				} catch (InterruptedException e) {
+					// Keep the interrupt for the caller (MissionUtils aborts the mission with it)
+					Thread.currentThread().interrupt();
+					break;
+				}
+				remaining = deadline - System.currentTimeMillis();
+			}
+		}
+
+		if (depth == SLOTS || !enabled) {
+			droppedCommands++;
+			metrics.commandDropped();
+			return -1;
+		}
+
+		return head;
+	}
+
+	/**
+	 * Make a filled slot visible to the writer thread. Call it holding 'lock'
+	 */
+	private boolean commitSlot(int slot, int length) {
+		lengths[slot] = length;
+		enqueueTimes[slot] = System.nanoTime();
+		metrics.commandQueued(slots[slot * MAX_COMMAND_LENGTH]);
+
+		head = (head + 1) % SLOTS;
+		depth++;
+		if (depth > maxDepth) { maxDepth = depth; }
+
+		lock.notifyAll();
+		return true;
+	}
+
+	@Override
+	public void run() {
+		while (enabled) {
+			int length = 0;
+			int count = 0;
+
+			synchronized (lock) {
+				while (depth == 0 && enabled) {
+					try { lock.wait(); } catch (InterruptedException e) { return; }
+				}
+				if (!enabled) { return; }
+
+				// Take as many complete commands as fit in one write
+				while (depth > 0 && length + lengths[tail] <= MAX_WRITE_LENGTH) {
+					System.arraycopy(slots, tail * MAX_COMMAND_LENGTH, writeBuffer, length, lengths[tail]);
+					length += lengths[tail];
+					writeEnqueueTimes[count] = enqueueTimes[tail];
+					count++;
+
+					tail = (tail + 1) % SLOTS;
+					depth--;
+				}
+
+				// Wake up callers waiting for a free slot
+				lock.notifyAll();
+			}
+
+			try {
+				transport.write(writeBuffer, 0, length);
+			} catch (IOException e) {
+				// Connection lost
+				e.printStackTrace();
+				finish();
+				return;
+			}
+
+			long now = System.nanoTime();
+			for (int i = 0; i < count; i++) { metrics.commandLatency(now - writeEnqueueTimes[i]); }
+			metrics.commandsWritten(length);
+			
+			// The oldest command waited the longest
+			long latency = now - writeEnqueueTimes[0];
+			lastLatency = latency;
+			if (latency > maxLatency) { maxLatency = latency; }
+			writes++;
+			commands += count;
+		}
+	}
+
+	/**
+	 * Number of commands waiting to be sent
+	 */
+	public int getQueueDepth() {
+		synchronized (lock) { return depth; }
+	}
+
+	/**
+	 * Highest number of commands that have been waiting at the same time
+	 */
+	public int getMaxQueueDepth() { return maxDepth; }
+
+	/**
+	 * Time from queuing the oldest command of the last write until the write finished (nanoseconds)
+	 */
+	public long getLastWriteLatency() { return lastLatency; }
+
+	/**
+	 * Highest write latency (nanoseconds), see getLastWriteLatency()
+	 */
+	public long getMaxWriteLatency() { return maxLatency; }
+
+	/**
+	 * Number of write() calls
+	 */
+	public long getWrites() { return writes; }
+
+	/**
+	 * Number of commands sent
+	 */
+	public long getCommands() { return commands; }
+
+	/**
+	 * Number of commands dropped because the queue was full or the connection was lost
+	 */
+	public long getDroppedCommands() { return droppedCommands; }
+}
@@ -1,119 +1,276 @@
 package es.upc.lewis.quadadk.comms;
 
 import java.io.FileDescriptor;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.nio.ByteBuffer;
-
-import android.content.Context;
-import android.content.Intent;
-import android.support.v4.content.LocalBroadcastManager;
 
 public class CommunicationsThread extends Thread {
-	Context context;
-	// Broadcast types
-    public static final String ACTION_DATA_AVAILABLE_SENSOR_TEMPERATURE = "1";
-    public static final String ACTION_DATA_AVAILABLE_SENSOR_HUMIDITY    = "2";
-    public static final String ACTION_DATA_AVAILABLE_SENSOR_NO2         = "3";
-    public static final String ACTION_DATA_AVAILABLE_SENSOR_CO          = "4";
-    public static final String ACTION_DATA_AVAILABLE_SENSOR_ALTITUDE    = "5";
-    // Fields
-    public static final String VALUE = "5";
-    
 	// Buffer for read operations (bytes)
 	private final int READ_BUFFER_SIZE = 1024;
 	
-	private FileInputStream mInputStream;
-	private FileOutputStream mOutputStream;
+	// USB accessory or loopback (see Transport)
+	private Transport transport;
+	private volatile boolean isClosing = false;
+	
+	// Splits the input stream into frames
+	private FrameDecoder decoder;
+	
+	// Sends the commands from its own thread
+	private CommandWriter writer;
+	
+	// Delivers sensor data to the listeners (see getEventBus)
+	private EventBus eventBus;
+	
+	// Heartbeats and link state (see getLinkMonitor)
+	private LinkMonitor monitor;
+	
+	// Counters and latencies (see getMetrics)
+	private LinkMetrics metrics = new LinkMetrics();
+	
+	// Read requests waiting for a reply, by request id (see requestSensor)
+	private final SensorReading[] pendingReadings = new SensorReading[256];
+	private int nextRequestId = 0;
+	// Request id received (DATA_ID) for the next data frame, or -1
+	private int replyId = -1;
+	
+	// Values of a DATA_ALL_SENSORS frame
+	private final float[] allSensorValues = new float[EventBus.NUMBER_OF_SENSORS];
 	
-	public CommunicationsThread(Context context, FileDescriptor fd) {
-		this.context = context;
+	/**
+	 * Communicate with the USB accessory
+	 * @param fd from UsbManager.openAccessory
+	 */
+	public CommunicationsThread(FileDescriptor fd) {
+		this(new AccessoryTransport(fd));
+	}
+	
+	public CommunicationsThread(Transport transport) {
+		this.transport = transport;
 		
-		mInputStream = new FileInputStream(fd);
-		mOutputStream = new FileOutputStream(fd);
+		decoder = new FrameDecoder(frameListener);
+		writer = new CommandWriter(transport, metrics);
+		eventBus = new EventBus();
+		monitor = new LinkMonitor(writer, eventBus, metrics);
 	}
 	
 	@Override
 	public void run() {
-		readLoop();
+		writer.start();
+		eventBus.start();
+		monitor.start();
+		
+		int reason = readLoop();
+		
+		// Connection closed
+		monitor.linkFailed(reason);
+		monitor.finish();
+		writer.finish();
+		eventBus.finish();
 	}
 	
-	public void send(byte command) {
+	/**
+	 * Close the transport. The reading loop ends and the thread finishes
+	 */
+	public void close() {
+		isClosing = true;
 		try {
-			mOutputStream.write(new byte[]{command});
+			transport.close();
 		} catch (IOException e) {
-			// TODO Auto-generated catch block
 			e.printStackTrace();
 		}
 	}
 	
+	/**
+	 * Send a command (1 byte). Returns without waiting for the USB write
+	 * @param command
+	 */
+	public void send(byte command) {
+		writer.enqueue(command);
+	}
+	
+	/**
+	 * Send a command (1 byte) and a 2 bytes value. Returns without waiting for the USB write
+	 * @param command
+	 * @param value
+	 */
 	public void send(byte command, int value) {
-		byte[] buffer = new byte[3];
-		buffer[0] = command;
-		buffer[1] = (byte) (value >> 8);
-		buffer[2] = (byte) (value & 0xFF);
+		writer.enqueue(command, value);
+	}
+	
+	/**
+	 * Send a command followed by several values (2 bytes each) as a single command.
+	 * Returns without waiting for the USB write
+	 * @param command
+	 * @param values
+	 */
+	public void send(byte command, int[] values) {
+		writer.enqueue(command, values);
+	}
+	
+	/**
+	 * Ask the Arduino to read a sensor. Several requests can be waiting for their reply at the same time
+	 * @param sensor MissionUtils.TEMPERATURE, HUMIDITY, NO2, CO, ALTITUDE or ALL_SENSORS
+	 * @return the reading, its value arrives later (the EventBus listeners get it too)
+	 */
+	public SensorReading requestSensor(byte sensor) {
+		SensorReading reading;
 		
-		try {
-			mOutputStream.write(buffer);
-		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+		synchronized (pendingReadings) {
+			int id = nextRequestId;
+			nextRequestId = (nextRequestId + 1) % pendingReadings.length;
+			
+			long now = System.nanoTime();
+			reading = new SensorReading(sensor, id, now);
+			pendingReadings[id] = reading; // Replaces a request that never got a reply
+			monitor.sensorRequested(now);
 		}
+		
+		writer.enqueue(ArduinoCommands.READ_SENSOR_WITH_ID, (sensor << 8) | reading.getRequestId());
+		return reading;
+	}
+	
+	/**
+	 * Register here to receive sensor data and link state changes
+	 */
+	public EventBus getEventBus() {
+		return eventBus;
+	}
+	
+	/**
+	 * Heartbeat period and link state
+	 */
+	public LinkMonitor getLinkMonitor() {
+		return monitor;
+	}
+	
+	/**
+	 * Link counters and latencies
+	 */
+	public LinkMetrics getMetrics() {
+		return metrics;
 	}
 	
-	private void readLoop() {
+	/**
+	 * Outgoing commands queue (queue depth, write latency...)
+	 */
+	public CommandWriter getWriter() {
+		return writer;
+	}
+	
+	/**
+	 * @return why it ended (see LinkListener)
+	 */
+	private int readLoop() {
 		int bytes = 0;
 		byte[] buffer = new byte[READ_BUFFER_SIZE];
 		
 		try {
 			while (true) {
-				if (interrupted()) { return; }
+				if (interrupted()) { return LinkListener.CLOSED; }
 				
 				// Read (blocking)
-				bytes = mInputStream.read(buffer);
+				bytes = transport.read(buffer, 0, buffer.length);
+				if (bytes < 0) { return isClosing ? LinkListener.CLOSED : LinkListener.END_OF_STREAM; }
+				metrics.bytesRead(bytes);
 				
-				parse(buffer, bytes);
+				// A read can have several frames or only a part of one
+				decoder.decode(buffer, 0, bytes);
+				metrics.setDiscardedBytes(decoder.getDiscardedBytes());
 			}
 		} catch (IOException e) {
-			// TODO Auto-generated catch block
+			// Interrupting the thread closes the channel too
+			if (isClosing || isInterrupted()) { return LinkListener.CLOSED; }
+			
 			e.printStackTrace();
+			return LinkListener.READ_ERROR;
 		}
 	}
 
-	private void parse(byte[] buffer, int bytes) {
-		Intent intent;
+	private FrameDecoder.Listener frameListener = new FrameDecoder.Listener() {
+		@Override
+		public void onFrame(byte[] frame, int offset, int length) {
+			parse(frame, offset);
+		}
+	};
+
+	private void parse(byte[] frame, int offset) {
+		metrics.frameReceived(frame[offset]);
 		
-		switch (buffer[0]) {
-		case ArduinoCommands.DATA_SENSOR_TEMPERATURE:
-			intent = new Intent(ACTION_DATA_AVAILABLE_SENSOR_TEMPERATURE);
+		// Any frame shows the link is alive (not only the heartbeat answers)
+		monitor.frameReceived(System.nanoTime());
+		
+		switch (frame[offset]) {
+		case ArduinoCommands.DATA_HEARTBEAT:
 			break;
 			
-		case ArduinoCommands.DATA_SENSOR_HUMIDITY:
-			intent = new Intent(ACTION_DATA_AVAILABLE_SENSOR_HUMIDITY);
+		case ArduinoCommands.DATA_ID:
+			// Next frame is the reply to this request
+			replyId = frame[offset + 1] & 0xFF;
 			break;
 			
+		case ArduinoCommands.DATA_SENSOR_TEMPERATURE:
+		case ArduinoCommands.DATA_SENSOR_HUMIDITY:
 		case ArduinoCommands.DATA_SENSOR_NO2:
-			intent = new Intent(ACTION_DATA_AVAILABLE_SENSOR_NO2);
-			break;
-			
 		case ArduinoCommands.DATA_SENSOR_CO:
-			intent = new Intent(ACTION_DATA_AVAILABLE_SENSOR_CO);
-			break;
-
 		case ArduinoCommands.DATA_SENSOR_ALTITUDE:
-			intent = new Intent(ACTION_DATA_AVAILABLE_SENSOR_ALTITUDE);
+			// Get 4 bytes as integer and then as float
+			float value = Float.intBitsToFloat(FrameDecoder.readInt(frame, offset + 1));
+			
+			// Sensor id is the READ_SENSOR_X command (lower 4 bits)
+			byte sensorId = (byte) (frame[offset] & 0x0F);
+			long timestamp = System.nanoTime();
+			
+			if (replyId >= 0) { completeRequest(replyId, sensorId, value, timestamp); }
+			replyId = -1;
+			
+			eventBus.publish(sensorId, value, timestamp);
+			break;
+			
+		case ArduinoCommands.DATA_ALL_SENSORS:
+			for (int i = 0; i < allSensorValues.length; i++) {
+				allSensorValues[i] = Float.intBitsToFloat(FrameDecoder.readInt(frame, offset + 1 + 4 * i));
+			}
+			long allTimestamp = System.nanoTime();
+			
+			if (replyId >= 0) { completeRequest(replyId, ArduinoCommands.READ_ALL_SENSORS, allSensorValues, allTimestamp); }
+			replyId = -1;
+			
+			eventBus.publishAll(allSensorValues, allTimestamp);
 			break;
 			
 		default:
 			return; // Do nothing
 		}
+	}
+	
+	private void completeRequest(int id, byte sensorId, float value, long timestamp) {
+		SensorReading reading = takeRequest(id, sensorId);
+		if (reading == null) { return; }
 		
-		// Get 4 bytes as integer
-		ByteBuffer bBuffer = ByteBuffer.wrap(buffer, 1, 4);
-		int intBytes = bBuffer.getInt();
+		reading.complete(value, timestamp);
+		metrics.roundTrip(reading.getRoundTripTime());
+	}
+	
+	private void completeRequest(int id, byte sensorId, float[] values, long timestamp) {
+		SensorReading reading = takeRequest(id, sensorId);
+		if (reading == null) { return; }
 		
-		intent.putExtra(VALUE, intBytes);
-    	LocalBroadcastManager.getInstance(context).sendBroadcast(intent);
+		reading.completeAll(values, timestamp);
+		metrics.roundTrip(reading.getRoundTripTime());
+	}
+	
+	/**
+	 * Remove a request from the pending requests
+	 * @return the request or null if we were not waiting for it
+	 */
+	private SensorReading takeRequest(int id, byte sensorId) {
+		synchronized (pendingReadings) {
+			SensorReading reading = pendingReadings[id];
+			if (reading == null || reading.getSensorId() != sensorId) {
+				metrics.replyUnmatched();
+				return null;
+			}
+			pendingReadings[id] = null;
+			return reading;
+		}
 	}
 }
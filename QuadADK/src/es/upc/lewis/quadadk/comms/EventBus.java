@@ -0,0 +1,345 @@
+package es.upc.lewis.quadadk.comms;
+
+/**
+ * Delivers events from the Arduino (sensor data, link state) to the registered listeners.
+ *
+ * publish() copies the event into a preallocated event object and returns, so the
+ * thread reading from the Arduino is never blocked by a listener. This thread calls
+ * the listeners, with primitive parameters (no Intents, no boxing).
+ *
+ * Link events go out of band: they have their own ring and their own thread, so they are never
+ * discarded to make room for sensor data nor delayed by a slow sensor listener.
+ *
+ * No memory is allocated after construction (except when registering listeners).
+ */
+public class EventBus extends Thread {
+	// Number of events that can be waiting to be delivered
+	private static final int POOL_SIZE = 64;
+	
+	// Number of link events that can be waiting (they alternate down and up, see publishLinkDown)
+	private static final int LINK_POOL_SIZE = 16;
+
+	// Event types
+	private static final int SENSOR      = 1;
+	private static final int ALL_SENSORS = 2;
+	private static final int LINK_DOWN   = 3;
+	private static final int LINK_UP     = 4;
+
+	// Number of values of an ALL_SENSORS event
+	public static final int NUMBER_OF_SENSORS = 5;
+
+	// Pooled event
+	private static class Event {
+		int type;
+		byte sensorId;
+		int reason;
+		float value;
+		final float[] values = new float[NUMBER_OF_SENSORS];
+		long timestamp;
+	}
+
+	// Ring of events (guarded by 'lock')
+	private final Object lock = new Object();
+	private final Event[] events = new Event[POOL_SIZE];
+	private int head = 0; // Next event to publish
+	private int tail = 0; // Next event to deliver
+	private int pending = 0;
+
+	// Ring of link events (guarded by 'linkLock')
+	private final Object linkLock = new Object();
+	private final Event[] linkEvents = new Event[LINK_POOL_SIZE];
+	private int linkHead = 0;
+	private int linkTail = 0;
+	private int linkPending = 0;
+
+	// Delivers the link events
+	private final Thread linkThread = new Thread("Link events") {
+		@Override
+		public void run() {
+			while (deliverNextLink(true)) { }
+		}
+	};
+
+	// Values of the event being delivered (only used by the delivering thread)
+	private final float[] deliveredValues = new float[NUMBER_OF_SENSORS];
+
+	// Copy on write (registering is rare, delivering is not)
+	private volatile SensorListener[] sensorListeners = new SensorListener[0];
+	private volatile LinkListener[] linkListeners = new LinkListener[0];
+
+	private volatile boolean enabled = true;
+
+	// Events discarded because nobody was taking them (pool full)
+	private volatile long droppedEvents = 0;
+	private volatile long droppedLinkEvents = 0;
+
+	public EventBus() {
+		for (int i = 0; i < POOL_SIZE; i++) { events[i] = new Event(); }
+		for (int i = 0; i < LINK_POOL_SIZE; i++) { linkEvents[i] = new Event(); }
+	}
+
+	/**
+	 * Start delivering (sensor and link events)
+	 */
+	@Override
+	public synchronized void start() {
+		linkThread.start();
+		super.start();
+	}
+
+	/**
+	 * Stop the threads once the pending events are delivered
+	 */
+	public void finish() {
+		enabled = false;
+		synchronized (lock) { lock.notifyAll(); }
+		synchronized (linkLock) { linkLock.notifyAll(); }
+	}
+
+	public synchronized void register(SensorListener listener) {
+		SensorListener[] listeners = new SensorListener[sensorListeners.length + 1];
+		System.arraycopy(sensorListeners, 0, listeners, 0, sensorListeners.length);
+		listeners[sensorListeners.length] = listener;
+		sensorListeners = listeners;
+	}
+
+	public synchronized void unregister(SensorListener listener) {
+		SensorListener[] current = sensorListeners;
+		for (int i = 0; i < current.length; i++) {
+			if (current[i] == listener) {
+				SensorListener[] listeners = new SensorListener[current.length - 1];
+				System.arraycopy(current, 0, listeners, 0, i);
+				System.arraycopy(current, i + 1, listeners, i, current.length - i - 1);
+				sensorListeners = listeners;
+				return;
+			}
+		}
+	}
+
+	public synchronized void register(LinkListener listener) {
+		LinkListener[] listeners = new LinkListener[linkListeners.length + 1];
+		System.arraycopy(linkListeners, 0, listeners, 0, linkListeners.length);
+		listeners[linkListeners.length] = listener;
+		linkListeners = listeners;
+	}
+
+	public synchronized void unregister(LinkListener listener) {
+		LinkListener[] current = linkListeners;
+		for (int i = 0; i < current.length; i++) {
+			if (current[i] == listener) {
+				LinkListener[] listeners = new LinkListener[current.length - 1];
+				System.arraycopy(current, 0, listeners, 0, i);
+				System.arraycopy(current, i + 1, listeners, i, current.length - i - 1);
+				linkListeners = listeners;
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Queue a sensor reading for delivery. Never blocks: if the pool is full
+	 * the oldest event is discarded
+	 * @param sensorId
+	 * @param value
+	 * @param timestampNanos
+	 */
+	public void publish(byte sensorId, float value, long timestampNanos) {
+		synchronized (lock) {
+			Event event = claimEvent();
+			event.type = SENSOR;
+			event.sensorId = sensorId;
+			event.value = value;
+			event.timestamp = timestampNanos;
+			commitEvent();
+		}
+	}
+
+	/**
+	 * Queue the readings of all the sensors for delivery. Never blocks (see publish)
+	 * @param values temperature, humidity, NO2, CO and altitude
+	 * @param timestampNanos
+	 */
+	public void publishAll(float[] values, long timestampNanos) {
+		synchronized (lock) {
+			Event event = claimEvent();
+			event.type = ALL_SENSORS;
+			System.arraycopy(values, 0, event.values, 0, NUMBER_OF_SENSORS);
+			event.timestamp = timestampNanos;
+			commitEvent();
+		}
+	}
+
+	/**
+	 * Queue a link down event for delivery. Never blocks.
+	 * LinkMonitor only publishes changes, so down and up alternate: if the link listeners are
+	 * so slow that LINK_POOL_SIZE events are waiting, the oldest down and up pair is discarded
+	 * (the listeners still get the last state)
+	 * @param reason see LinkListener
+	 * @param timestampNanos
+	 */
+	public void publishLinkDown(int reason, long timestampNanos) {
+		synchronized (linkLock) {
+			Event event = claimLinkEvent();
+			event.type = LINK_DOWN;
+			event.reason = reason;
+			event.timestamp = timestampNanos;
+			commitLinkEvent();
+		}
+	}
+
+	/**
+	 * Queue a link up event for delivery. Never blocks (see publishLinkDown)
+	 * @param timestampNanos
+	 */
+	public void publishLinkUp(long timestampNanos) {
+		synchronized (linkLock) {
+			Event event = claimLinkEvent();
+			event.type = LINK_UP;
+			event.timestamp = timestampNanos;
+			commitLinkEvent();
+		}
+	}
+
+	/**
+	 * Next free event. Call it holding 'lock'
+	 */
+	private Event claimEvent() {
+		if (pending == POOL_SIZE) {
+			// Discard the oldest
+			tail = (tail + 1) % POOL_SIZE;
+			pending--;
+			droppedEvents++;
+		}
+		return events[head];
+	}
+
+	/**
+	 * Make the claimed event visible to the delivering thread. Call it holding 'lock'
+	 */
+	private void commitEvent() {
+		head = (head + 1) % POOL_SIZE;
+		pending++;
+		lock.notifyAll();
+	}
+
+	/**
+	 * Next free link event. Call it holding 'linkLock'
+	 */
+	private Event claimLinkEvent() {
+		if (linkPending == LINK_POOL_SIZE) {
+			// Discard the oldest pair (a down and an up cancel out)
+			linkTail = (linkTail + 2) % LINK_POOL_SIZE;
+			linkPending -= 2;
+			droppedLinkEvents += 2;
+		}
+		return linkEvents[linkHead];
+	}
+
+	private void commitLinkEvent() {
+		linkHead = (linkHead + 1) % LINK_POOL_SIZE;
+		linkPending++;
+		linkLock.notifyAll();
+	}
+
+	@Override
+	public void run() {
+		// Until finish() is called and there are no events left
+		while (deliverNext(true)) { }
+	}
+
+	/**
+	 * Deliver all the pending events (link events first) from the calling thread. Useful when
+	 * the bus threads are not started (tests, benchmarks)
+	 * @return number of events delivered
+	 */
+	public int deliverPending() {
+		int delivered = 0;
+		while (deliverNextLink(false)) { delivered++; }
+		while (deliverNext(false)) { delivered++; }
+		return delivered;
+	}
+
+	/**
+	 * Deliver the oldest link event
+	 * @param block wait for an event if there are none
+	 * @return false if there was nothing to deliver
+	 */
+	private boolean deliverNextLink(boolean block) {
+		int type;
+		int reason;
+		long timestamp;
+
+		synchronized (linkLock) {
+			while (linkPending == 0) {
+				if (!block || !enabled) { return false; }
+				try { linkLock.wait(); } catch (InterruptedException e) { return false; }
+			}
+
+			Event event = linkEvents[linkTail];
+			type = event.type;
+			reason = event.reason;
+			timestamp = event.timestamp;
+
+			linkTail = (linkTail + 1) % LINK_POOL_SIZE;
+			linkPending--;
+		}
+
+		LinkListener[] listeners = linkListeners;
+		for (int i = 0; i < listeners.length; i++) {
+			if (type == LINK_DOWN) {
+				listeners[i].onLinkDown(reason, timestamp);
+			} else {
+				listeners[i].onLinkUp(timestamp);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Deliver the oldest sensor event
+	 * @param block wait for an event if there are none
+	 * @return false if there was nothing to deliver
+	 */
+	private boolean deliverNext(boolean block) {
+		int type;
+		byte sensorId;
+		float value;
+		long timestamp;
+
+		synchronized (lock) {
+			while (pending == 0) {
+				if (!block || !enabled) { return false; }
+				try { lock.wait(); } catch (InterruptedException e) { return false; }
+			}
+
+			// Copy it so the event can be reused while the listeners run
+			Event event = events[tail];
+			type = event.type;
+			sensorId = event.sensorId;
+			value = event.value;
+			timestamp = event.timestamp;
+			if (type == ALL_SENSORS) {
+				System.arraycopy(event.values, 0, deliveredValues, 0, NUMBER_OF_SENSORS);
+			}
+
+			tail = (tail + 1) % POOL_SIZE;
+			pending--;
+		}
+
+		SensorListener[] listeners = sensorListeners;
+		for (int i = 0; i < listeners.length; i++) {
+			if (type == SENSOR) {
+				listeners[i].onSensor(sensorId, value, timestamp);
+			} else {
+				listeners[i].onAllSensors(deliveredValues[0], deliveredValues[1], deliveredValues[2],
+						deliveredValues[3], deliveredValues[4], timestamp);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Number of events discarded because the pool (or the link events pool) was full
+	 */
+	public long getDroppedEvents() { return droppedEvents + droppedLinkEvents; }
+}
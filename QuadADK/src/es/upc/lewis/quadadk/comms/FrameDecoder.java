@@ -0,0 +1,154 @@
+package es.upc.lewis.quadadk.comms;
+
+/**
+ * Splits the byte stream coming from the Arduino into frames.
+ *
+ * A single read can contain several frames (the Arduino sent them close together)
+ * or only part of one (a frame split across two reads). Incomplete frames are kept
+ * until the rest of the bytes arrive and every complete frame is passed to the listener.
+ *
+ * No memory is allocated after construction.
+ */
+public class FrameDecoder {
+	/**
+	 * Receives decoded frames. The frame is only valid during the call
+	 * (the array is reused), copy it if you need to keep it.
+	 */
+	public interface Listener {
+		/**
+		 * @param frame array containing the frame
+		 * @param offset position of the first byte (the command)
+		 * @param length frame length, including the command
+		 */
+		public void onFrame(byte[] frame, int offset, int length);
+	}
+
+	// Data frames: command (1 byte) and a float (4 bytes)
+	public static final int SENSOR_FRAME_LENGTH = 5;
+	
+	// All sensors frame: command (1 byte) and 5 floats (4 bytes each)
+	public static final int ALL_SENSORS_FRAME_LENGTH = 21;
+	
+	// Request id of the next data frame: command (1 byte) and id (1 byte)
+	public static final int ID_FRAME_LENGTH = 2;
+	
+	// Heartbeat answer: command only
+	public static final int HEARTBEAT_FRAME_LENGTH = 1;
+
+	// Longest frame we can receive
+	public static final int MAX_FRAME_LENGTH = ALL_SENSORS_FRAME_LENGTH;
+
+	private Listener listener;
+
+	// Bytes of an incomplete frame (from previous reads)
+	private final byte[] pending = new byte[MAX_FRAME_LENGTH];
+	private int pendingLength = 0;
+	private int pendingFrameLength = 0;
+
+	// Bytes discarded because they were not the start of a known frame
+	private long discardedBytes = 0;
+
+	public FrameDecoder(Listener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * Returns the length of the frame that starts with this command
+	 * or -1 if the command is unknown.
+	 */
+	public static int frameLength(byte command) {
+		switch (command) {
+		case ArduinoCommands.DATA_SENSOR_TEMPERATURE:
+		case ArduinoCommands.DATA_SENSOR_HUMIDITY:
+		case ArduinoCommands.DATA_SENSOR_NO2:
+		case ArduinoCommands.DATA_SENSOR_CO:
+		case ArduinoCommands.DATA_SENSOR_ALTITUDE:
+			return SENSOR_FRAME_LENGTH;
+
+		case ArduinoCommands.DATA_ALL_SENSORS:
+			return ALL_SENSORS_FRAME_LENGTH;
+
+		case ArduinoCommands.DATA_ID:
+			return ID_FRAME_LENGTH;
+
+		case ArduinoCommands.DATA_HEARTBEAT:
+			return HEARTBEAT_FRAME_LENGTH;
+		default:
+			return -1;
+		}
+	}
+
+	/**
+	 * Decode a chunk of bytes as read from the stream
+	 * @param buffer
+	 * @param offset
+	 * @param length number of valid bytes
+	 */
+	public void decode(byte[] buffer, int offset, int length) {
+		int position = offset;
+		int end = offset + length;
+
+		// Complete the frame we started in a previous read
+		if (pendingLength > 0) {
+			int missing = pendingFrameLength - pendingLength;
+			int available = end - position;
+			int count = (available < missing) ? available : missing;
+
+			System.arraycopy(buffer, position, pending, pendingLength, count);
+			pendingLength += count;
+			position += count;
+
+			if (pendingLength < pendingFrameLength) { return; } // Still incomplete
+
+			pendingLength = 0;
+			listener.onFrame(pending, 0, pendingFrameLength);
+		}
+
+		// Frames in this chunk
+		while (position < end) {
+			int frameLength = frameLength(buffer[position]);
+
+			if (frameLength < 0) {
+				// Unknown command, skip this byte and try to resynchronize with the next one
+				discardedBytes++;
+				position++;
+				continue;
+			}
+
+			if (end - position < frameLength) {
+				// Incomplete frame, keep it for the next read
+				pendingFrameLength = frameLength;
+				pendingLength = end - position;
+				System.arraycopy(buffer, position, pending, 0, pendingLength);
+				return;
+			}
+
+			listener.onFrame(buffer, position, frameLength);
+			position += frameLength;
+		}
+	}
+
+	/**
+	 * Discard any incomplete frame (use it after a reconnection)
+	 */
+	public void reset() {
+		pendingLength = 0;
+	}
+
+	/**
+	 * Number of bytes discarded because they didn't belong to a known frame
+	 */
+	public long getDiscardedBytes() {
+		return discardedBytes;
+	}
+
+	/**
+	 * Decode a big endian int (as sent by the Arduino) from 4 bytes
+	 */
+	public static int readInt(byte[] buffer, int offset) {
+		return ((buffer[offset    ] & 0xFF) << 24)
+			 | ((buffer[offset + 1] & 0xFF) << 16)
+			 | ((buffer[offset + 2] & 0xFF) << 8)
+			 |  (buffer[offset + 3] & 0xFF);
+	}
+}
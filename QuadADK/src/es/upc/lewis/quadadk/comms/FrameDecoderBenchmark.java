@@ -0,0 +1,122 @@
+package es.upc.lewis.quadadk.comms;
+
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Pushes synthetic Arduino frames through a FrameDecoder and reports frames per second:
+ *   java es.upc.lewis.quadadk.comms.FrameDecoderBenchmark [-frames 10000000] [-chunk 64] [-seed 1]
+ *
+ * The stream has all the frame types (mostly sensor frames) and some bytes that are not
+ * a frame. It's cut in reads of 1 to -chunk bytes, so frames come split and coalesced like
+ * from the USB. Every frame and discarded byte is checked.
+ */
+public class FrameDecoderBenchmark {
+	// Synthetic stream, decoded again and again until all the frames are done
+	private static final int STREAM_FRAMES = 100000;
+
+	// One in this many frames is preceded by a byte that's not a command
+	private static final int GARBAGE_PERIOD = 1000;
+
+	private static final int ROUNDS = 5; // The first one warms up the JIT
+
+	/**
+	 * Counts the frames and adds up their bytes (so the JIT can't skip them)
+	 */
+	private static class Counter implements FrameDecoder.Listener {
+		long frames = 0;
+		long checksum = 0;
+
+		@Override
+		public void onFrame(byte[] frame, int offset, int length) {
+			frames++;
+			for (int i = 0; i < length; i++) { checksum += frame[offset + i]; }
+		}
+	}
+
+	public static void main(String[] args) {
+		long frames = 10000000;
+		int chunk = 64;
+		long seed = 1;
+
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-frames")) { frames = Long.parseLong(args[++i]); }
+			else if (args[i].equals("-chunk")) { chunk = Integer.parseInt(args[++i]); }
+			else if (args[i].equals("-seed")) { seed = Long.parseLong(args[++i]); }
+			else {
+				System.err.println("Usage: FrameDecoderBenchmark [-frames N] [-chunk bytes] [-seed N]");
+				System.exit(1);
+			}
+		}
+
+		Random random = new Random(seed);
+
+		// Stream and what decoding it has to give
+		byte[] stream = new byte[STREAM_FRAMES * FrameDecoder.MAX_FRAME_LENGTH + STREAM_FRAMES / GARBAGE_PERIOD + 1];
+		int length = 0;
+		long checksum = 0;
+		int garbage = 0;
+		byte[] payload = new byte[FrameDecoder.MAX_FRAME_LENGTH];
+		for (int i = 0; i < STREAM_FRAMES; i++) {
+			if (i % GARBAGE_PERIOD == 0) {
+				stream[length++] = 0x7F; // Not a command
+				garbage++;
+			}
+
+			byte command = randomCommand(random);
+			int frameLength = FrameDecoder.frameLength(command);
+			stream[length] = command;
+			random.nextBytes(payload);
+			for (int j = 1; j < frameLength; j++) { stream[length + j] = payload[j]; }
+			for (int j = 0; j < frameLength; j++) { checksum += stream[length + j]; }
+			length += frameLength;
+		}
+
+		// Read sizes, the same every pass
+		int[] reads = new int[4096];
+		for (int i = 0; i < reads.length; i++) { reads[i] = 1 + random.nextInt(chunk); }
+
+		long passes = Math.max(1, (frames + STREAM_FRAMES - 1) / STREAM_FRAMES);
+		System.out.println(String.format(Locale.US, "%d frames per round (%d bytes per pass, reads of 1-%d bytes)",
+				passes * STREAM_FRAMES, length, chunk));
+
+		for (int round = 0; round < ROUNDS; round++) {
+			Counter counter = new Counter();
+			FrameDecoder decoder = new FrameDecoder(counter);
+			int read = 0;
+
+			long start = System.nanoTime();
+			for (long pass = 0; pass < passes; pass++) {
+				int position = 0;
+				while (position < length) {
+					int count = Math.min(reads[read++ & (reads.length - 1)], length - position);
+					decoder.decode(stream, position, count);
+					position += count;
+				}
+			}
+			long elapsed = System.nanoTime() - start;
+
+			if (counter.frames != passes * STREAM_FRAMES || counter.checksum != passes * checksum
+					|| decoder.getDiscardedBytes() != passes * garbage) {
+				System.err.println("Wrong result: " + counter.frames + " frames, "
+						+ decoder.getDiscardedBytes() + " bytes discarded");
+				System.exit(1);
+			}
+
+			System.out.println(String.format(Locale.US, "round %d: %.1f million frames/s, %.1f MB/s%s",
+					round + 1, counter.frames * 1e3 / elapsed, passes * length * 1e3 / elapsed,
+					(round == 0) ? " (warm-up)" : ""));
+		}
+	}
+
+	/**
+	 * Mostly sensor frames, as in a mission
+	 */
+	private static byte randomCommand(Random random) {
+		int n = random.nextInt(100);
+		if (n < 70) { return (byte) (ArduinoCommands.DATA_SENSOR_TEMPERATURE + random.nextInt(5)); }
+		if (n < 80) { return ArduinoCommands.DATA_ALL_SENSORS; }
+		if (n < 90) { return ArduinoCommands.DATA_ID; }
+		return ArduinoCommands.DATA_HEARTBEAT;
+	}
+}
@@ -2,116 +2,272 @@ package es.upc.lewis.quadadk.comms;
 
 import java.io.BufferedReader;
 import java.io.File;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
+import java.util.concurrent.TimeUnit;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
 import org.apache.http.client.ClientProtocolException;
+import org.apache.http.client.methods.HttpEntityEnclosingRequestBase;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.HttpEntityWrapper;
 import org.apache.http.entity.mime.HttpMultipartMode;
 import org.apache.http.entity.mime.MultipartEntityBuilder;
+import org.apache.http.entity.mime.content.ByteArrayBody;
+import org.apache.http.entity.mime.content.ContentBody;
 import org.apache.http.entity.mime.content.FileBody;
 import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
 
 import es.upc.lewis.quadadk.mission.MissionThread;
 
-import android.util.Log;
-
+/**
+ * Calls to the GroundStation server.
+ *
+ * All the calls share one client with a pool of keep-alive connections, so a request
+ * doesn't pay a new TCP connection. It's thread safe (polling, sensor data and pictures
+ * are sent from different threads). Only APIs available in the Android HttpClient are used.
+ *
+ * Requests go through the UplinkScheduler in the class of their endpoint
+ * (mission status: CONTROL, values and logs: TELEMETRY, thumbnails: THUMBNAILS, pictures: PICTURES).
+ */
+@SuppressWarnings("deprecation")
 public class HTTPCalls{
-	private static String START = "start";
-	private static String END   = "end";
+	static final String START = "start";
+	static final String END   = "end";
 	
 	static int HTTPResponseOK = 200;
-	static String server_addr = "http://pbl1.webfactional.com/";
 	
-	/*** MISSION ***/
-	public static boolean get_startmission(String quadid){
-		DefaultHttpClient httpclient = new DefaultHttpClient();
+	// Status of a request that got no answer (connection failed, timeout, no uplink budget)
+	public static final int NO_RESPONSE = -1;
+	public static final String DEFAULT_SERVER_ADDRESS = "http://pbl1.webfactional.com/";
+	private static volatile String server_addr = DEFAULT_SERVER_ADDRESS;
+	
+	// Connection pool (all the calls go to the same server)
+	private static final int MAX_CONNECTIONS = 6;
+	private static final int MAX_CONNECTIONS_PER_ROUTE = 6;
+	
+	// Milliseconds
+	private static final int CONNECT_TIMEOUT = 5000;
+	private static final int READ_TIMEOUT    = 10000;
+	private static final int POOL_TIMEOUT    = 5000; // Waiting for a free connection
+	
+	// Connections idle for longer are closed before a request (servers usually close them after 5 s)
+	private static final long IDLE_TIMEOUT = 4000;
+	
+	private static final int SOCKET_BUFFER_SIZE = 8192; // Bytes
+	
+	// Request line and headers (asked to the UplinkScheduler before the body)
+	private static final int HEADER_BYTES = 200;
+	
+	private static DefaultHttpClient httpclient;
+	
+	/**
+	 * Shared client (created on first use)
+	 */
+	private static synchronized DefaultHttpClient getClient() {
+		if (httpclient == null) {
+			HttpParams params = new BasicHttpParams();
+			HttpConnectionParams.setConnectionTimeout(params, CONNECT_TIMEOUT);
+			HttpConnectionParams.setSoTimeout(params, READ_TIMEOUT);
+			HttpConnectionParams.setStaleCheckingEnabled(params, false); // Costs a read per request, see IDLE_TIMEOUT
+			HttpConnectionParams.setTcpNoDelay(params, true); // Small requests, don't wait for ACKs (Nagle)
+			HttpConnectionParams.setSocketBufferSize(params, SOCKET_BUFFER_SIZE);
+			HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1); // Keep-alive
+			ConnManagerParams.setMaxTotalConnections(params, MAX_CONNECTIONS);
+			ConnManagerParams.setMaxConnectionsPerRoute(params, new ConnPerRouteBean(MAX_CONNECTIONS_PER_ROUTE));
+			ConnManagerParams.setTimeout(params, POOL_TIMEOUT);
+			
+			SchemeRegistry registry = new SchemeRegistry();
+			registry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+			
+			httpclient = new DefaultHttpClient(new ThreadSafeClientConnManager(params, registry), params);
+		}
+		return httpclient;
+	}
+	
+	/**
+	 * Close all the connections. The next call creates a new client
+	 */
+	public static synchronized void shutdown() {
+		if (httpclient == null) { return; }
 		
-		HttpGet httpget = new HttpGet(server_addr+"get_startmission.php?id="+quadid);
-		HttpResponse response;
+		httpclient.getConnectionManager().shutdown();
+		httpclient = null;
+	}
+	
+	/**
+	 * Change the server (for example a local GroundStation)
+	 * @param address with the final '/', like "http://192.168.1.2:8080/"
+	 */
+	public static void setServerAddress(String address) {
+		if (!address.endsWith("/")) { address = address + "/"; }
+		server_addr = address;
+	}
+	
+	public static String getServerAddress() { return server_addr; }
+	
+	/**
+	 * Execute a request and read the response. The connection always goes back to the pool
+	 * @param priority UplinkScheduler class
+	 * @return response body (lines joined) or null if the request failed or the response was not OK
+	 */
+	private static String execute(HttpRequestBase request, int priority) {
+		StringBuilder body = new StringBuilder();
+		if (execute(request, priority, body) != HTTPResponseOK) { return null; }
+		
+		return body.toString();
+	}
+	
+	/**
+	 * Like execute(request, priority), for callers that need the status of a failed request
+	 * @param body where the response body goes (lines joined) if the response is OK, null to skip it
+	 * @return HTTP status or NO_RESPONSE
+	 */
+	private static int execute(HttpRequestBase request, int priority, StringBuilder body) {
+		HttpEntity entity = null;
+		
+		UplinkScheduler scheduler = UplinkScheduler.getInstance();
+		if (!scheduler.acquire(priority, HEADER_BYTES + request.getURI().toString().length())) { return NO_RESPONSE; }
+		
+		// The body asks for its bytes while it's written
+		if (request instanceof HttpEntityEnclosingRequestBase) {
+			HttpEntityEnclosingRequestBase enclosing = (HttpEntityEnclosingRequestBase) request;
+			if (enclosing.getEntity() != null) {
+				enclosing.setEntity(new ScheduledEntity(enclosing.getEntity(), scheduler, priority));
+			}
+		}
 		
 		try {
-			response = httpclient.execute(httpget);
-			HttpEntity entity = response.getEntity();
-			int myresponsecode = response.getStatusLine().getStatusCode();	
-			if(myresponsecode==HTTPResponseOK) {
-				InputStream content = entity.getContent();
-				BufferedReader reader = new BufferedReader(new InputStreamReader(content));
-				String line;
-				StringBuilder builder = new StringBuilder();
-				while ((line = reader.readLine()) != null) {
-					builder.append(line);
+			DefaultHttpClient client = getClient();
+			client.getConnectionManager().closeIdleConnections(IDLE_TIMEOUT, TimeUnit.MILLISECONDS);
+			
+			HttpResponse response = client.execute(request);
+			entity = response.getEntity();
+			
+			int myresponsecode = response.getStatusLine().getStatusCode();
+			if (myresponsecode != HTTPResponseOK || entity == null || body == null) { return myresponsecode; }
+			
+			InputStream content = entity.getContent();
+			BufferedReader reader = new BufferedReader(new InputStreamReader(content));
+			String line;
+			while ((line = reader.readLine()) != null) {
+				body.append(line);
+			}
+			content.close();
+			
+			return myresponsecode;
+		} catch (ClientProtocolException e) {
+			request.abort();
+		} catch (IOException e) {
+			request.abort();
+		} finally {
+			// Read what is left so the connection can be reused
+			if (entity != null) {
+				try { entity.consumeContent(); } catch (IOException e) { }
+			}
+		}
+		
+		return NO_RESPONSE;
+	}
+	
+	/**
+	 * Writes the body in chunks, each one granted by the UplinkScheduler
+	 */
+	private static class ScheduledEntity extends HttpEntityWrapper {
+		private final UplinkScheduler scheduler;
+		private final int priority;
+		
+		ScheduledEntity(HttpEntity entity, UplinkScheduler scheduler, int priority) {
+			super(entity);
+			this.scheduler = scheduler;
+			this.priority = priority;
+		}
+		
+		@Override
+		public void writeTo(OutputStream out) throws IOException {
+			wrappedEntity.writeTo(new FilterOutputStream(out) {
+				@Override
+				public void write(int b) throws IOException {
+					if (!scheduler.acquire(priority, 1)) { throw new InterruptedIOException(); }
+					out.write(b);
 				}
-				content.close();
-				entity.consumeContent();
-				if(builder.toString().equals(START)) {
-					return true;
-				} else {
-					return false;
+				
+				@Override
+				public void write(byte[] b, int off, int len) throws IOException {
+					while (len > 0) {
+						int chunk = Math.min(len, UplinkScheduler.CHUNK_SIZE);
+						if (!scheduler.acquire(priority, chunk)) { throw new InterruptedIOException(); }
+						out.write(b, off, chunk);
+						off += chunk;
+						len -= chunk;
+					}
 				}
-			}	
-		} catch (ClientProtocolException e) { } catch (IOException e) { }
+			});
+		}
+	}
+	
+	private static String keyParameter(String key) {
+		return (key != null) ? "&key=" + key : "";
+	}
+	
+	/*** MISSION ***/
+	public static boolean get_startmission(String quadid){
+		HttpGet httpget = new HttpGet(server_addr+"get_startmission.php?id="+quadid);
 		
-		return false;
-
+		return START.equals(execute(httpget, UplinkScheduler.CONTROL));
 	}
 	
 	public static boolean get_abortmission(String quadid){
-		DefaultHttpClient httpclient = new DefaultHttpClient();
-		
 		HttpGet httpget = new HttpGet(server_addr+"get_endmission.php?id="+quadid);
-		HttpResponse response;
 		
-		try {
-			response = httpclient.execute(httpget);
-			HttpEntity entity = response.getEntity();
-			int myresponsecode = response.getStatusLine().getStatusCode();	
-			if(myresponsecode==HTTPResponseOK) {
-				InputStream content = entity.getContent();
-				BufferedReader reader = new BufferedReader(new InputStreamReader(content));
-				String line;
-				StringBuilder builder = new StringBuilder();
-				while ((line = reader.readLine()) != null) {
-					builder.append(line);
-				}
-				content.close();
-				entity.consumeContent();
-				if(builder.toString().equals(END)) {
-					return true;
-				} else {
-					return false;
-				}
-			}	
-		} catch (ClientProtocolException e) { } catch (IOException e) { }
+		return END.equals(execute(httpget, UplinkScheduler.CONTROL));
+	}
+	
+	/**
+	 * Long poll: the server holds the request until the mission status of the quad
+	 * is not 'status' any more, or 'timeout' expires
+	 * @param quadid
+	 * @param status last status we know (START, END or anything else for none)
+	 * @param timeout seconds the server can hold the request
+	 * @return current status or null if the request failed (or the server doesn't have long polls)
+	 */
+	public static String wait_missionstatus(String quadid, String status, int timeout) {
+		HttpGet httpget = new HttpGet(server_addr+"wait_missionstatus.php?id="+quadid
+				+"&status="+URLEncoder.encode(status)+"&timeout="+timeout);
 		
-		return false;
-
+		// The answer can take up to 'timeout', don't give up before
+		HttpConnectionParams.setSoTimeout(httpget.getParams(), timeout * 1000 + READ_TIMEOUT);
+		
+		return execute(httpget, UplinkScheduler.CONTROL);
 	}
 	
 	//SYSTEM LOG
 	public static boolean debug_data(String quadid, String data) {
-		DefaultHttpClient httpclient = new DefaultHttpClient();
-		
-		@SuppressWarnings("deprecation")
 		String params = URLEncoder.encode(data);
 		HttpGet httpget = new HttpGet(server_addr+"send_logs.php?id="+quadid+"&data="+params);
-		HttpResponse response;
-		
-		try{
-			response = httpclient.execute(httpget);
-			int myresponsecode=response.getStatusLine().getStatusCode();
-			if(myresponsecode==HTTPResponseOK) {
-				return true;
-			} else {
-				return false;
-			}
-		}catch (ClientProtocolException e) { } catch (IOException e) { }
 		
-		return false;
+		return execute(httpget, UplinkScheduler.TELEMETRY) != null;
 	}
 	
 	/**
@@ -122,66 +278,77 @@ public class HTTPCalls{
 	 * @return
 	 */
 	public static boolean send_data(String quadid, String varname, String value) {
-		DefaultHttpClient httpclient = new DefaultHttpClient();
-		
 		HttpGet httpget = new HttpGet(server_addr+"send_data.php?id="+quadid+"&varname="+varname+"&value="+value);
-		HttpResponse response;
-		
-		try{
-			response = httpclient.execute(httpget);
-			int myresponsecode=response.getStatusLine().getStatusCode();
-			if(myresponsecode==HTTPResponseOK) {
-				return true;
-			} else {
-				return false;
-			}
-		}catch (ClientProtocolException e) { } catch (IOException e) { }
 		
-		return false;
+		return execute(httpget, UplinkScheduler.TELEMETRY) != null;
+	}
+	
+	/**
+	 * Several values in a single request (see TelemetryBatcher)
+	 * @param quadid
+	 * @param json TelemetryBatch
+	 * @return HTTP status (HTTPResponseOK if it was accepted) or NO_RESPONSE
+	 */
+	public static int send_data_batch(String quadid, String json) {
+		return send_data_batch(quadid, json, null);
+	}
+	
+	/**
+	 * @param key idempotency key, the server ignores a batch with a key it already has (null for none)
+	 */
+	public static int send_data_batch(String quadid, String json, String key) {
+		HttpPost httppost = new HttpPost(server_addr+"send_data_batch.php?id="+quadid+keyParameter(key));
+		
+		try {
+			ByteArrayEntity entity = new ByteArrayEntity(json.getBytes("UTF-8"));
+			entity.setContentType("application/json; charset=UTF-8");
+			httppost.setEntity(entity);
+		} catch (UnsupportedEncodingException e) {
+			return NO_RESPONSE;
+		}
+		
+		return execute(httppost, UplinkScheduler.TELEMETRY, null);
 	}
 	
 	//SEND PICTURE
 	public static boolean send_picture(File file, String pic_id) {
-		DefaultHttpClient httpclient = new DefaultHttpClient();
-		
-		HttpPost httppost = new HttpPost(server_addr+"send_picture.php?id="+MissionThread.QUAD_ID+"&pic="+pic_id);
-		FileBody fb = new FileBody(file);
+		return send_picture(file, pic_id, null);
+	}
+	
+	/**
+	 * @param key idempotency key, the server ignores a picture with a key it already has (null for none)
+	 */
+	public static boolean send_picture(File file, String pic_id, String key) {
+		return send_picture(new FileBody(file), pic_id, null, key);
+	}
+	
+	/**
+	 * Send a picture straight from memory, without waiting for (or reading) a file
+	 * @param data JPEG
+	 * @param key idempotency key (null for none)
+	 */
+	public static boolean send_picture(byte[] data, String pic_id, String key) {
+		return send_picture(data, pic_id, null, key);
+	}
+	
+	/**
+	 * @param tier quality of a smaller copy (see PictureTiers), null for the full picture
+	 */
+	public static boolean send_picture(byte[] data, String pic_id, String tier, String key) {
+		return send_picture(new ByteArrayBody(data, ContentType.create("image/jpeg"), pic_id + ".jpg"), pic_id, tier, key);
+	}
+	
+	private static boolean send_picture(ContentBody body, String pic_id, String tier, String key) {
+		String tierParameter = (tier != null) ? "&tier=" + tier : "";
+		HttpPost httppost = new HttpPost(server_addr+"send_picture.php?id="+MissionThread.QUAD_ID+"&pic="+pic_id+tierParameter+keyParameter(key));
 		MultipartEntityBuilder buildern = MultipartEntityBuilder.create();
 		buildern.setMode(HttpMultipartMode.BROWSER_COMPATIBLE);
-		buildern.addPart("userfile",fb);
+		buildern.addPart("userfile",body);
 		final HttpEntity resentity = buildern.build();
 		//httppost.setHeader("Content-Type", "image/jpg");
 		//httppost.setHeader("file","myfilename.jpg");
 		httppost.setEntity(resentity);
-		HttpResponse response;
-		
-		try {
-			response = httpclient.execute(httppost);
-			
-			HttpEntity entity = response.getEntity();
-			
-			int myresponsecode = response.getStatusLine().getStatusCode();
-			if(myresponsecode==HTTPResponseOK) {
-				
-				InputStream content = entity.getContent();
-				BufferedReader reader = new BufferedReader(new InputStreamReader(content));
-				String line;
-				StringBuilder builder = new StringBuilder();
-				while ((line = reader.readLine()) != null) {
-					builder.append(line);
-				}
-				content.close();
-				entity.consumeContent();
-				
-				Log.d("TESTS", builder.toString());
-				
-				return true;
-			} else {
-				return false;
-			}
-		}
-		catch(ClientProtocolException e) { } catch(IOException e) { }
 		
-		return false;
+		return execute(httppost, (tier != null) ? UplinkScheduler.THUMBNAILS : UplinkScheduler.PICTURES) != null;
 	}
 }
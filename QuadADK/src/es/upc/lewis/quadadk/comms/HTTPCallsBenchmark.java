@@ -0,0 +1,121 @@
+package es.upc.lewis.quadadk.comms;
+
+import java.io.IOException;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.util.EntityUtils;
+
+import es.upc.lewis.quadadk.tools.GroundStationServer;
+
+/**
+ * Requests per second of send_data with a new client per request (as HTTPCalls was) and with
+ * the shared pooled client of HTTPCalls, against a GroundStationServer on this computer
+ * or a server given with -server (a GroundStationServer main() over a real link):
+ *   java es.upc.lewis.quadadk.comms.HTTPCallsBenchmark [-requests 2000] [-threads 1] [-server http://host:8080/]
+ *
+ * Compiling needs the Android jar (HTTPCalls uses MissionThread), running doesn't.
+ * Running needs commons-logging, which HttpClient uses (Android has its own).
+ */
+@SuppressWarnings("deprecation")
+public class HTTPCallsBenchmark {
+	private static final String QUAD_ID = "benchmark";
+
+	private static final int ROUNDS = 3; // The first one warms up the JIT (and the pool)
+
+	public static void main(String[] args) throws Exception {
+		int requests = 2000;
+		int threads = 1;
+		String address = null;
+
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-requests")) { requests = Integer.parseInt(args[++i]); }
+			else if (args[i].equals("-threads")) { threads = Integer.parseInt(args[++i]); }
+			else if (args[i].equals("-server")) { address = args[++i]; }
+			else {
+				System.err.println("Usage: HTTPCallsBenchmark [-requests N] [-threads N] [-server address]");
+				System.exit(1);
+			}
+		}
+
+		GroundStationServer server = null;
+		if (address == null) {
+			server = new GroundStationServer(0);
+			server.start();
+			address = server.getAddress();
+		}
+		HTTPCalls.setServerAddress(address);
+		System.out.println(requests + " requests to " + HTTPCalls.getServerAddress() + ", " + threads + " threads");
+
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			for (int round = 0; round < ROUNDS; round++) {
+				String warmUp = (round == 0) ? " (warm-up)" : "";
+				System.out.println(String.format(Locale.US, "round %d: new client %.0f requests/s, pooled %.0f requests/s%s",
+						round + 1, run(executor, threads, requests, false), run(executor, threads, requests, true), warmUp));
+			}
+		} finally {
+			executor.shutdown();
+			HTTPCalls.shutdown();
+			if (server != null) { server.finish(); }
+		}
+	}
+
+	/**
+	 * @return requests per second
+	 */
+	private static double run(ExecutorService executor, int threads, final int requests, final boolean isPooled)
+			throws Exception {
+		final AtomicInteger next = new AtomicInteger();
+		final AtomicInteger failed = new AtomicInteger();
+
+		Callable<Void> task = new Callable<Void>() {
+			@Override
+			public Void call() {
+				int number;
+				while ((number = next.getAndIncrement()) < requests) {
+					String value = Integer.toString(number);
+					boolean isSent = isPooled ? HTTPCalls.send_data(QUAD_ID, "temp1", value) : sendWithNewClient(value);
+					if (!isSent) { failed.incrementAndGet(); }
+				}
+				return null;
+			}
+		};
+
+		long start = System.nanoTime();
+		Future<?>[] futures = new Future<?>[threads];
+		for (int i = 0; i < threads; i++) { futures[i] = executor.submit(task); }
+		for (Future<?> future : futures) { future.get(); }
+		long elapsed = System.nanoTime() - start;
+
+		if (failed.get() > 0) { System.err.println(failed.get() + " requests failed"); }
+		return requests * 1e9 / elapsed;
+	}
+
+	/**
+	 * send_data before the shared client: a new client (and TCP connection) for every request
+	 */
+	private static boolean sendWithNewClient(String value) {
+		DefaultHttpClient client = new DefaultHttpClient();
+		try {
+			HttpResponse response = client.execute(new HttpGet(HTTPCalls.getServerAddress()
+					+ "send_data.php?id=" + QUAD_ID + "&varname=temp1&value=" + value));
+			HttpEntity entity = response.getEntity();
+			if (entity != null) { EntityUtils.consume(entity); }
+			return response.getStatusLine().getStatusCode() == HTTPCalls.HTTPResponseOK;
+		} catch (IOException e) {
+			return false;
+		} finally {
+			// The old code left it to the garbage collector, that would run out of sockets here
+			client.getConnectionManager().shutdown();
+		}
+	}
+}
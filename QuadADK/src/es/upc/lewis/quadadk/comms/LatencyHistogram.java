@@ -0,0 +1,85 @@
+package es.upc.lewis.quadadk.comms;
+
+/**
+ * Histogram of latencies (nanoseconds) with logarithmic buckets.
+ *
+ * Each power of two is split in 8 buckets, so percentiles have less than 12.5% error.
+ * Memory is fixed (about 2.5 KB) no matter how many values are recorded.
+ */
+public class LatencyHistogram {
+	// Buckets per power of two (2^SUB_BUCKET_BITS)
+	private static final int SUB_BUCKET_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+	// Highest value: 2^(MAX_EXPONENT + 1) - 1 nanoseconds (more than half an hour)
+	private static final int MAX_EXPONENT = 40;
+	private static final long MAX_VALUE = (1L << (MAX_EXPONENT + 1)) - 1;
+
+	private final long[] buckets = new long[(MAX_EXPONENT - SUB_BUCKET_BITS + 2) << SUB_BUCKET_BITS];
+	private long count = 0;
+	private long max = 0;
+	private long sum = 0;
+
+	public synchronized void record(long value) {
+		if (value < 0) { value = 0; }
+		if (value > MAX_VALUE) { value = MAX_VALUE; }
+
+		buckets[bucket(value)]++;
+		count++;
+		sum += value;
+		if (value > max) { max = value; }
+	}
+
+	public synchronized void reset() {
+		for (int i = 0; i < buckets.length; i++) { buckets[i] = 0; }
+		count = 0;
+		max = 0;
+		sum = 0;
+	}
+
+	public synchronized long getCount() { return count; }
+
+	public synchronized long getMax() { return max; }
+
+	public synchronized long getMean() { return (count == 0) ? 0 : sum / count; }
+
+	/**
+	 * Value below which there are 'percentile' of the recorded values
+	 * (upper limit of its bucket, never more than the maximum)
+	 * @param percentile from 0 to 1 (0.5 is the median)
+	 */
+	public synchronized long getPercentile(double percentile) {
+		if (count == 0) { return 0; }
+
+		long rank = (long) Math.ceil(percentile * count);
+		if (rank < 1) { rank = 1; }
+
+		long accumulated = 0;
+		for (int i = 0; i < buckets.length; i++) {
+			accumulated += buckets[i];
+			if (accumulated >= rank) {
+				long upper = upperLimit(i);
+				return (upper < max) ? upper : max;
+			}
+		}
+		return max;
+	}
+
+	private static int bucket(long value) {
+		// Small values have their own bucket
+		if (value < SUB_BUCKETS) { return (int) value; }
+
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int subBucket = (int) (value >> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return ((exponent - SUB_BUCKET_BITS + 1) << SUB_BUCKET_BITS) + subBucket;
+	}
+
+	private static long upperLimit(int bucket) {
+		if (bucket < SUB_BUCKETS) { return bucket; }
+
+		int exponent = (bucket >> SUB_BUCKET_BITS) + SUB_BUCKET_BITS - 1;
+		long subBucket = bucket & (SUB_BUCKETS - 1);
+		long width = 1L << (exponent - SUB_BUCKET_BITS);
+		return ((SUB_BUCKETS + subBucket) << (exponent - SUB_BUCKET_BITS)) + width - 1;
+	}
+}
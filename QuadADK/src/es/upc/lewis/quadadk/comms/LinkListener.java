@@ -0,0 +1,25 @@
+package es.upc.lewis.quadadk.comms;
+
+/**
+ * Receives changes of the Android - Arduino link state (see EventBus and LinkMonitor)
+ */
+public interface LinkListener {
+	// Reasons of a link down
+	public static final int MISSED_HEARTBEATS = 1; // The Arduino stopped answering
+	public static final int READ_ERROR        = 2; // The connection failed
+	public static final int END_OF_STREAM     = 3; // The connection was closed by the other end
+	public static final int CLOSED            = 4; // We closed the connection
+
+	/**
+	 * Called from the "Link events" thread of the EventBus (not the one of the sensor events)
+	 * @param reason MISSED_HEARTBEATS, READ_ERROR, END_OF_STREAM or CLOSED
+	 * @param timestampNanos System.nanoTime() when the link was considered down
+	 */
+	public void onLinkDown(int reason, long timestampNanos);
+
+	/**
+	 * The Arduino answers again after a link down. Called from the "Link events" thread of the EventBus
+	 * @param timestampNanos System.nanoTime() of the first heartbeat received
+	 */
+	public void onLinkUp(long timestampNanos);
+}
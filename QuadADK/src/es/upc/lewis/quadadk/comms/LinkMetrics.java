@@ -0,0 +1,151 @@
+package es.upc.lewis.quadadk.comms;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters and latencies of the Android - Arduino link (see CommunicationsThread.getMetrics).
+ * Memory is fixed, it can run for the whole flight.
+ */
+public class LinkMetrics {
+	// Commands sent and frames received, by command
+	private final AtomicLongArray commandsOut = new AtomicLongArray(256);
+	private final AtomicLongArray framesIn = new AtomicLongArray(256);
+
+	private final AtomicLong bytesOut = new AtomicLong();
+	private final AtomicLong bytesIn = new AtomicLong();
+
+	// Received bytes that were not part of a known frame
+	private volatile long discardedBytes = 0;
+	// Commands not sent (queue full or connection lost)
+	private final AtomicLong droppedCommands = new AtomicLong();
+	// Replies to requests we were not waiting for (timed out or unknown id)
+	private final AtomicLong unmatchedReplies = new AtomicLong();
+	// Link down events (see LinkMonitor)
+	private final AtomicLong linkLosses = new AtomicLong();
+
+	// From sensor request to reply
+	private final LatencyHistogram roundTrip = new LatencyHistogram();
+	// From queuing a command until its USB write finished
+	private final LatencyHistogram writeLatency = new LatencyHistogram();
+
+	// To calculate rates (bytes per second) between two reports
+	private final long startTime = System.nanoTime();
+	private long lastReportTime = startTime;
+	private long lastReportBytesOut = 0;
+	private long lastReportBytesIn = 0;
+
+	void commandQueued(byte command) { commandsOut.incrementAndGet(command & 0xFF); }
+
+	void commandDropped() { droppedCommands.incrementAndGet(); }
+
+	void commandsWritten(int bytes) { bytesOut.addAndGet(bytes); }
+
+	void commandLatency(long nanos) { writeLatency.record(nanos); }
+
+	void bytesRead(int bytes) { bytesIn.addAndGet(bytes); }
+
+	void frameReceived(byte command) { framesIn.incrementAndGet(command & 0xFF); }
+
+	void setDiscardedBytes(long bytes) { discardedBytes = bytes; }
+
+	void replyUnmatched() { unmatchedReplies.incrementAndGet(); }
+
+	void roundTrip(long nanos) { roundTrip.record(nanos); }
+
+	void linkLost() { linkLosses.incrementAndGet(); }
+
+	public long getBytesOut() { return bytesOut.get(); }
+
+	public long getBytesIn() { return bytesIn.get(); }
+
+	public long getCommandsOut(byte command) { return commandsOut.get(command & 0xFF); }
+
+	public long getFramesIn(byte command) { return framesIn.get(command & 0xFF); }
+
+	public long getDiscardedBytes() { return discardedBytes; }
+
+	public long getDroppedCommands() { return droppedCommands.get(); }
+
+	public long getUnmatchedReplies() { return unmatchedReplies.get(); }
+
+	public long getLinkLosses() { return linkLosses.get(); }
+
+	public LatencyHistogram getRoundTrip() { return roundTrip; }
+
+	public LatencyHistogram getWriteLatency() { return writeLatency; }
+
+	/**
+	 * Human readable report. Rates are since the previous report
+	 */
+	public synchronized String report() {
+		long now = System.nanoTime();
+		double seconds = (now - lastReportTime) / 1e9;
+		long out = bytesOut.get();
+		long in = bytesIn.get();
+
+		StringBuilder builder = new StringBuilder();
+		builder.append("Link metrics (").append((now - startTime) / 1000000000L).append(" s)\n");
+		builder.append("Bytes out: ").append(out)
+			.append(" (").append(rate(out - lastReportBytesOut, seconds)).append(" B/s)\n");
+		builder.append("Bytes in: ").append(in)
+			.append(" (").append(rate(in - lastReportBytesIn, seconds)).append(" B/s)\n");
+		builder.append("Discarded bytes: ").append(discardedBytes).append("\n");
+		builder.append("Dropped commands: ").append(droppedCommands.get()).append("\n");
+		builder.append("Unmatched replies: ").append(unmatchedReplies.get()).append("\n");
+		builder.append("Link losses: ").append(linkLosses.get()).append("\n");
+
+		builder.append("Commands out:");
+		appendCounters(builder, commandsOut);
+		builder.append("Frames in:");
+		appendCounters(builder, framesIn);
+
+		appendLatency(builder, "Sensor round trip", roundTrip);
+		appendLatency(builder, "Command write latency", writeLatency);
+
+		lastReportTime = now;
+		lastReportBytesOut = out;
+		lastReportBytesIn = in;
+
+		return builder.toString();
+	}
+
+	/**
+	 * Append the report to a file
+	 * @param file
+	 * @throws IOException
+	 */
+	public void writeReport(File file) throws IOException {
+		FileWriter writer = new FileWriter(file, true);
+		try {
+			writer.write(report());
+			writer.write("\n");
+		} finally {
+			writer.close();
+		}
+	}
+
+	private static long rate(long bytes, double seconds) {
+		return (seconds > 0) ? (long) (bytes / seconds) : 0;
+	}
+
+	private static void appendCounters(StringBuilder builder, AtomicLongArray counters) {
+		for (int i = 0; i < counters.length(); i++) {
+			long count = counters.get(i);
+			if (count > 0) {
+				builder.append(" 0x").append(Integer.toHexString(i)).append("=").append(count);
+			}
+		}
+		builder.append("\n");
+	}
+
+	private static void appendLatency(StringBuilder builder, String name, LatencyHistogram histogram) {
+		builder.append(name).append(" [us]: n=").append(histogram.getCount())
+			.append(" p50=").append(histogram.getPercentile(0.5) / 1000)
+			.append(" p99=").append(histogram.getPercentile(0.99) / 1000)
+			.append(" max=").append(histogram.getMax() / 1000).append("\n");
+	}
+}
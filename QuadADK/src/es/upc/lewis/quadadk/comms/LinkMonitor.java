@@ -0,0 +1,138 @@
+package es.upc.lewis.quadadk.comms;
+
+/**
+ * Sends heartbeats to the Arduino and checks it answers them.
+ *
+ * A HEARTBEAT command (with the period) is sent every period and the Arduino answers each one
+ * with DATA_HEARTBEAT. Any frame received shows the link is alive. If nothing arrives for
+ * MISSED_HEARTBEATS periods, or the connection fails, a link down event is published on the
+ * EventBus (see LinkListener). With the default period the link down is raised at most 400 ms
+ * after the last frame.
+ *
+ * The Arduino doesn't answer while it reads the sensors (READ_ALL_SENSORS takes about a second),
+ * so after a sensor request the silence allowed is SENSOR_READ_TIME instead (see sensorRequested).
+ *
+ * The Arduino uses the period to detect the phone went silent (it falls back to loiter).
+ * While the link is down only one heartbeat every PROBE_PERIODS periods is sent, so the Arduino
+ * sees the phone silent and falls back, and its answer still shows when the link is back.
+ */
+public class LinkMonitor extends Thread {
+	// Milliseconds
+	public static final int DEFAULT_HEARTBEAT_PERIOD = 100;
+	
+	// Heartbeats without answer before the link is down (same as the Arduino)
+	public static final int MISSED_HEARTBEATS = 3;
+	
+	// Longest the Arduino can be busy with a sensor read (milliseconds). The slowest command is
+	// READ_ALL_SENSORS: two DHT reads (up to 270 ms each), the EggBus and the MPL3115A2 altitude
+	// (polled for up to 512 ms), about 1.1 s
+	public static final int SENSOR_READ_TIME = 1500;
+	
+	// Periods between heartbeats while the link is down (more than the MISSED_HEARTBEATS the Arduino waits)
+	public static final int PROBE_PERIODS = 2 * MISSED_HEARTBEATS;
+	
+	private CommandWriter writer;
+	private EventBus eventBus;
+	private LinkMetrics metrics;
+	
+	private volatile boolean enabled = true;
+	private volatile int period = DEFAULT_HEARTBEAT_PERIOD;
+	
+	// System.nanoTime() of the last frame received
+	private volatile long lastFrame = System.nanoTime();
+	
+	// System.nanoTime() until which the Arduino may be reading sensors
+	private volatile long sensorReadEnd = 0;
+	
+	// Guarded by 'this'
+	private boolean isLinkUp = true;
+	
+	LinkMonitor(CommandWriter writer, EventBus eventBus, LinkMetrics metrics) {
+		this.writer = writer;
+		this.eventBus = eventBus;
+		this.metrics = metrics;
+	}
+	
+	/**
+	 * Stop sending heartbeats
+	 */
+	public void finish() {
+		enabled = false;
+		interrupt();
+	}
+	
+	/**
+	 * Heartbeat period. The next heartbeat tells the Arduino
+	 * @param period milliseconds (1 to 65535)
+	 */
+	public void setHeartbeatPeriod(int period) {
+		if (period < 1 || period > 0xFFFF) { throw new IllegalArgumentException("Invalid period"); }
+		this.period = period;
+	}
+	
+	public int getHeartbeatPeriod() { return period; }
+	
+	public synchronized boolean isLinkUp() { return isLinkUp; }
+	
+	@Override
+	public void run() {
+		lastFrame = System.nanoTime();
+		int skipped = 0;
+		
+		while (enabled) {
+			int currentPeriod = period;
+			
+			// Answers missing? (not while the Arduino is reading sensors)
+			long now = System.nanoTime();
+			long silence = now - lastFrame;
+			if (silence > MISSED_HEARTBEATS * currentPeriod * 1000000L && now - sensorReadEnd > 0) {
+				linkFailed(LinkListener.MISSED_HEARTBEATS);
+			}
+			
+			// Never waits for a full queue (the checks above must keep their period)
+			if (isLinkUp() || ++skipped >= PROBE_PERIODS) {
+				writer.offer(ArduinoCommands.HEARTBEAT, currentPeriod);
+				skipped = 0;
+			}
+			
+			try { Thread.sleep(currentPeriod); } catch (InterruptedException e) { return; }
+		}
+	}
+	
+	/**
+	 * A sensor read was sent, the Arduino may not answer for SENSOR_READ_TIME
+	 * @param timestamp System.nanoTime()
+	 */
+	void sensorRequested(long timestamp) {
+		// Called with the pending requests locked (see CommunicationsThread.requestSensor)
+		long end = timestamp + SENSOR_READ_TIME * 1000000L;
+		if (end - sensorReadEnd > 0) { sensorReadEnd = end; }
+	}
+	
+	/**
+	 * A frame (a DATA_HEARTBEAT or any other) arrived
+	 * @param timestamp System.nanoTime()
+	 */
+	void frameReceived(long timestamp) {
+		lastFrame = timestamp;
+		
+		synchronized (this) {
+			if (isLinkUp) { return; }
+			isLinkUp = true;
+		}
+		eventBus.publishLinkUp(timestamp);
+	}
+	
+	/**
+	 * The link is down (only the first call is published until it's up again)
+	 * @param reason see LinkListener
+	 */
+	void linkFailed(int reason) {
+		synchronized (this) {
+			if (!isLinkUp) { return; }
+			isLinkUp = false;
+		}
+		metrics.linkLost();
+		eventBus.publishLinkDown(reason, System.nanoTime());
+	}
+}
@@ -0,0 +1,119 @@
+package es.upc.lewis.quadadk.comms;
+
+import java.io.IOException;
+
+/**
+ * In-memory transport. Two connected ends (see createPair): what one end writes, the other reads.
+ * Used to run the protocol without the phone and the ADK board (see ArduinoEmulator).
+ *
+ * Each direction is a fixed size ring buffer, no memory is allocated after construction.
+ * write() blocks while the buffer is full, read() blocks while it is empty.
+ */
+public class LoopbackTransport implements Transport {
+	// Bytes that can be waiting in each direction
+	private static final int DEFAULT_CAPACITY = 16384;
+
+	// Ring buffer of one direction
+	private static class Pipe {
+		private final byte[] buffer;
+		private int head = 0; // Next byte to write
+		private int tail = 0; // Next byte to read
+		private int count = 0;
+		private boolean isClosed = false;
+
+		Pipe(int capacity) {
+			buffer = new byte[capacity];
+		}
+
+		synchronized int read(byte[] data, int offset, int length) throws IOException {
+			while (count == 0 && !isClosed) {
+				try { wait(); } catch (InterruptedException e) { throw new IOException("Interrupted"); }
+			}
+			if (count == 0) { return -1; } // Closed and empty
+
+			int bytes = (length < count) ? length : count;
+			for (int i = 0; i < bytes; i++) {
+				data[offset + i] = buffer[tail];
+				tail = (tail + 1) % buffer.length;
+			}
+			count -= bytes;
+
+			notifyAll();
+			return bytes;
+		}
+
+		synchronized void write(byte[] data, int offset, int length) throws IOException {
+			while (length > 0) {
+				while (count == buffer.length && !isClosed) {
+					try { wait(); } catch (InterruptedException e) { throw new IOException("Interrupted"); }
+				}
+				if (isClosed) { throw new IOException("Transport closed"); }
+
+				int free = buffer.length - count;
+				int bytes = (length < free) ? length : free;
+				for (int i = 0; i < bytes; i++) {
+					buffer[head] = data[offset + i];
+					head = (head + 1) % buffer.length;
+				}
+				count += bytes;
+				offset += bytes;
+				length -= bytes;
+
+				notifyAll();
+			}
+		}
+
+		synchronized void close() {
+			isClosed = true;
+			notifyAll();
+		}
+	}
+
+	private final Pipe input;
+	private final Pipe output;
+
+	private LoopbackTransport(Pipe input, Pipe output) {
+		this.input = input;
+		this.output = output;
+	}
+
+	/**
+	 * Two connected ends
+	 * @return [0] for the phone side (CommunicationsThread), [1] for the Arduino side
+	 */
+	public static LoopbackTransport[] createPair() {
+		return createPair(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Two connected ends
+	 * @param capacity bytes that can be waiting in each direction
+	 */
+	public static LoopbackTransport[] createPair(int capacity) {
+		Pipe phoneToArduino = new Pipe(capacity);
+		Pipe arduinoToPhone = new Pipe(capacity);
+
+		return new LoopbackTransport[] {
+				new LoopbackTransport(arduinoToPhone, phoneToArduino),
+				new LoopbackTransport(phoneToArduino, arduinoToPhone) };
+	}
+
+	@Override
+	public int read(byte[] buffer, int offset, int length) throws IOException {
+		return input.read(buffer, offset, length);
+	}
+
+	@Override
+	public void write(byte[] buffer, int offset, int length) throws IOException {
+		output.write(buffer, offset, length);
+	}
+
+	/**
+	 * Close both directions. The other end reads the pending bytes and then end of stream
+	 */
+	@Override
+	public void close() {
+		input.close();
+		output.close();
+	}
+}
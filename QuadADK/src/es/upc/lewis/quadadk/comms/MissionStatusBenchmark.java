@@ -0,0 +1,138 @@
+package es.upc.lewis.quadadk.comms;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+
+import es.upc.lewis.quadadk.tools.GroundStationServer;
+
+/**
+ * Time from an abort on the server to the ABORT_MISSION action, with the long poll and with
+ * polling (a server without long polls), using a GroundStationServer on this computer:
+ *   java es.upc.lewis.quadadk.comms.MissionStatusBenchmark [-aborts 10] [-latency 0] [-seed 1]
+ *
+ * -latency (milliseconds) delays every request before the server handles it, like a slow link
+ * (a long poll already held when the abort comes has paid it).
+ * The aborts come at random times, so polling is measured at any point of its period.
+ *
+ * Compiling needs the Android jar (HTTPCalls uses MissionThread), running doesn't
+ * (only commons-logging, see HTTPCallsBenchmark).
+ */
+public class MissionStatusBenchmark {
+	private static final String QUAD_ID = "benchmark";
+
+	// Longest wait for an action (milliseconds)
+	private static final long ACTION_TIMEOUT = 10000;
+
+	/**
+	 * A client during a mission that keeps the time of the last ABORT_MISSION
+	 */
+	private static class AbortRecorder extends MissionStatusClient {
+		private long abortTime = 0; // System.nanoTime(), guarded by 'this'
+
+		AbortRecorder() {
+			super("Mission status benchmark", QUAD_ID);
+			setDaemon(true);
+		}
+
+		@Override
+		protected boolean isMissionRunning() { return true; }
+
+		@Override
+		protected synchronized void notifyAction(String action) {
+			if (!action.equals(ABORT_MISSION)) { return; }
+			abortTime = System.nanoTime();
+			notifyAll();
+		}
+
+		/**
+		 * Wait for an ABORT_MISSION after 'since'
+		 * @return its time or -1 if it didn't arrive
+		 */
+		synchronized long waitAbort(long since) throws InterruptedException {
+			long deadline = System.currentTimeMillis() + ACTION_TIMEOUT;
+			while (abortTime - since <= 0) {
+				long remaining = deadline - System.currentTimeMillis();
+				if (remaining <= 0) { return -1; }
+				wait(remaining);
+			}
+			return abortTime;
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		int aborts = 10;
+		long latency = 0;
+		long seed = 1;
+
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-aborts")) { aborts = Integer.parseInt(args[++i]); }
+			else if (args[i].equals("-latency")) { latency = Long.parseLong(args[++i]); }
+			else if (args[i].equals("-seed")) { seed = Long.parseLong(args[++i]); }
+			else {
+				System.err.println("Usage: MissionStatusBenchmark [-aborts N] [-latency milliseconds] [-seed N]");
+				System.exit(1);
+			}
+		}
+
+		GroundStationServer server = new GroundStationServer(0);
+		server.setLatency(latency, latency);
+		server.start();
+		HTTPCalls.setServerAddress(server.getAddress());
+
+		Random random = new Random(seed);
+		try {
+			System.out.println(report("long poll", measure(server, aborts, random)));
+
+			server.setLongPollSupported(false);
+			System.out.println(report("polling", measure(server, aborts, random)));
+		} finally {
+			HTTPCalls.shutdown();
+			server.finish();
+		}
+	}
+
+	/**
+	 * @return latency of each abort (milliseconds), -1 if it didn't arrive
+	 */
+	private static double[] measure(GroundStationServer server, int aborts, Random random) throws InterruptedException {
+		server.resetMission();
+		AbortRecorder client = new AbortRecorder();
+		client.start();
+
+		double[] latencies = new double[aborts];
+		try {
+			for (int i = 0; i < aborts; i++) {
+				// The client is waiting again (its action is not repeated), at any point of a polling period
+				Thread.sleep(MissionStatusClient.ACTION_REPEAT_PERIOD + random.nextInt(2 * MissionStatusClient.MIN_POLLING_PERIOD));
+
+				long start = System.nanoTime();
+				server.abortMission();
+				long time = client.waitAbort(start);
+				latencies[i] = (time < 0) ? -1 : (time - start) / 1e6;
+
+				server.resetMission();
+			}
+		} finally {
+			client.finnish();
+		}
+		return latencies;
+	}
+
+	private static String report(String mode, double[] latencies) {
+		double[] sorted = latencies.clone();
+		Arrays.sort(sorted);
+
+		int lost = 0;
+		double sum = 0;
+		for (double latency : sorted) {
+			if (latency < 0) { lost++; } else { sum += latency; }
+		}
+		if (lost == sorted.length) { return mode + ": no abort arrived"; }
+
+		int received = sorted.length - lost;
+		return String.format(Locale.US, "%s: %d aborts, latency (ms) mean %.1f median %.1f max %.1f%s",
+				mode, received, sum / received, sorted[lost + received / 2], sorted[sorted.length - 1],
+				(lost > 0) ? ", " + lost + " lost" : "");
+	}
+}
@@ -0,0 +1,141 @@
+package es.upc.lewis.quadadk.comms;
+
+/**
+ * Asks the server when to start or abort the mission (see MissionStatusPolling for the app).
+ *
+ * A long poll is held open, so the server answers as soon as the status changes.
+ * If the server doesn't answer it (no long polls, network problems) the status is polled
+ * instead: fast during a mission (abort), slower and slower while idle. The long poll
+ * is tried again after LONG_POLL_RETRY.
+ */
+public abstract class MissionStatusClient extends Thread {
+	// Parameters
+	private static final int LONG_POLL_TIMEOUT = 25;       // Seconds the server can hold a long poll
+	private static final long LONG_POLL_RETRY = 60000;     // Milliseconds polling before trying it again
+	static final int MIN_POLLING_PERIOD = 250;             // Milliseconds (during a mission)
+	private static final int MAX_POLLING_PERIOD = 4000;    // Milliseconds (idle for a while)
+	static final int ACTION_REPEAT_PERIOD = 1000;          // Milliseconds until an action is repeated
+
+	// Actions
+	public static final String START_MISSION = "start";
+	public static final String ABORT_MISSION = "abort";
+
+	private volatile boolean enabled = true;
+	private String quadid;
+
+	// Last status of the long poll (the server holds it until it changes)
+	private String status = "";
+	private long longPollRetryTime = 0;
+
+	private int pollingPeriod = MIN_POLLING_PERIOD;
+
+	public MissionStatusClient(String name, String quadid) {
+		super(name);
+		this.quadid = quadid;
+	}
+
+	/**
+	 * Take an action the server asked for
+	 * @param action START_MISSION or ABORT_MISSION
+	 */
+	protected abstract void notifyAction(String action);
+
+	/**
+	 * True during a mission (only an abort is expected), false before (only a start)
+	 */
+	protected abstract boolean isMissionRunning();
+
+	/**
+	 * The long poll failed, polling until LONG_POLL_RETRY
+	 */
+	protected void longPollFailed() { }
+
+	/**
+	 * Stop the thread. A long poll in progress is not cut, its answer is ignored
+	 */
+	public void finnish() {
+		enabled = false;
+		interrupt();
+	}
+
+	@Override
+	public void run() {
+		while(enabled) {
+			if (System.currentTimeMillis() >= longPollRetryTime) {
+				if (longPoll()) { continue; }
+
+				longPollFailed();
+				longPollRetryTime = System.currentTimeMillis() + LONG_POLL_RETRY;
+				pollingPeriod = MIN_POLLING_PERIOD;
+			}
+
+			poll();
+		}
+	}
+
+	/**
+	 * Wait for a status change
+	 * @return false if the long poll failed
+	 */
+	private boolean longPoll() {
+		String current = HTTPCalls.wait_missionstatus(quadid, status, LONG_POLL_TIMEOUT);
+		if (current == null || !enabled) { return false; }
+
+		if (notifyStatus(current)) {
+			// Ask again after a while (without waiting for a change) in case the action was not taken
+			status = "";
+			pause(ACTION_REPEAT_PERIOD);
+		} else {
+			status = current;
+		}
+		return true;
+	}
+
+	private void poll() {
+		boolean isMissionRunning = isMissionRunning();
+		boolean isNotified;
+
+		if (isMissionRunning) {
+			isNotified = HTTPCalls.get_abortmission(quadid) && notifyStatus(HTTPCalls.END);
+		} else {
+			isNotified = HTTPCalls.get_startmission(quadid) && notifyStatus(HTTPCalls.START);
+		}
+
+		if (isNotified) {
+			pollingPeriod = MIN_POLLING_PERIOD;
+			pause(ACTION_REPEAT_PERIOD);
+		} else if (isMissionRunning) {
+			// An abort has to arrive soon
+			pollingPeriod = MIN_POLLING_PERIOD;
+			pause(pollingPeriod);
+		} else {
+			pause(pollingPeriod);
+			pollingPeriod = Math.min(pollingPeriod * 2, MAX_POLLING_PERIOD);
+		}
+	}
+
+	/**
+	 * Notify the action the status asks for, if any
+	 * @return true if an action was notified
+	 */
+	private boolean notifyStatus(String current) {
+		if (!enabled) { return false; }
+
+		if (isMissionRunning()) {
+			if (HTTPCalls.END.equals(current)) {
+				notifyAction(ABORT_MISSION);
+				return true;
+			}
+		} else {
+			if (HTTPCalls.START.equals(current)) {
+				notifyAction(START_MISSION);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void pause(long milliseconds) {
+		try { sleep(milliseconds); } catch (InterruptedException e) { }
+	}
+}
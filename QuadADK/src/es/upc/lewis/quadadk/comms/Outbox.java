@@ -0,0 +1,420 @@
+package es.upc.lewis.quadadk.comms;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonSyntaxException;
+
+import android.util.Log;
+
+/**
+ * Store and forward for data going to the GroundStation (telemetry batches and pictures).
+ *
+ * Every item is written to an append-only journal before it's sent and marked as done
+ * when the server accepts it. Items that fail (or were not sent when the app was closed)
+ * are sent again from this thread, oldest first, waiting longer after each failure
+ * (exponential backoff). Each item has a key that goes with every attempt, so the server
+ * can ignore repeated ones.
+ *
+ * The journal is compacted when it has too many done items. If the pending items take more
+ * than MAX_BYTES of journal the oldest ones are dropped. The limit is for the journal only:
+ * picture files are not counted nor deleted (they are the copies kept in the gallery, a
+ * dropped picture is just not sent).
+ */
+public class Outbox extends Thread {
+	private static final String TAG = "Outbox";
+	
+	// Item types
+	public static final int DATA    = 1; // Telemetry batch (JSON)
+	public static final int PICTURE = 2; // Picture file
+	
+	private static final String JOURNAL_FILE = "outbox.journal";
+	private static final String COMPACT_FILE = "outbox.journal.tmp";
+	
+	// Journal used by the pending items
+	private static final long MAX_BYTES = 50L * 1024 * 1024;
+	// Compact when the journal is bigger than this and twice what the pending items use
+	private static final long MIN_COMPACT_BYTES = 64 * 1024;
+	
+	// Milliseconds
+	private static final long MIN_BACKOFF = 1000;
+	private static final long MAX_BACKOFF = 60000;
+	
+	// Journal record (one JSON line)
+	private static class Entry {
+		String op;      // "add" or "done"
+		String key;
+		int type;
+		String payload; // DATA: JSON batch, PICTURE: pic_id
+		String file;    // PICTURE: path
+		long time;      // Milliseconds since epoch
+		long bytes;     // Disk used (payload or file)
+		transient int recordBytes; // Journal used by its "add" record (not written)
+	}
+	
+	private static final String ADD  = "add";
+	private static final String DONE = "done";
+	
+	private static Outbox instance;
+	
+	private final Gson gson = new Gson();
+	private final File journal;
+	private final File compactJournal;
+	
+	// Guarded by 'this'
+	private FileOutputStream journalStream;
+	private long journalBytes = 0;
+	private final Map<String, Entry> pending = new LinkedHashMap<String, Entry>();
+	private final LinkedList<Entry> retries = new LinkedList<Entry>();
+	private long pendingBytes = 0;
+	private long pendingRecordBytes = 0; // Journal used by the pending items
+	private final AtomicLong keyCounter = new AtomicLong();
+	private final String keyPrefix = Long.toString(System.currentTimeMillis(), 36);
+	
+	private volatile boolean enabled = true;
+	
+	// Counters
+	private volatile long replayed = 0;
+	private volatile long dropped = 0;
+	
+	/**
+	 * Open the shared outbox (once, when the app starts). Items from a previous run are sent again
+	 * @param dir where the journal is kept
+	 */
+	public static synchronized void open(File dir) {
+		if (instance != null) { return; }
+		
+		try {
+			instance = new Outbox(dir);
+			instance.start();
+		} catch (IOException e) {
+			Log.e(TAG, "Error opening outbox: " + e.getMessage());
+		}
+	}
+	
+	/**
+	 * Shared outbox or null if it's not open (items are only sent once)
+	 */
+	public static synchronized Outbox getInstance() { return instance; }
+	
+	public Outbox(File dir) throws IOException {
+		super(TAG);
+		setDaemon(true);
+		
+		journal = new File(dir, JOURNAL_FILE);
+		compactJournal = new File(dir, COMPACT_FILE);
+		
+		load();
+		journalStream = new FileOutputStream(journal, true);
+		journalBytes = journal.length();
+		
+		try {
+			compact();
+		} catch (IOException e) {
+			// The old journal still works
+			Log.e(TAG, "Error compacting journal: " + e.getMessage());
+		}
+	}
+	
+	/**
+	 * Stop sending. The journal keeps the pending items for the next run
+	 */
+	public synchronized void finish() {
+		enabled = false;
+		notifyAll();
+		
+		try { journalStream.close(); } catch (IOException e) { }
+	}
+	
+	/**
+	 * Write an item to the journal before sending it. Call sent() or failed() with its key later
+	 * @param type DATA or PICTURE
+	 * @param payload DATA: JSON batch, PICTURE: pic_id
+	 * @param file PICTURE: the picture, null otherwise
+	 * @return key of the item (send it with every attempt)
+	 */
+	public String record(int type, String payload, File file) {
+		return record(type, payload, file, newKey());
+	}
+	
+	/**
+	 * Key for an item that is recorded later, from another thread (the journal waits for the disk).
+	 * Takes no lock
+	 */
+	public String newKey() {
+		return keyPrefix + "-" + keyCounter.getAndIncrement();
+	}
+	
+	/**
+	 * Like record(type, payload, file) with a key from newKey(). Call sent() or failed() after it
+	 * @return key
+	 */
+	public synchronized String record(int type, String payload, File file, String key) {
+		Entry entry = new Entry();
+		entry.op = ADD;
+		entry.key = key;
+		entry.type = type;
+		entry.payload = payload;
+		entry.file = (file != null) ? file.getPath() : null;
+		entry.time = System.currentTimeMillis();
+		entry.bytes = (file != null) ? file.length() : payload.length();
+		
+		// A lost "done" only means a repeated send (the key avoids duplicates), a lost "add" is lost data
+		entry.recordBytes = append(entry, true);
+		
+		pending.put(entry.key, entry);
+		pendingBytes += entry.bytes;
+		pendingRecordBytes += entry.recordBytes;
+		
+		enforceLimit();
+		return entry.key;
+	}
+	
+	/**
+	 * The server accepted the item
+	 */
+	public synchronized void sent(String key) {
+		Entry entry = pending.remove(key);
+		if (entry == null) { return; }
+		
+		pendingBytes -= entry.bytes;
+		pendingRecordBytes -= entry.recordBytes;
+		retries.remove(entry);
+		markDone(key);
+	}
+	
+	/**
+	 * The item could not be sent (or was dropped from a queue). It will be sent again from this thread
+	 */
+	public synchronized void failed(String key) {
+		Entry entry = pending.get(key);
+		if (entry == null || retries.contains(entry)) { return; }
+		
+		retries.add(entry);
+		notifyAll();
+	}
+	
+	@Override
+	public void run() {
+		long backoff = MIN_BACKOFF;
+		
+		while (enabled) {
+			Entry entry;
+			
+			synchronized (this) {
+				try {
+					while (retries.isEmpty() && enabled) { wait(); }
+				} catch (InterruptedException e) {
+					return;
+				}
+				if (!enabled) { return; }
+				
+				// Oldest first, it stays in the list until it's sent
+				entry = retries.getFirst();
+			}
+			
+			if (send(entry)) {
+				sent(entry.key);
+				replayed++;
+				backoff = MIN_BACKOFF;
+				continue;
+			}
+			
+			// Uplink still down, wait before trying again
+			synchronized (this) {
+				try { wait(backoff); } catch (InterruptedException e) { return; }
+			}
+			backoff = Math.min(backoff * 2, MAX_BACKOFF);
+		}
+	}
+	
+	private boolean send(Entry entry) {
+		switch (entry.type) {
+		case DATA:
+			return TelemetryBatcher.sendBatch(entry.payload, entry.key);
+			
+		case PICTURE:
+			File file = new File(entry.file);
+			if (!file.exists()) {
+				// Nothing to send anymore
+				Log.w(TAG, "Picture not found: " + entry.file);
+				dropped++;
+				return true;
+			}
+			return HTTPCalls.send_picture(file, entry.payload, entry.key);
+			
+		default:
+			return true; // Unknown, forget it
+		}
+	}
+	
+	/**
+	 * Drop the oldest items while they take too much journal (their files are kept). Call it holding 'this'
+	 */
+	private void enforceLimit() {
+		Iterator<Entry> iterator = pending.values().iterator();
+		
+		while (pendingRecordBytes > MAX_BYTES && iterator.hasNext()) {
+			Entry entry = iterator.next();
+			iterator.remove();
+			pendingBytes -= entry.bytes;
+			pendingRecordBytes -= entry.recordBytes;
+			retries.remove(entry);
+			dropped++;
+			
+			markDone(entry.key);
+			Log.w(TAG, "Disk limit reached, item dropped: " + entry.key);
+		}
+		
+		compactIfNeeded();
+	}
+	
+	/**
+	 * Call it holding 'this'
+	 */
+	private void markDone(String key) {
+		Entry done = new Entry();
+		done.op = DONE;
+		done.key = key;
+		append(done, false);
+		
+		compactIfNeeded();
+	}
+	
+	/**
+	 * Call it holding 'this'
+	 * @param sync wait until the record is on disk
+	 * @return bytes of the record
+	 */
+	private int append(Entry entry, boolean sync) {
+		try {
+			byte[] line = (gson.toJson(entry) + "\n").getBytes("UTF-8");
+			journalStream.write(line);
+			if (sync) { journalStream.getFD().sync(); }
+			journalBytes += line.length;
+			return line.length;
+		} catch (IOException e) {
+			Log.e(TAG, "Error writing journal: " + e.getMessage());
+			return 0;
+		}
+	}
+	
+	/**
+	 * Read the journal: items added and not done are pending
+	 */
+	private void load() throws IOException {
+		if (journal.exists()) {
+			BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(journal), "UTF-8"));
+			try {
+				String line;
+				while ((line = reader.readLine()) != null) {
+					Entry entry;
+					try {
+						entry = gson.fromJson(line, Entry.class);
+					} catch (JsonSyntaxException e) {
+						continue; // Incomplete last line (app killed while writing)
+					}
+					if (entry == null || entry.key == null) { continue; }
+					
+					if (ADD.equals(entry.op)) {
+						entry.recordBytes = line.getBytes("UTF-8").length + 1;
+						pending.put(entry.key, entry);
+						pendingBytes += entry.bytes;
+						pendingRecordBytes += entry.recordBytes;
+					} else if (DONE.equals(entry.op)) {
+						Entry removed = pending.remove(entry.key);
+						if (removed != null) {
+							pendingBytes -= removed.bytes;
+							pendingRecordBytes -= removed.recordBytes;
+						}
+					}
+				}
+			} finally {
+				reader.close();
+			}
+		}
+		
+		// Everything left from the previous run has to be sent again
+		retries.addAll(pending.values());
+		if (!pending.isEmpty()) { Log.i(TAG, pending.size() + " items waiting from the previous run"); }
+	}
+	
+	/**
+	 * Call it holding 'this'
+	 */
+	private void compactIfNeeded() {
+		if (journalBytes > MIN_COMPACT_BYTES && journalBytes > 2 * pendingRecordBytes) {
+			try {
+				compact();
+			} catch (IOException e) {
+				Log.e(TAG, "Error compacting journal: " + e.getMessage());
+			}
+		}
+	}
+	
+	/**
+	 * Rewrite the journal with only the pending items. Call it holding 'this'.
+	 * If it fails the old journal is kept (and still appended to)
+	 */
+	private void compact() throws IOException {
+		FileOutputStream out = new FileOutputStream(compactJournal);
+		long bytes = 0;
+		try {
+			for (Entry entry : pending.values()) {
+				byte[] line = (gson.toJson(entry) + "\n").getBytes("UTF-8");
+				out.write(line);
+				bytes += line.length;
+			}
+			out.getFD().sync();
+		} finally {
+			out.close();
+		}
+		
+		// Rename is atomic, a crash leaves the old or the new journal
+		if (!compactJournal.renameTo(journal)) {
+			compactJournal.delete();
+			throw new IOException("Can't replace the journal");
+		}
+		
+		// The old stream writes to the replaced file, only close it once the new one is open
+		FileOutputStream old = journalStream;
+		journalStream = new FileOutputStream(journal, true);
+		journalBytes = bytes;
+		try { old.close(); } catch (IOException e) { }
+	}
+	
+	/**
+	 * Items not sent yet
+	 */
+	public synchronized int getPending() { return pending.size(); }
+	
+	/**
+	 * Disk used by the items not sent yet (bytes)
+	 */
+	public synchronized long getPendingBytes() { return pendingBytes; }
+	
+	/**
+	 * Items sent by this thread (after a failure or a restart)
+	 */
+	public long getReplayed() { return replayed; }
+	
+	/**
+	 * Items dropped because of the disk limit (or pictures that were deleted)
+	 */
+	public long getDropped() { return dropped; }
+	
+	public String report() {
+		return "Outbox: pending=" + getPending() + " (" + getPendingBytes() + " bytes) replayed="
+				+ getReplayed() + " dropped=" + getDropped();
+	}
+}
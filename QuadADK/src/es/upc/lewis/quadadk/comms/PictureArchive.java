@@ -0,0 +1,78 @@
+package es.upc.lewis.quadadk.comms;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Writes pictures to disk from a single "Picture archive" thread, so an upload from memory
+ * doesn't wait for the file (see TelemetryDispatcher.sendPicture).
+ *
+ * Tasks run in the order they are given: a task given after a picture runs once that picture
+ * is written (or failed). A picture is written to a temporary file and renamed, so a file with
+ * the final name is always complete.
+ *
+ * No Android dependencies (see PictureUploadBenchmark).
+ */
+public class PictureArchive {
+	private static final ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable runnable) {
+			return new Thread(runnable, "Picture archive");
+		}
+	});
+
+	/**
+	 * Write a picture from the archive thread
+	 * @return get() throws an ExecutionException with the IOException if it could not be written
+	 */
+	public static Future<Void> archive(final byte[] data, final File file) {
+		return executor.submit(new Callable<Void>() {
+			@Override
+			public Void call() throws IOException {
+				write(data, file);
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Run a task on the archive thread, after the pictures given so far
+	 */
+	public static void execute(Runnable task) {
+		executor.execute(task);
+	}
+
+	/**
+	 * Like execute, for a task with a result
+	 */
+	public static <T> Future<T> submit(Callable<T> task) {
+		return executor.submit(task);
+	}
+
+	/**
+	 * Write to a temporary file and rename it, so a file with the final name is always complete
+	 */
+	public static void write(byte[] data, File file) throws IOException {
+		File partial = new File(file.getPath() + ".part");
+
+		try {
+			FileOutputStream out = new FileOutputStream(partial);
+			try {
+				out.write(data);
+			} finally {
+				out.close();
+			}
+		} catch (IOException e) {
+			partial.delete();
+			throw e;
+		}
+
+		if (!partial.renameTo(file)) { throw new IOException("Error renaming " + partial.getName()); }
+	}
+}
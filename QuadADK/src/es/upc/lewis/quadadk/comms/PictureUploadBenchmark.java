@@ -0,0 +1,165 @@
+package es.upc.lewis.quadadk.comms;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.Future;
+
+import es.upc.lewis.quadadk.tools.GroundStationServer;
+
+/**
+ * Time from the shutter (the JPEG in memory) to the end of its upload:
+ * - file: written to disk, then uploaded from the file (as SimpleCamera did)
+ * - memory: uploaded from memory while PictureArchive writes the file (as TelemetryDispatcher.sendPicture)
+ *
+ *   java es.upc.lewis.quadadk.comms.PictureUploadBenchmark [-pictures 20] [-size 2000000] [-picture file.jpg]
+ *       [-dir /tmp] [-latency 0] [-server http://host:8080/]
+ *
+ * The pictures are random bytes of -size (or a copy of -picture), written to -dir. The server is a
+ * GroundStationServer on this computer (-latency delays its answers) or the one given with -server.
+ *
+ * Compiling needs the Android jar (HTTPCalls uses MissionThread), running doesn't
+ * (only commons-logging, see HTTPCallsBenchmark).
+ */
+public class PictureUploadBenchmark {
+	private static final int ROUNDS = 3; // The first one warms up the JIT (and the pool)
+
+	public static void main(String[] args) throws Exception {
+		int pictures = 20;
+		int size = 2000000;
+		String picture = null;
+		File dir = new File(System.getProperty("java.io.tmpdir"));
+		long latency = 0;
+		String address = null;
+
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-pictures")) { pictures = Integer.parseInt(args[++i]); }
+			else if (args[i].equals("-size")) { size = Integer.parseInt(args[++i]); }
+			else if (args[i].equals("-picture")) { picture = args[++i]; }
+			else if (args[i].equals("-dir")) { dir = new File(args[++i]); }
+			else if (args[i].equals("-latency")) { latency = Long.parseLong(args[++i]); }
+			else if (args[i].equals("-server")) { address = args[++i]; }
+			else {
+				System.err.println("Usage: PictureUploadBenchmark [-pictures N] [-size bytes] [-picture file]"
+						+ " [-dir directory] [-latency milliseconds] [-server address]");
+				System.exit(1);
+			}
+		}
+
+		byte[] data;
+		if (picture != null) {
+			data = readFile(new File(picture));
+		} else {
+			data = new byte[size];
+			new Random(1).nextBytes(data);
+		}
+
+		GroundStationServer server = null;
+		if (address == null) {
+			server = new GroundStationServer(0);
+			server.setLatency(latency, latency);
+			server.start();
+			address = server.getAddress();
+		}
+		HTTPCalls.setServerAddress(address);
+		System.out.println(pictures + " pictures of " + data.length + " bytes to " + HTTPCalls.getServerAddress()
+				+ ", files in " + dir);
+
+		try {
+			for (int round = 0; round < ROUNDS; round++) {
+				String warmUp = (round == 0) ? " (warm-up)" : "";
+				System.out.println("round " + (round + 1) + warmUp);
+				System.out.println(report("  file  ", measure(data, dir, pictures, false)));
+				System.out.println(report("  memory", measure(data, dir, pictures, true)));
+			}
+		} finally {
+			HTTPCalls.shutdown();
+			if (server != null) { server.finish(); }
+		}
+
+		// The archive thread of PictureArchive is not a daemon
+		System.exit(0);
+	}
+
+	/**
+	 * @return milliseconds from the shutter to the end of each upload, -1 if it failed
+	 */
+	private static double[] measure(byte[] data, File dir, int pictures, boolean isFromMemory) throws Exception {
+		double[] times = new double[pictures];
+
+		for (int i = 0; i < pictures; i++) {
+			String picId = "benchmark_" + i;
+			File file = new File(dir, picId + ".jpg");
+
+			long shutter = System.nanoTime();
+			boolean isSent;
+			if (isFromMemory) {
+				Future<Void> archived = PictureArchive.archive(data, file);
+				isSent = HTTPCalls.send_picture(data, picId, null);
+				times[i] = (System.nanoTime() - shutter) / 1e6;
+				archived.get(); // Not part of the time, but the next picture shouldn't wait for it
+			} else {
+				isSent = writeFile(data, file) && HTTPCalls.send_picture(file, picId, null);
+				times[i] = (System.nanoTime() - shutter) / 1e6;
+			}
+			if (!isSent) { times[i] = -1; }
+
+			file.delete();
+		}
+		return times;
+	}
+
+	/**
+	 * Like onPictureTaken did before sending
+	 */
+	private static boolean writeFile(byte[] data, File file) {
+		try {
+			FileOutputStream out = new FileOutputStream(file);
+			try {
+				out.write(data);
+			} finally {
+				out.close();
+			}
+			return true;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	private static byte[] readFile(File file) throws IOException {
+		byte[] data = new byte[(int) file.length()];
+		FileInputStream in = new FileInputStream(file);
+		try {
+			int read = 0;
+			while (read < data.length) {
+				int res = in.read(data, read, data.length - read);
+				if (res < 0) { throw new IOException("File changed while reading it"); }
+				read += res;
+			}
+		} finally {
+			in.close();
+		}
+		return data;
+	}
+
+	private static String report(String mode, double[] times) {
+		double[] sorted = times.clone();
+		Arrays.sort(sorted);
+
+		int failed = 0;
+		double sum = 0;
+		for (double time : sorted) {
+			if (time < 0) { failed++; } else { sum += time; }
+		}
+		if (failed == sorted.length) { return mode + ": all the uploads failed"; }
+
+		int sent = sorted.length - failed;
+		return String.format(Locale.US, "%s: shutter to upload (ms) mean %.1f median %.1f max %.1f%s",
+				mode, sum / sent, sorted[failed + sent / 2], sorted[sorted.length - 1],
+				(failed > 0) ? ", " + failed + " failed" : "");
+	}
+}
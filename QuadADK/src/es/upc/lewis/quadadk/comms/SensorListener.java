@@ -0,0 +1,26 @@
+package es.upc.lewis.quadadk.comms;
+
+/**
+ * Receives sensor readings from the Arduino (see EventBus)
+ */
+public interface SensorListener {
+	/**
+	 * Called from the EventBus thread
+	 * @param sensorId MissionUtils.TEMPERATURE, HUMIDITY, NO2, CO or ALTITUDE
+	 * @param value
+	 * @param timestampNanos System.nanoTime() when the reading was received
+	 */
+	public void onSensor(byte sensorId, float value, long timestampNanos);
+	
+	/**
+	 * All the sensors, read at the same time (READ_ALL_SENSORS). Called from the EventBus thread
+	 * @param temperature
+	 * @param humidity
+	 * @param no2
+	 * @param co
+	 * @param altitude
+	 * @param timestampNanos System.nanoTime() when the readings were received
+	 */
+	public void onAllSensors(float temperature, float humidity, float no2, float co, float altitude,
+			long timestampNanos);
+}
@@ -0,0 +1,87 @@
+package es.upc.lewis.quadadk.comms;
+
+/**
+ * Result of a sensor read request (see CommunicationsThread.requestSensor).
+ * The value arrives later, use await() to wait for it.
+ */
+public class SensorReading {
+	private final byte sensorId;
+	private final int requestId;
+	private final long requestTime; // System.nanoTime()
+
+	private boolean isDone = false;
+	private float value;
+	private long timestamp; // System.nanoTime()
+	
+	// Values of an ALL_SENSORS request, by sensor id - 1
+	private final float[] values = new float[EventBus.NUMBER_OF_SENSORS];
+
+	SensorReading(byte sensorId, int requestId, long requestTime) {
+		this.sensorId = sensorId;
+		this.requestId = requestId;
+		this.requestTime = requestTime;
+	}
+
+	/**
+	 * Wait for the value
+	 * @param timeout in milliseconds
+	 * @return true if the value arrived, false if the timeout expired
+	 * @throws InterruptedException
+	 */
+	public synchronized boolean await(long timeout) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeout;
+		long remaining = timeout;
+
+		while (!isDone && remaining > 0) {
+			wait(remaining);
+			remaining = deadline - System.currentTimeMillis();
+		}
+
+		return isDone;
+	}
+
+	synchronized void complete(float value, long timestamp) {
+		this.value = value;
+		values[sensorId - 1] = value;
+		this.timestamp = timestamp;
+		isDone = true;
+		notifyAll();
+	}
+
+	synchronized void completeAll(float[] values, long timestamp) {
+		System.arraycopy(values, 0, this.values, 0, this.values.length);
+		this.timestamp = timestamp;
+		isDone = true;
+		notifyAll();
+	}
+
+	public synchronized boolean isDone() { return isDone; }
+
+	/**
+	 * Value of a single sensor request. Only valid if isDone()
+	 */
+	public synchronized float getValue() { return value; }
+
+	/**
+	 * Value of one of the sensors (useful for ALL_SENSORS requests). Only valid if isDone()
+	 * @param sensor MissionUtils.TEMPERATURE, HUMIDITY, NO2, CO or ALTITUDE
+	 */
+	public synchronized float getValue(byte sensor) { return values[sensor - 1]; }
+
+	/**
+	 * System.nanoTime() when the value was received. Only valid if isDone()
+	 */
+	public synchronized long getTimestamp() { return timestamp; }
+
+	/**
+	 * Time from the request to the reply (nanoseconds). Only valid if isDone()
+	 */
+	public synchronized long getRoundTripTime() { return timestamp - requestTime; }
+
+	/**
+	 * MissionUtils.TEMPERATURE, HUMIDITY, NO2, CO, ALTITUDE or ALL_SENSORS
+	 */
+	public byte getSensorId() { return sensorId; }
+
+	int getRequestId() { return requestId; }
+}
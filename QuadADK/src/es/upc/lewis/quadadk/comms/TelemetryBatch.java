@@ -0,0 +1,23 @@
+package es.upc.lewis.quadadk.comms;
+
+import java.util.List;
+
+/**
+ * Body of a send_data_batch request (see TelemetryBatcher). Fields are the JSON names.
+ * GroundStationServer reads it too
+ */
+public class TelemetryBatch {
+	/**
+	 * A telemetry value
+	 */
+	public static class Sample {
+		public String varname;
+		public String value;
+		public long timestamp; // Milliseconds since epoch
+		public double lat;
+		public double lon;
+	}
+	
+	public String id;
+	public List<Sample> samples;
+}
@@ -0,0 +1,254 @@
+package es.upc.lewis.quadadk.comms;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.http.HttpStatus;
+
+import com.google.gson.Gson;
+
+import es.upc.lewis.quadadk.comms.TelemetryBatch.Sample;
+import es.upc.lewis.quadadk.mission.MissionThread;
+
+import android.util.Log;
+
+/**
+ * Collects telemetry values and sends them to the GroundStation in batches
+ * (one POST with a JSON body, see HTTPCalls.send_data_batch) instead of one request per value.
+ *
+ * A batch is sent when it has MAX_SAMPLES values or its oldest value waited MAX_DELAY.
+ * Every value has its timestamp and the last known position.
+ *
+ * If the server answers 404 or 405 to a batch it doesn't know batches: the values are sent one by one
+ * with the legacy send_data, from then on (values don't wait for a batch anymore, but still go through
+ * the Outbox). Any other failure is retried as a batch by the Outbox.
+ *
+ * Batches are sent by the telemetry TelemetryDispatcher and written to the Outbox
+ * (if it's open) so they are sent again if they fail.
+ */
+public class TelemetryBatcher extends Thread {
+	private static final String TAG = "TelemetryBatcher";
+	
+	public static final int DEFAULT_MAX_SAMPLES = 20;
+	public static final long DEFAULT_MAX_DELAY = 2000; // Milliseconds
+	
+	private static TelemetryBatcher instance;
+	
+	private final Gson gson = new Gson();
+	
+	// Guarded by 'this'
+	private List<Sample> pending = new ArrayList<Sample>();
+	private long oldestTime; // When the first pending sample was added (milliseconds)
+	private int maxSamples = DEFAULT_MAX_SAMPLES;
+	private long maxDelay = DEFAULT_MAX_DELAY;
+	private boolean flushNow = false;
+	
+	// Last known position
+	private volatile double latitude;
+	private volatile double longitude;
+	
+	// False once we know the server only has send_data
+	private volatile boolean isBatchEnabled = true;
+	
+	private volatile boolean enabled = true;
+	
+	/**
+	 * Shared batcher (started on first use)
+	 */
+	public static synchronized TelemetryBatcher getInstance() {
+		if (instance == null) {
+			instance = new TelemetryBatcher();
+			instance.setDaemon(true);
+			instance.start();
+		}
+		return instance;
+	}
+	
+	/**
+	 * Send a value to the GroundStation with the shared batcher
+	 * @param varName temp1, temp2, hum1, hum2, co, no2, alt_bar, alt_gps
+	 * @param value
+	 */
+	public static void sendData(String varName, String value) {
+		getInstance().add(varName, value);
+	}
+	
+	public TelemetryBatcher() {
+		super(TAG);
+	}
+	
+	/**
+	 * Stop the thread. Pending values are sent first
+	 */
+	public void finish() {
+		enabled = false;
+		flush();
+	}
+	
+	/**
+	 * Position added to the next values
+	 */
+	public void setPosition(double latitude, double longitude) {
+		this.latitude = latitude;
+		this.longitude = longitude;
+	}
+	
+	/**
+	 * When a batch is sent
+	 * @param maxSamples number of values
+	 * @param maxDelay milliseconds the oldest value can wait
+	 */
+	public synchronized void setLimits(int maxSamples, long maxDelay) {
+		this.maxSamples = maxSamples;
+		this.maxDelay = maxDelay;
+		notifyAll();
+	}
+	
+	/**
+	 * Use batches (true) or the legacy send_data for every value (false)
+	 */
+	public void setBatchEnabled(boolean isBatchEnabled) {
+		this.isBatchEnabled = isBatchEnabled;
+	}
+	
+	public boolean isBatchEnabled() { return isBatchEnabled; }
+	
+	/**
+	 * Queue a value
+	 * @param varName temp1, temp2, hum1, hum2, co, no2, alt_bar, alt_gps
+	 * @param value
+	 */
+	public void add(String varName, String value) {
+		Sample sample = new Sample();
+		sample.varname = varName;
+		sample.value = value;
+		sample.timestamp = System.currentTimeMillis();
+		sample.lat = latitude;
+		sample.lon = longitude;
+		
+		synchronized (this) {
+			if (pending.isEmpty()) { oldestTime = sample.timestamp; }
+			pending.add(sample);
+			if (pending.size() >= maxSamples || !isBatchEnabled) { notifyAll(); }
+		}
+	}
+	
+	/**
+	 * Send the pending values now
+	 */
+	public synchronized void flush() {
+		flushNow = true;
+		notifyAll();
+	}
+	
+	@Override
+	public void run() {
+		while (true) {
+			List<Sample> batch;
+			
+			synchronized (this) {
+				try {
+					while (!isBatchReady()) {
+						if (!enabled) { return; }
+						
+						if (pending.isEmpty()) { wait(); }
+						else { wait(Math.max(1, oldestTime + maxDelay - System.currentTimeMillis())); }
+					}
+				} catch (InterruptedException e) {
+					return;
+				}
+				
+				if (pending.size() <= maxSamples) {
+					batch = pending;
+					pending = new ArrayList<Sample>();
+					flushNow = false;
+				} else {
+					// Never more than maxSamples in a request, the rest goes in the next batch
+					batch = new ArrayList<Sample>(pending.subList(0, maxSamples));
+					pending.subList(0, maxSamples).clear();
+					oldestTime = pending.get(0).timestamp;
+				}
+			}
+			
+			if (!batch.isEmpty()) { dispatch(batch); }
+		}
+	}
+	
+	/**
+	 * Call it holding 'this'
+	 */
+	private boolean isBatchReady() {
+		if (flushNow) { return true; }
+		if (pending.isEmpty()) { return false; }
+		
+		// Legacy server: the values are sent one by one anyway, no reason to wait
+		if (!isBatchEnabled) { return true; }
+		
+		return pending.size() >= maxSamples || System.currentTimeMillis() - oldestTime >= maxDelay;
+	}
+	
+	private void dispatch(List<Sample> samples) {
+		TelemetryBatch batch = new TelemetryBatch();
+		batch.id = MissionThread.QUAD_ID;
+		batch.samples = samples;
+		final String json = gson.toJson(batch);
+		
+		final Outbox outbox = Outbox.getInstance();
+		final String key = (outbox != null) ? outbox.record(Outbox.DATA, json, null) : null;
+		
+		TelemetryDispatcher.getTelemetry().submit(new TelemetryDispatcher.Item() {
+			@Override
+			public boolean send() {
+				boolean isSent = sendBatch(json, key);
+				
+				if (outbox != null) {
+					if (isSent) { outbox.sent(key); } else { outbox.failed(key); }
+				}
+				return isSent;
+			}
+			
+			@Override
+			public void dropped() {
+				if (outbox != null) { outbox.failed(key); }
+			}
+		});
+	}
+	
+	/**
+	 * Send a batch now (from the calling thread)
+	 * @param json TelemetryBatch
+	 * @param key idempotency key (see Outbox) or null
+	 * @return true if it was delivered (or the values that failed were written to the Outbox)
+	 */
+	static boolean sendBatch(String json, String key) {
+		TelemetryBatcher batcher = getInstance();
+		if (batcher.isBatchEnabled) {
+			int status = HTTPCalls.send_data_batch(MissionThread.QUAD_ID, json, key);
+			if (status == HTTPCalls.HTTPResponseOK) { return true; }
+			
+			// Uplink down, server error...: one request when it's tried again, not one per value
+			if (status != HttpStatus.SC_NOT_FOUND && status != HttpStatus.SC_METHOD_NOT_ALLOWED) { return false; }
+			
+			Log.w(TAG, "Batches not supported by the server (" + status + "), sending values one by one");
+			batcher.isBatchEnabled = false;
+		}
+		
+		// Legacy call, one value at a time (no key: only the values that failed are sent again)
+		TelemetryBatch batch = batcher.gson.fromJson(json, TelemetryBatch.class);
+		List<Sample> failed = new ArrayList<Sample>();
+		for (Sample sample : batch.samples) {
+			if (!HTTPCalls.send_data(MissionThread.QUAD_ID, sample.varname, sample.value)) { failed.add(sample); }
+		}
+		
+		if (failed.isEmpty()) { return true; }
+		
+		// Nothing sent or nowhere to keep the rest: the whole batch is tried again
+		Outbox outbox = Outbox.getInstance();
+		if (failed.size() == batch.samples.size() || outbox == null) { return false; }
+		
+		// Some were sent: the rest goes to the Outbox as a new item, this one is done
+		batch.samples = failed;
+		outbox.failed(outbox.record(Outbox.DATA, batcher.gson.toJson(batch), null));
+		return true;
+	}
+}
@@ -0,0 +1,455 @@
+package es.upc.lewis.quadadk.comms;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import es.upc.lewis.quadadk.mission.MissionThread;
+
+import android.os.Looper;
+import android.util.Log;
+
+/**
+ * Sends data to the GroundStation from a fixed number of worker threads.
+ *
+ * Items wait in a bounded queue. When it's full the overflow policy decides:
+ * DROP_OLDEST discards the oldest waiting item (telemetry, a newer value is more useful),
+ * BLOCK makes the caller wait for a free place (pictures). The main thread never waits: its
+ * items are handed to a background thread that waits for it, and if HANDOFF_CAPACITY items
+ * are already waiting there the new one is dropped.
+ *
+ * Use sendData and sendPicture, they go to the shared dispatchers.
+ */
+public class TelemetryDispatcher {
+	private static final String TAG = "TelemetryDispatcher";
+	
+	// Overflow policies
+	public static final int DROP_OLDEST = 1;
+	public static final int BLOCK       = 2;
+	
+	// Idle workers finish after this time (seconds)
+	private static final long KEEP_ALIVE = 30;
+	
+	// A caller waiting for a free place checks this often if the dispatcher was shut down (milliseconds)
+	private static final long SHUTDOWN_CHECK_PERIOD = 100;
+	
+	// Items of the main thread that can be waiting for a BLOCK dispatcher (they hold whole pictures)
+	private static final int HANDOFF_CAPACITY = 4;
+	
+	/**
+	 * Something to send
+	 */
+	public interface Item {
+		/**
+		 * Called from a worker thread
+		 * @return true if it was delivered
+		 */
+		public boolean send();
+		
+		/**
+		 * The item was discarded without calling send() (queue full or shut down).
+		 * It can be called from the main thread, it must not block
+		 */
+		public void dropped();
+	}
+	
+	// Queued item
+	private class Task implements Runnable {
+		final Item item;
+		final long startTime; // System.nanoTime()
+		
+		Task(Item item, long startTime) {
+			this.item = item;
+			this.startTime = startTime;
+		}
+		
+		@Override
+		public void run() {
+			try {
+				if (item.send()) {
+					sent.incrementAndGet();
+					latency.record(System.nanoTime() - startTime);
+				}
+				else { failed.incrementAndGet(); }
+			} finally {
+				inFlight.decrementAndGet();
+			}
+		}
+		
+		void drop() {
+			dropped.incrementAndGet();
+			inFlight.decrementAndGet();
+			item.dropped();
+		}
+	}
+	
+	// Sensor values and GPS altitude
+	private static final TelemetryDispatcher telemetry = new TelemetryDispatcher("Telemetry", 2, 64, DROP_OLDEST);
+	// Pictures
+	private static final TelemetryDispatcher pictures = new TelemetryDispatcher("Pictures", 1, 8, BLOCK);
+	// Thumbnails and previews of the pictures (see PictureTiers). They go before the full pictures
+	// in the UplinkScheduler (THUMBNAILS class), chunk by chunk
+	private static final TelemetryDispatcher previews = new TelemetryDispatcher("Previews", 1, 16, DROP_OLDEST);
+	
+	// Item of the main thread waiting for its BLOCK dispatcher
+	private static class Handoff implements Runnable {
+		final TelemetryDispatcher dispatcher;
+		final Task task;
+		
+		Handoff(TelemetryDispatcher dispatcher, Task task) {
+			this.dispatcher = dispatcher;
+			this.task = task;
+		}
+		
+		@Override
+		public void run() { dispatcher.executor.execute(task); }
+	}
+	
+	// Submits the items of the main thread to the BLOCK dispatchers (waits for them, in order).
+	// When HANDOFF_CAPACITY are waiting the new ones are dropped
+	private static final ThreadPoolExecutor handoff = new ThreadPoolExecutor(1, 1, KEEP_ALIVE, TimeUnit.SECONDS,
+			new ArrayBlockingQueue<Runnable>(HANDOFF_CAPACITY),
+			new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable runnable) {
+					return new Thread(runnable, "Dispatcher handoff");
+				}
+			},
+			new RejectedExecutionHandler() {
+				@Override
+				public void rejectedExecution(Runnable runnable, ThreadPoolExecutor executor) {
+					((Handoff) runnable).task.drop();
+				}
+			});
+	
+	static {
+		handoff.allowCoreThreadTimeOut(true);
+	}
+	
+	private final String name;
+	private final int overflowPolicy;
+	private final ThreadPoolExecutor executor;
+	
+	// Counters
+	private final AtomicLong queued = new AtomicLong();
+	private final AtomicLong sent = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	// Submitted and not finished (waiting or being sent)
+	private final AtomicInteger inFlight = new AtomicInteger();
+	
+	// From submit (or the given start time) until delivered
+	private final LatencyHistogram latency = new LatencyHistogram();
+	
+	/**
+	 * @param name for the threads and the report
+	 * @param workers number of threads sending at the same time
+	 * @param capacity items that can be waiting
+	 * @param overflowPolicy DROP_OLDEST or BLOCK
+	 */
+	public TelemetryDispatcher(final String name, int workers, int capacity, int overflowPolicy) {
+		this.name = name;
+		this.overflowPolicy = overflowPolicy;
+		
+		RejectedExecutionHandler handler;
+		switch (overflowPolicy) {
+		case DROP_OLDEST:
+			handler = dropOldest;
+			break;
+		case BLOCK:
+			handler = block;
+			break;
+		default:
+			throw new IllegalArgumentException("Unknown overflow policy");
+		}
+		
+		ThreadFactory threadFactory = new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+			
+			@Override
+			public Thread newThread(Runnable runnable) {
+				return new Thread(runnable, name + " " + count.incrementAndGet());
+			}
+		};
+		
+		executor = new ThreadPoolExecutor(workers, workers, KEEP_ALIVE, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(capacity), threadFactory, handler);
+		executor.allowCoreThreadTimeOut(true);
+	}
+	
+	/**
+	 * Queue an item. Depending on the policy it may drop the oldest item or block
+	 * (never from the main thread, see BLOCK)
+	 */
+	public void submit(final Item item) {
+		submit(item, System.nanoTime());
+	}
+	
+	/**
+	 * Queue an item (see submit)
+	 * @param startTime System.nanoTime() the latency is measured from (when the data was created)
+	 */
+	public void submit(final Item item, long startTime) {
+		queued.incrementAndGet();
+		inFlight.incrementAndGet();
+		
+		final Task task = new Task(item, startTime);
+		if (overflowPolicy == BLOCK && Looper.myLooper() == Looper.getMainLooper()) {
+			// Waiting for a free place here would freeze the UI (ANR)
+			handoff.execute(new Handoff(this, task));
+			return;
+		}
+		executor.execute(task);
+	}
+	
+	/**
+	 * Stop the workers. Waiting items are dropped
+	 */
+	public void shutdown() {
+		for (Runnable task : executor.shutdownNow()) { ((Task) task).drop(); }
+	}
+	
+	// Discard the oldest waiting item and try again
+	private final RejectedExecutionHandler dropOldest = new RejectedExecutionHandler() {
+		@Override
+		public void rejectedExecution(Runnable runnable, ThreadPoolExecutor executor) {
+			if (executor.isShutdown()) {
+				((Task) runnable).drop();
+				return;
+			}
+			
+			Runnable oldest = executor.getQueue().poll();
+			if (oldest != null) { ((Task) oldest).drop(); }
+			executor.execute(runnable);
+		}
+	};
+	
+	// Wait for a free place in the queue, unless the dispatcher is shut down meanwhile
+	private final RejectedExecutionHandler block = new RejectedExecutionHandler() {
+		@Override
+		public void rejectedExecution(Runnable runnable, ThreadPoolExecutor executor) {
+			BlockingQueue<Runnable> queue = executor.getQueue();
+			
+			try {
+				while (!executor.isShutdown()) {
+					if (queue.offer(runnable, SHUTDOWN_CHECK_PERIOD, TimeUnit.MILLISECONDS)) {
+						// Shut down before the offer: the waiting items may be dropped already, without this one
+						if (executor.isShutdown() && queue.remove(runnable)) { break; }
+						
+						// Workers may have finished meanwhile (KEEP_ALIVE)
+						executor.prestartAllCoreThreads();
+						return;
+					}
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			((Task) runnable).drop();
+		}
+	};
+	
+	/**
+	 * Items accepted (including the ones dropped later)
+	 */
+	public long getQueued() { return queued.get(); }
+	
+	/**
+	 * Items delivered
+	 */
+	public long getSent() { return sent.get(); }
+	
+	/**
+	 * Items that could not be delivered (server error, no connection...)
+	 */
+	public long getFailed() { return failed.get(); }
+	
+	/**
+	 * Items discarded because the queue was full (or the dispatcher shut down)
+	 */
+	public long getDropped() { return dropped.get(); }
+	
+	/**
+	 * Items waiting in the queue
+	 */
+	public int getWaiting() { return executor.getQueue().size(); }
+	
+	/**
+	 * No items waiting or being sent
+	 */
+	public boolean isIdle() { return inFlight.get() == 0; }
+	
+	/**
+	 * Time until the items were delivered (nanoseconds), see submit
+	 */
+	public LatencyHistogram getLatency() { return latency; }
+	
+	public String report() {
+		return name + ": queued=" + getQueued() + " sent=" + getSent() + " failed=" + getFailed()
+				+ " dropped=" + getDropped() + " waiting=" + getWaiting()
+				+ " latency [ms]: p50=" + latency.getPercentile(0.5) / 1000000
+				+ " p99=" + latency.getPercentile(0.99) / 1000000 + " max=" + latency.getMax() / 1000000;
+	}
+	
+	/**
+	 * Shared dispatcher for sensor values (drops the oldest when full)
+	 */
+	public static TelemetryDispatcher getTelemetry() { return telemetry; }
+	
+	/**
+	 * Shared dispatcher for pictures (never drops, blocks when full)
+	 */
+	public static TelemetryDispatcher getPictures() { return pictures; }
+	
+	/**
+	 * Shared dispatcher for thumbnails and previews (drops the oldest when full)
+	 */
+	public static TelemetryDispatcher getPreviews() { return previews; }
+	
+	/**
+	 * Send a value to the GroundStation (see HTTPCalls.send_data)
+	 * @param varName temp1, temp2, hum1, hum2, co, no2, alt_bar, alt_gps
+	 * @param value
+	 */
+	public static void sendData(final String varName, final String value) {
+		telemetry.submit(new Item() {
+			@Override
+			public boolean send() {
+				return HTTPCalls.send_data(MissionThread.QUAD_ID, varName, value);
+			}
+			
+			@Override
+			public void dropped() { }
+		});
+	}
+	
+	/**
+	 * Send a picture to the GroundStation (see HTTPCalls.send_picture). Blocks if too many are waiting
+	 * (on the main thread it's dropped instead, see HANDOFF_CAPACITY).
+	 * If it can't be sent the Outbox tries again later
+	 * @param file
+	 * @param name
+	 */
+	public static void sendPicture(final File file, final String name) {
+		final Outbox outbox = Outbox.getInstance();
+		final String key = (outbox != null) ? outbox.record(Outbox.PICTURE, name, file) : null;
+		
+		pictures.submit(new Item() {
+			@Override
+			public boolean send() {
+				boolean res = HTTPCalls.send_picture(file, name, key);
+				Log.d(TAG, "Picture sent: " + res);
+				
+				if (outbox != null) {
+					if (res) { outbox.sent(key); } else { outbox.failed(key); }
+				}
+				return res;
+			}
+			
+			@Override
+			public void dropped() {
+				if (outbox != null) { outbox.failed(key); }
+			}
+		});
+	}
+	
+	/**
+	 * Send a picture straight from memory. It's written to 'file' at the same time (archive),
+	 * the upload doesn't wait for it. If it can't be sent the Outbox tries again later from the file
+	 * (if the file could not be written the picture is lost, it's logged).
+	 * Blocks if too many are waiting (on the main thread it's only archived, see HANDOFF_CAPACITY)
+	 * @param data JPEG
+	 * @param file archive copy
+	 * @param name pic_id
+	 * @param shutterTime System.nanoTime() when the picture was taken (for the latency)
+	 */
+	public static void sendPicture(final byte[] data, final File file, final String name, final long shutterTime) {
+		final Outbox outbox = Outbox.getInstance();
+		final String key = (outbox != null) ? outbox.newKey() : null;
+		
+		// The journal entry is written after the file, on the archive thread: it waits for the disk
+		// (this is the main thread for the camera) and the Outbox only retries complete files
+		final Future<Boolean> archived = PictureArchive.submit(new Callable<Boolean>() {
+			@Override
+			public Boolean call() {
+				try {
+					PictureArchive.write(data, file);
+				} catch (IOException e) {
+					Log.e(TAG, "Picture " + name + " not archived, lost if the upload fails: " + e.getMessage());
+					return false;
+				}
+				
+				if (outbox != null) { outbox.record(Outbox.PICTURE, name, file, key); }
+				return true;
+			}
+		});
+		
+		pictures.submit(new Item() {
+			@Override
+			public boolean send() {
+				// Sent in the PICTURES class: the thumbnails and previews go first (see UplinkScheduler)
+				boolean res = HTTPCalls.send_picture(data, name, key);
+				Log.d(TAG, "Picture sent: " + res + " (" + (System.nanoTime() - shutterTime) / 1000000 + " ms after the shutter)");
+				
+				done(res);
+				return res;
+			}
+			
+			@Override
+			public void dropped() { done(false); }
+			
+			// Tell the Outbox from the archive thread, after the record (never waits, this may be the main thread)
+			private void done(final boolean isSent) {
+				if (outbox == null) { return; }
+				
+				PictureArchive.execute(new Runnable() {
+					@Override
+					public void run() {
+						if (!isArchived()) {
+							if (!isSent) { Log.e(TAG, "Picture " + name + " lost: not sent and not archived"); }
+							return;
+						}
+						if (isSent) { outbox.sent(key); } else { outbox.failed(key); }
+					}
+				});
+			}
+			
+			// Call it from the archive thread (the write is done)
+			private boolean isArchived() {
+				try {
+					return archived.get();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return false;
+				} catch (ExecutionException e) {
+					return false;
+				}
+			}
+		}, shutterTime);
+	}
+	
+	/**
+	 * Write a picture to disk without sending it (from the archive thread, see PictureArchive)
+	 */
+	public static void archivePicture(final byte[] data, final File file) {
+		PictureArchive.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					PictureArchive.write(data, file);
+				} catch (IOException e) {
+					Log.e(TAG, "Error writing picture: " + e.getMessage());
+				}
+			}
+		});
+	}
+}
@@ -0,0 +1,26 @@
+package es.upc.lewis.quadadk.comms;
+
+import java.io.IOException;
+
+/**
+ * Byte stream between the phone and the Arduino (see CommunicationsThread)
+ *
+ * AccessoryTransport talks to the real USB accessory, LoopbackTransport connects
+ * two ends in memory so the protocol can run without hardware.
+ */
+public interface Transport {
+	/**
+	 * Read some bytes. Blocks until at least one byte is available
+	 * @return number of bytes read or -1 if the transport is closed
+	 * @throws IOException
+	 */
+	public int read(byte[] buffer, int offset, int length) throws IOException;
+
+	/**
+	 * Write all the bytes
+	 * @throws IOException
+	 */
+	public void write(byte[] buffer, int offset, int length) throws IOException;
+
+	public void close() throws IOException;
+}
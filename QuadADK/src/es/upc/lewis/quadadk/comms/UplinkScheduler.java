@@ -0,0 +1,151 @@
+package es.upc.lewis.quadadk.comms;
+
+/**
+ * Decides who uses the uplink (phone to GroundStation). Every request asks for its bytes
+ * before writing them (see HTTPCalls), in one of these classes, highest priority first:
+ * CONTROL (mission start/abort), TELEMETRY (sensor values, GPS altitude, logs),
+ * THUMBNAILS (thumbnails and previews) and PICTURES (full pictures).
+ *
+ * Priority is strict: nobody gets bytes while a higher class is waiting. Uploads ask for
+ * CHUNK_SIZE bytes at a time, so a picture is paused between chunks when something more
+ * important arrives (preemption).
+ *
+ * With a budget (bytes per second, token bucket) the queue forms here instead of in the
+ * network, so set it a bit below what the link can take. CONTROL is counted but never
+ * waits for the budget. Without a budget only the waiting requests are ordered.
+ */
+public class UplinkScheduler {
+	// Classes (highest priority first)
+	public static final int CONTROL    = 0;
+	public static final int TELEMETRY  = 1;
+	public static final int THUMBNAILS = 2;
+	public static final int PICTURES   = 3;
+	private static final int CLASSES = 4;
+	private static final String[] NAMES = { "Control", "Telemetry", "Thumbnails", "Pictures" };
+
+	// Bytes granted at a time to an upload
+	public static final int CHUNK_SIZE = 8192;
+
+	// The budget can be saved for this long (burst)
+	private static final long BURST_TIME = 250; // Milliseconds
+
+	private static final UplinkScheduler instance = new UplinkScheduler();
+
+	// Guarded by 'this'
+	private long budget = 0; // Bytes per second, 0 for no limit
+	private long burst = CHUNK_SIZE;
+	private double tokens = 0; // Bytes that can be sent now (negative: debt)
+	private long lastRefill = System.nanoTime();
+	private final int[] waiting = new int[CLASSES];
+
+	// Metrics by class (guarded by 'this')
+	private final long[] requests = new long[CLASSES];
+	private final long[] bytes = new long[CLASSES];
+	private final LatencyHistogram[] waits = new LatencyHistogram[CLASSES];
+
+	public UplinkScheduler() {
+		for (int i = 0; i < CLASSES; i++) { waits[i] = new LatencyHistogram(); }
+	}
+
+	/**
+	 * Shared scheduler (the one HTTPCalls uses)
+	 */
+	public static UplinkScheduler getInstance() { return instance; }
+
+	/**
+	 * @param bytesPerSecond 0 for no limit
+	 */
+	public synchronized void setBudget(long bytesPerSecond) {
+		if (bytesPerSecond < 0) { throw new IllegalArgumentException("Negative budget"); }
+
+		budget = bytesPerSecond;
+		burst = Math.max(CHUNK_SIZE, budget * BURST_TIME / 1000);
+		tokens = burst;
+		lastRefill = System.nanoTime();
+		notifyAll();
+	}
+
+	public synchronized long getBudget() { return budget; }
+
+	/**
+	 * Wait until 'bytes' can be sent. Ask for CHUNK_SIZE at most, so others can go in between
+	 * @param priority CONTROL, TELEMETRY, THUMBNAILS or PICTURES
+	 * @param bytes
+	 * @return false if interrupted (don't send them)
+	 */
+	public synchronized boolean acquire(int priority, int bytes) {
+		if (priority < 0 || priority >= CLASSES) { throw new IllegalArgumentException("Unknown class"); }
+
+		long start = System.nanoTime();
+		waiting[priority]++;
+
+		try {
+			while (true) {
+				if (isHigherWaiting(priority)) {
+					wait();
+					continue;
+				}
+
+				if (budget == 0 || priority == CONTROL) { break; }
+
+				refill();
+				// A request bigger than the burst goes when the bucket is full (and leaves a debt)
+				long needed = Math.min(bytes, burst);
+				if (tokens >= needed) { break; }
+
+				long milliseconds = (long) Math.ceil((needed - tokens) * 1000 / budget);
+				wait(Math.max(1, milliseconds));
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		} finally {
+			waiting[priority]--;
+			notifyAll();
+		}
+
+		tokens -= bytes;
+		requests[priority]++;
+		this.bytes[priority] += bytes;
+		waits[priority].record(System.nanoTime() - start);
+		return true;
+	}
+
+	private boolean isHigherWaiting(int priority) {
+		for (int i = 0; i < priority; i++) {
+			if (waiting[i] > 0) { return true; }
+		}
+		return false;
+	}
+
+	/**
+	 * Add the budget earned since the last refill. Call it holding 'this'
+	 */
+	private void refill() {
+		long now = System.nanoTime();
+		tokens = Math.min(burst, tokens + (now - lastRefill) * budget / 1e9);
+		lastRefill = now;
+	}
+
+	/**
+	 * Time waiting for the uplink (nanoseconds)
+	 * @param priority CONTROL, TELEMETRY, THUMBNAILS or PICTURES
+	 */
+	public LatencyHistogram getWaits(int priority) { return waits[priority]; }
+
+	public synchronized long getBytes(int priority) { return bytes[priority]; }
+
+	public synchronized String report() {
+		StringBuilder builder = new StringBuilder();
+		builder.append("Uplink (budget ").append(budget).append(" B/s)\n");
+
+		for (int i = 0; i < CLASSES; i++) {
+			builder.append(NAMES[i]).append(": grants=").append(requests[i])
+				.append(" bytes=").append(bytes[i])
+				.append(" wait [ms]: p50=").append(waits[i].getPercentile(0.5) / 1000000)
+				.append(" p99=").append(waits[i].getPercentile(0.99) / 1000000)
+				.append(" max=").append(waits[i].getMax() / 1000000).append("\n");
+		}
+		return builder.toString();
+	}
+}
@@ -0,0 +1,13 @@
+package es.upc.lewis.quadadk.mission;
+
+/**
+ * Where the Navigator gets the position from: the phone (see MissionThread) or a recorded
+ * log (see ReplayLocationSource)
+ */
+public interface LocationSource {
+	/**
+	 * @param position result: latitude and longitude (degrees)
+	 * @return false if there is no position yet
+	 */
+	public boolean getPosition(double[] position);
+}
@@ -1,12 +1,11 @@
 package es.upc.lewis.quadadk.mission;
 
-import java.util.ArrayList;
-
 import es.upc.lewis.quadadk.MainActivity;
-import es.upc.lewis.quadadk.comms.ArduinoCommands;
 import es.upc.lewis.quadadk.comms.CommunicationsThread;
+import es.upc.lewis.quadadk.comms.LinkListener;
 import es.upc.lewis.quadadk.comms.MissionStatusPolling;
-import es.upc.lewis.quadadk.comms.SendDataThread;
+import es.upc.lewis.quadadk.comms.TelemetryBatcher;
+import es.upc.lewis.quadadk.comms.SensorListener;
 import es.upc.lewis.quadadk.tools.MyLocation;
 import android.content.BroadcastReceiver;
 import android.content.Context;
@@ -22,13 +21,18 @@ import android.support.v4.content.LocalBroadcastManager;
  * 
  * The MainActivity will start this thread when the server signals to start.
  * If the server aborts the mission you'll receive an ABORT_MISSION broadcast (see broadcastReceiver).
- * This BroadcastReceiver also receives data from the Arduino sensors; all it does now
+ * If the link with the Arduino is lost the mission is aborted too (see linkListener).
+ * Data from the Arduino sensors is received in sensorListener; all it does now
  * is send it to the server.
  * 
  * 
  * Useful methods:
  * 
  * locationProvider.getLastLocation()		Returns your GPS position (updated roughly once per second)
+ * locationProvider.getEstimatedLocation()	Returns your position now (GPS and phone acceleration, with speed and bearing)
+ * 
+ * navigator.step()		Moves towards the current waypoint, or hovers once it's reached (see Navigator)
+ * 						ReplayRunner runs it with recorded logs
  * 
  * 
  * The class MissionUtils has this methods you should use:
@@ -47,7 +51,13 @@ import android.support.v4.content.LocalBroadcastManager;
  * wait				Sleep for a given number of milliseconds
  * 
  * readSensor		Example: utils.readSensor(MissionUtils.TEMPERATURE);
- * 					Tell the Arduino to measure temperature and receive the result in the broadcastReceiver
+ * 					Tell the Arduino to measure temperature and receive the result in the sensorListener
+ * 					It returns a SensorReading you can wait for
+ * 
+ * readAllSensors	Read all the sensors at the same time (a single request to the Arduino)
+ * 
+ * waitFor			Example: utils.waitFor(1000, utils.readSensor(MissionUtils.CO), utils.readSensor(MissionUtils.NO2));
+ * 					Wait until all the readings have arrived (several requests can be waiting at the same time)
  * 
  * takePicture		Take a picture with the back camera and send it to the server
  * 					String parameter is the name
@@ -57,6 +67,11 @@ import android.support.v4.content.LocalBroadcastManager;
  * 
  * hover			Stay in place, don't move in any direction
  * 
+ * setSticks		Set flight mode, roll, pitch, throttle and yaw with a single command
+ * 					Example: utils.setSticks(MissionUtils.MODE_LOITTER, MissionUtils.CH_NEUTRAL + 200,
+ * 						MissionUtils.CH_NEUTRAL - 200, MissionUtils.THROTTLE_NEUTRAL, MissionUtils.CH_NEUTRAL);
+ * 					All the channels change at the same time
+ * 
  * To move your quadcopter horizontally you have to simulate movement of the right stick
  * The neutral (middle) position of the stick is 1500 and the range is [1000, 2000]
  * Channel 1: right (high) and left (low)
@@ -119,61 +134,52 @@ public class MissionThread extends Thread {
 	 */
 	public static final String QUAD_ID = "";
 	
-	// Sleep time, in milliseconds, at the end of the navigation loop
-	private int NAVIGATION_LOOP_PERIOD = 250;
+	// Sleep time, in milliseconds, at the end of the navigation loop (same as ReplayRunner)
+	private int NAVIGATION_LOOP_PERIOD = Navigator.LOOP_PERIOD;
 	
-	// Maximum error to consider we reached a waypoint. You may want to tweak it
-	private double WAYPOINT_LATITUDE_ERROR  = 0.00005;
-	private double WAYPOINT_LONGITUDE_ERROR = 0.00007;
-	
-	private Location currentLocation, startLocation, targetLocation;
-	private int cyclesInThisWaypoint = 0;
-	private boolean isLastWaypoint = false;
-	private double latitudeDelta, longitudeDelta;
-	boolean latitudeMovement;
-	boolean longitudeMovement;
-	
-	// Slider movement from neutral (MissionUtils.CH_NEUTRAL)
-	// Set to a higher value to move faster. Recommended values: [200, 300]
-	private final int HORIZONTAL_MOVEMENT_SLIDER = 200;
+	private Location currentLocation, startLocation;
 	
 	// Time to go up (gain altitude), in milliseconds
 	// This is used in the last waypoint. You may want to use the altitude (barometer)
 	// sensor instead of going up for given amount of time
 	private final int TIME_TO_GO_UP = 3000;
 	
-	// Store mission waypoints here. See loadWapoints()
-	ArrayList<Waypoint> waypoints;
-	private int currentWaypoint;
-	private class Waypoint {
-		public double latitude;
-		public double longitude;
-		public Waypoint(double latitude, double longitude) {
-			this.latitude = latitude;
-			this.longitude = longitude;
-		}
-	}
+	// Maximum time to wait for the sensor readings at a waypoint, in milliseconds
+	private final int SENSOR_TIMEOUT = 2000;
+	
+	// Moves to the mission waypoints. See loadWapoints()
+	// The maximum error to consider a waypoint reached and the speed can be changed there
+	private Navigator navigator;
 	
 	private MissionUtils utils;
 	private MyLocation locationProvider;
 	private MainActivity activity;
+	private CommunicationsThread comms;
 	
 	public MissionThread(CommunicationsThread comms, MainActivity activity, MyLocation locationProvider) {
 		this.locationProvider = locationProvider;
 		this.activity = activity;
+		this.comms = comms;
 		
 		// Utils class
 		utils = new MissionUtils(comms, activity, this);
 		
+		// Navigation with the estimated position, sticks to the Arduino
+		navigator = new Navigator(estimatedLocation, utils);
+		
 		// Register BroadcastReceiver
 		LocalBroadcastManager.getInstance(activity).registerReceiver(
 				broadcastReceiver, broadcastIntentFilter());
 		
+		// Register SensorListener
+		comms.getEventBus().register(sensorListener);
+		comms.getEventBus().register(linkListener);
+		
 		loadWaypoints();
 		
 		MainActivity.isMissionRunning = true;
 		
-		//MainActivity.gpsLogger.createLogFile();
+		MainActivity.gpsLogger.createLogFile();
 		
 		start();
 	}
@@ -182,100 +188,45 @@ public class MissionThread extends Thread {
 	 * Add your waypoints here
 	 */
 	private void loadWaypoints() {
-		waypoints = new ArrayList<Waypoint>();
 		// Starting location is 41.38812815, 2.1133061
 		
 		// Example:
-		// waypoints.add(new Waypoint(41.38825229, 2.11327331));
+		// navigator.addWaypoint(41.38825229, 2.11327331);
 		
 		
 		// Square
-//		waypoints.add(new Waypoint(41.38825229, 2.11327331));
-//		waypoints.add(new Waypoint(41.38809966, 2.11348435));
-//		waypoints.add(new Waypoint(41.38793185, 2.11331496));
-//		waypoints.add(new Waypoint(41.38796800, 2.11310139));
+//		navigator.addWaypoint(41.38825229, 2.11327331);
+//		navigator.addWaypoint(41.38809966, 2.11348435);
+//		navigator.addWaypoint(41.38793185, 2.11331496);
+//		navigator.addWaypoint(41.38796800, 2.11310139);
 		
 		
 		// Elisenda
-//		waypoints.add(new Waypoint(41.38821131, 2.11331871));
-//		waypoints.add(new Waypoint(41.38818302, 2.11342866));
-//		waypoints.add(new Waypoint(41.38804657, 2.11329966));
+//		navigator.addWaypoint(41.38821131, 2.11331871);
+//		navigator.addWaypoint(41.38818302, 2.11342866);
+//		navigator.addWaypoint(41.38804657, 2.11329966);
 		
 		
-		waypoints.add(new Waypoint(41.38807804, 2.11348146));
-		waypoints.add(new Waypoint(41.38799437, 2.11317220));
+		navigator.addWaypoint(41.38807804, 2.11348146);
+		navigator.addWaypoint(41.38799437, 2.11317220);
 	}
 	
 	/**
-	 * Sets sticks to move to the waypoint (independent of previous movement direction) and throttle to neutral
-	 * @throws AbortException
+	 * Position for the Navigator: the estimated one (GPS and phone acceleration), also logged
 	 */
-	private void performMovement() throws AbortException {
-		// This method sets channels 1 and 2 to move to the current waypoint target
-		// It always moves at the same speed (HORIZONTAL_MOVEMENT_SLIDER)
-		// Feel free to modify it
-		
-		latitudeMovement = Math.abs(latitudeDelta) > WAYPOINT_LATITUDE_ERROR;
-		longitudeMovement = Math.abs(longitudeDelta) > WAYPOINT_LONGITUDE_ERROR;
-		
-		utils.send(ArduinoCommands.SET_CH3, MissionUtils.THROTTLE_NEUTRAL);
-		
-		if (latitudeMovement) {
-			// Set latitude movement
-			if (latitudeDelta < 0) {
-				utils.send(ArduinoCommands.SET_CH2, MissionUtils.CH_NEUTRAL - HORIZONTAL_MOVEMENT_SLIDER);
-			}
-			else if (latitudeDelta > 0) {
-				utils.send(ArduinoCommands.SET_CH2, MissionUtils.CH_NEUTRAL + HORIZONTAL_MOVEMENT_SLIDER);
-			}
-			
-			// Change longitude to neutral if needed
-			if (!longitudeMovement) {
-				utils.send(ArduinoCommands.SET_CH1, MissionUtils.CH_NEUTRAL);
-			}
-		}
-		
-		if (longitudeMovement) {
-			// Set longitude movement
-			if (longitudeDelta < 0) {
-				utils.send(ArduinoCommands.SET_CH1, MissionUtils.CH_NEUTRAL + HORIZONTAL_MOVEMENT_SLIDER);
-			}
-			else if (longitudeDelta > 0) {
-				utils.send(ArduinoCommands.SET_CH1, MissionUtils.CH_NEUTRAL - HORIZONTAL_MOVEMENT_SLIDER);
-			}
+	private LocationSource estimatedLocation = new LocationSource() {
+		@Override
+		public boolean getPosition(double[] position) {
+			// The last GPS fix can be a second old
+			currentLocation = locationProvider.getEstimatedLocation();
+			if (currentLocation == null) { return false; }
+			MainActivity.gpsLogger.writeEstimate(currentLocation);
 			
-			// Change latitude to neutral if needed
-			if (!latitudeMovement) {
-				utils.send(ArduinoCommands.SET_CH2, MissionUtils.CH_NEUTRAL);
-			}
+			position[0] = currentLocation.getLatitude();
+			position[1] = currentLocation.getLongitude();
+			return true;
 		}
-	}
-	
-	private boolean waypointReached() {
-		if (Math.abs(latitudeDelta) > WAYPOINT_LATITUDE_ERROR) { return false; }
-		if (Math.abs(longitudeDelta) > WAYPOINT_LONGITUDE_ERROR) { return false; }
-		return true;
-	}
-	
-	private Location getNextWaypoint() {
-		if (waypoints.isEmpty()) { return null; }
-		
-		// Get next waypoint from the list
-		Waypoint waypoint = waypoints.remove(0);
-		
-		// Create a Location object with this waypoint
-		Location location = new Location("");
-		location.setLatitude(waypoint.latitude);
-		location.setLongitude(waypoint.longitude);
-		
-		currentWaypoint++;
-		cyclesInThisWaypoint = 0;
-		
-		// Is this the last waypoint?
-		if (waypoints.isEmpty()) { isLastWaypoint = true; }
-		
-		return location;
-	}
+	};
 	
 	@Override
 	public void run() {
@@ -292,9 +243,7 @@ public class MissionThread extends Thread {
 
 			
 			// Set first target
-			currentWaypoint = 0;
-			targetLocation = getNextWaypoint();
-			if (targetLocation == null) {
+			if (!navigator.nextWaypoint()) {
 				// There are no waypoints defined! End mission without taking off
 				endMission();
 				return;
@@ -308,24 +257,16 @@ public class MissionThread extends Thread {
 			// Navigation loop
 			boolean navigating = true;
 			while (navigating) {
-				// Get current location
-				currentLocation = locationProvider.getLastLocation();
-
-				// Calculate distance, in degrees, to the target
-				latitudeDelta  = currentLocation.getLatitude()  - targetLocation.getLatitude();
-				longitudeDelta = currentLocation.getLongitude() - targetLocation.getLongitude();
-
-				// Have we reached the target?
-				if (!waypointReached()) {
-					// Not yet reached
-					performMovement();
-				} else {
+				// Move to the target, or hover if we reached it
+				if (navigator.step() == Navigator.REACHED) {
 					// We reached the target
-					utils.hover();
-
-					if (isLastWaypoint) {
+					// This makes all the measurements on each waypoint (all of them at once, then the picture)
+					// Feel free to change what to do when we are in the target waypoint (see Navigator.getWaypointAction,
+					// ReplayRunner follows it too)
+					switch (navigator.getWaypointAction()) {
+					case Navigator.FINISH:
 						// Take a picture of the last waypoint before going up
-						utils.takePicture("local_" + Integer.toString(currentWaypoint));
+						utils.takePicture("local_" + Integer.toString(navigator.getCurrentWaypoint()));
 						utils.wait(NAVIGATION_LOOP_PERIOD);
 						
 						// Go up for a given ammount of time
@@ -341,43 +282,22 @@ public class MissionThread extends Thread {
 						
 						// Stop the loop, we are done
 						navigating = false;
-					}
-					else {
-						cyclesInThisWaypoint++;
-
-						// This makes all the measurements on each waypoint (one per loop cycle)
-						// Feel free to change what to do when we are in the target waypoint
-						switch (cyclesInThisWaypoint) {
-						case 1:
-							utils.readSensor(MissionUtils.ALTITUDE);
-							break;
-						case 2:
-							utils.readSensor(MissionUtils.TEMPERATURE);
-							break;
-						case 3:
-							utils.readSensor(MissionUtils.HUMIDITY);
-							break;
-						case 4:
-							utils.readSensor(MissionUtils.NO2);
-							break;
-						case 5:
-							utils.readSensor(MissionUtils.CO);
-							break;
-						case 6:
-							utils.takePicture("local_" + Integer.toString(currentWaypoint));
-							break;
-						case 7:
-							targetLocation = getNextWaypoint();
-							if (targetLocation == null) {
-								// Update: if we have a special case for the last waypoint
-								// ('if (isLastWaypoint)') we'll never get here
-								
-								// All waypoints have been reached, mission has
-								// to end
-								navigating = false;
-							}
-							break;
+						break;
+					case Navigator.READ_SENSORS:
+						// All the sensors in a single request
+						// Values are sent to the server by the sensorListener
+						utils.waitFor(SENSOR_TIMEOUT, utils.readAllSensors());
+						break;
+					case Navigator.TAKE_PICTURE:
+						utils.takePicture("local_" + Integer.toString(navigator.getCurrentWaypoint()));
+						break;
+					case Navigator.NEXT_WAYPOINT:
+						if (!navigator.nextWaypoint()) {
+							// All waypoints have been reached, mission has
+							// to end
+							navigating = false;
 						}
+						break;
 					}
 				}
 
@@ -405,11 +325,17 @@ public class MissionThread extends Thread {
 	private void endMission() {
 		// Unregister receiver
 		LocalBroadcastManager.getInstance(activity).unregisterReceiver(broadcastReceiver);
+		comms.getEventBus().unregister(sensorListener);
+		comms.getEventBus().unregister(linkListener);
+		
+		// Send the telemetry values still waiting for a batch
+		TelemetryBatcher.getInstance().flush();
 		
 		// Notify mission is over
 		MainActivity.isMissionRunning = false;
 		
-		//MainActivity.gpsLogger.close();
+		// Write what is left of the log (it doesn't block the navigation, see AsyncLogWriter)
+		MainActivity.gpsLogger.close();
 	}
 	
 	/**
@@ -420,33 +346,76 @@ public class MissionThread extends Thread {
 		public void onReceive(Context context, Intent intent) {
 			String action = intent.getAction();
 			
-			// Get the value (4 bytes) as an int (sensor readings)
-			int intBytes = intent.getIntExtra(CommunicationsThread.VALUE, 0);
-			// bytes to float
-			float value = Float.intBitsToFloat(intBytes);
-			String valueString = Float.toString(value);
-			
 			// From GroundStation
 			if (action.equals(MissionStatusPolling.ABORT_MISSION)) {
 				utils.abortMission();
 				//utils.showToast("Mission aborted!");
-			
-			// From Arduino
-			// All it does now is send data to the server. You'll probably want to change this
-		    } else if (action.equals(CommunicationsThread.ACTION_DATA_AVAILABLE_SENSOR_TEMPERATURE)) {
-		    	new SendDataThread("temp1", valueString);
-			} else if (action.equals(CommunicationsThread.ACTION_DATA_AVAILABLE_SENSOR_HUMIDITY)) {
-				new SendDataThread("hum1", valueString);
-			} else if (action.equals(CommunicationsThread.ACTION_DATA_AVAILABLE_SENSOR_NO2)) {
-				new SendDataThread("no2", valueString);
-			} else if (action.equals(CommunicationsThread.ACTION_DATA_AVAILABLE_SENSOR_CO)) {
-				new SendDataThread("co", valueString);
-			} else if (action.equals(CommunicationsThread.ACTION_DATA_AVAILABLE_SENSOR_ALTITUDE)) {
-				new SendDataThread("alt_bar", valueString);
 			}
 		}
 	};
 	
+	/**
+	 * Receive data from the Arduino sensors
+	 * All it does now is send data to the server. You'll probably want to change this
+	 */
+	private SensorListener sensorListener = new SensorListener() {
+		@Override
+		public void onSensor(byte sensorId, float value, long timestampNanos) {
+			sendSensorValue(sensorId, value);
+		}
+		
+		@Override
+		public void onAllSensors(float temperature, float humidity, float no2, float co, float altitude,
+				long timestampNanos) {
+			sendSensorValue(MissionUtils.TEMPERATURE, temperature);
+			sendSensorValue(MissionUtils.HUMIDITY, humidity);
+			sendSensorValue(MissionUtils.NO2, no2);
+			sendSensorValue(MissionUtils.CO, co);
+			sendSensorValue(MissionUtils.ALTITUDE, altitude);
+		}
+	};
+	
+	/**
+	 * Abort the mission if the link with the Arduino is lost. The Arduino
+	 * switches to loiter with neutral sticks when it stops receiving commands
+	 */
+	private LinkListener linkListener = new LinkListener() {
+		@Override
+		public void onLinkDown(int reason, long timestampNanos) {
+			utils.linkLost();
+		}
+		
+		@Override
+		public void onLinkUp(long timestampNanos) {
+			// The mission is already aborted
+		}
+	};
+	
+	/**
+	 * Send a sensor value to the server
+	 */
+	private void sendSensorValue(byte sensorId, float value) {
+		String valueString = Float.toString(value);
+		
+		switch (sensorId) {
+		case MissionUtils.TEMPERATURE:
+			TelemetryBatcher.sendData("temp1", valueString);
+			break;
+		case MissionUtils.HUMIDITY:
+			TelemetryBatcher.sendData("hum1", valueString);
+			break;
+		case MissionUtils.NO2:
+			TelemetryBatcher.sendData("no2", valueString);
+			break;
+		case MissionUtils.CO:
+			TelemetryBatcher.sendData("co", valueString);
+			break;
+		case MissionUtils.ALTITUDE:
+			TelemetryBatcher.sendData("alt_bar", valueString);
+			break;
+		}
+	}
+	
 	/**
 	 * Intents to listen to
 	 */
@@ -456,13 +425,6 @@ public class MissionThread extends Thread {
 		// From GroundStation
 		intentFilter.addAction(MissionStatusPolling.ABORT_MISSION);
 		
-		// From Arduino
-		intentFilter.addAction(CommunicationsThread.ACTION_DATA_AVAILABLE_SENSOR_TEMPERATURE);
-		intentFilter.addAction(CommunicationsThread.ACTION_DATA_AVAILABLE_SENSOR_HUMIDITY);
-		intentFilter.addAction(CommunicationsThread.ACTION_DATA_AVAILABLE_SENSOR_NO2);
-		intentFilter.addAction(CommunicationsThread.ACTION_DATA_AVAILABLE_SENSOR_CO);
-		intentFilter.addAction(CommunicationsThread.ACTION_DATA_AVAILABLE_SENSOR_ALTITUDE);
-		
 		return intentFilter;
 	}
-}
+}
\ No newline at end of file
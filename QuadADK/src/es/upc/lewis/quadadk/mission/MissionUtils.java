@@ -3,9 +3,10 @@ package es.upc.lewis.quadadk.mission;
 import es.upc.lewis.quadadk.MainActivity;
 import es.upc.lewis.quadadk.comms.ArduinoCommands;
 import es.upc.lewis.quadadk.comms.CommunicationsThread;
+import es.upc.lewis.quadadk.comms.SensorReading;
 import android.widget.Toast;
 
-public class MissionUtils {
+public class MissionUtils implements StickOutput {
 	private final int VERTICAL_MOVEMENT_SLIDER = 200;
 	
 	private static final int TIME_TO_ARM     = 5000;        // Milliseconds
@@ -18,13 +19,21 @@ public class MissionUtils {
 	public static final byte NO2         = 0x03;
 	public static final byte CO          = 0x04;
 	public static final byte ALTITUDE    = 0x05;
+	public static final byte ALL_SENSORS = 0x06; // All of them at once
 	
-	// Channel values
-	public static final int THROTTLE_MIN     = 1150; // Throttle has a different minimum value
-	public static final int THROTTLE_NEUTRAL = 1650;
-	public static final int CH_MIN       = 1000;
-	public static final int CH_NEUTRAL   = 1500;
-	public static final int CH_MAX       = 2000;
+	// Channel values (see RcChannels)
+	public static final int THROTTLE_MIN     = RcChannels.THROTTLE_MIN; // Throttle has a different minimum value
+	public static final int THROTTLE_NEUTRAL = RcChannels.THROTTLE_NEUTRAL;
+	public static final int CH_MIN       = RcChannels.CH_MIN;
+	public static final int CH_NEUTRAL   = RcChannels.CH_NEUTRAL;
+	public static final int CH_MAX       = RcChannels.CH_MAX;
+	
+	// Flight modes (channel 5 values, same as rc.h)
+	public static final int MODE_LOITTER = RcChannels.MODE_LOITTER;
+	public static final int MODE_AUTO    = RcChannels.MODE_AUTO;
+	public static final int MODE_STB     = RcChannels.MODE_STB;
+	public static final int MODE_ALTHOLD = RcChannels.MODE_ALTHOLD;
+	public static final int MODE_RTL     = RcChannels.MODE_RTL;
 	
 	// To abort the mission
 	private static volatile boolean isAborted = false;
@@ -34,6 +43,18 @@ public class MissionUtils {
 	// To communicate with the Arduino
 	private CommunicationsThread arduino;
 	
+	// Channel values we believe the Arduino has (channel 5 is the flight mode)
+	// Only the channels that change are sent (see setChannels)
+	private final int[] shadowChannels = new int[ArduinoCommands.NUMBER_OF_CHANNELS];
+	private final int[] requestedChannels = new int[ArduinoCommands.NUMBER_OF_CHANNELS];
+	private boolean isShadowValid = false;
+	
+	// Send all the channels from time to time, in case a write was lost
+	// or the Arduino changed them (RC switch)
+	private static final long FULL_REFRESH_PERIOD = 2000; // Milliseconds
+	private long fullRefreshPeriod = FULL_REFRESH_PERIOD;
+	private long lastFullRefresh = 0;
+	
 	// To show toasts (useful when testing)
 	private MainActivity activity;
 	
@@ -47,23 +68,152 @@ public class MissionUtils {
 	
 	/**
 	 * Send a command (1 byte) to the Arduino if the mission is not aborted.
+	 * Flight mode commands are only sent if the mode changes.
 	 * @param command
 	 * @throws AbortException 
 	 */
 	public void send(byte command) throws AbortException {
-		if (!isAborted) { arduino.send(command); }
-		else { throw new AbortException(); }
+		if (isAborted) { throw new AbortException(); }
+		
+		sendWithoutException(command);
 	}
 	
 	/**
-	 * Send a command (1 byte) and a 4 bytes int to the Arduino if the mission is not aborted.
+	 * Send a command (1 byte) and a 2 bytes int to the Arduino if the mission is not aborted.
+	 * Channel commands (SET_CHx) are only sent if the value changes.
 	 * @param command
 	 * @param value
 	 * @throws AbortException 
 	 */
 	public void send(byte command, int value) throws AbortException {
-		if (!isAborted) { arduino.send(command, value); }
-		else { throw new AbortException(); }
+		if (isAborted) { throw new AbortException(); }
+		
+		sendWithoutException(command, value);
+	}
+	
+	private synchronized void sendWithoutException(byte command) {
+		int mode = flightMode(command);
+		if (mode < 0) { arduino.send(command); return; }
+		
+		// Flight mode is channel 5
+		System.arraycopy(shadowChannels, 0, requestedChannels, 0, requestedChannels.length);
+		requestedChannels[4] = mode;
+		setChannels(requestedChannels);
+	}
+	
+	private synchronized void sendWithoutException(byte command, int value) {
+		if (command < ArduinoCommands.SET_CH1 || command > ArduinoCommands.SET_CH8) {
+			arduino.send(command, value);
+			return;
+		}
+		
+		System.arraycopy(shadowChannels, 0, requestedChannels, 0, requestedChannels.length);
+		requestedChannels[(command & 0x0F) - 1] = value; // Channel number (lower 4 bits)
+		setChannels(requestedChannels);
+	}
+	
+	/**
+	 * Channel 5 value of a SET_MODE_X command or -1 if it's not a flight mode command
+	 */
+	private static int flightMode(byte command) {
+		switch (command) {
+		case ArduinoCommands.SET_MODE_ALTHOLD: return MODE_ALTHOLD;
+		case ArduinoCommands.SET_MODE_LOITTER: return MODE_LOITTER;
+		case ArduinoCommands.SET_MODE_AUTO:    return MODE_AUTO;
+		case ArduinoCommands.SET_MODE_RTL:     return MODE_RTL;
+		case ArduinoCommands.SET_MODE_STB:     return MODE_STB;
+		default: return -1;
+		}
+	}
+	
+	/**
+	 * Send the channels that are different from the ones the Arduino has.
+	 * One changed channel is sent with SET_CHx, more than one with SET_ALL_CHANNELS
+	 * (so they change at the same time). All of them are sent if we don't know what
+	 * the Arduino has or if it's time for a full refresh.
+	 * @param channels values for channels 1 to 8
+	 */
+	private synchronized void setChannels(int[] channels) {
+		long now = System.currentTimeMillis();
+		boolean fullRefresh = !isShadowValid || now - lastFullRefresh >= fullRefreshPeriod;
+		
+		int changed = 0;
+		int lastChanged = 0;
+		for (int i = 0; i < channels.length; i++) {
+			// Same rules as the Arduino (setPPMChannel)
+			int value = channels[i];
+			if (value < CH_MIN || value > CH_MAX) {
+				channels[i] = shadowChannels[i]; // Rejected, Arduino keeps the old value
+				continue;
+			}
+			if (i == 2 && value < THROTTLE_MIN) { channels[i] = THROTTLE_MIN; }
+			
+			if (channels[i] != shadowChannels[i]) {
+				changed++;
+				lastChanged = i;
+			}
+		}
+		
+		if (fullRefresh || changed > 1) {
+			arduino.send(ArduinoCommands.SET_ALL_CHANNELS, channels);
+		} else if (changed == 1) {
+			arduino.send((byte) (ArduinoCommands.SET_CH1 + lastChanged), channels[lastChanged]);
+		}
+		
+		System.arraycopy(channels, 0, shadowChannels, 0, shadowChannels.length);
+		if (fullRefresh) {
+			isShadowValid = true;
+			lastFullRefresh = now;
+		}
+	}
+	
+	/**
+	 * Send all the channels if it's time for a full refresh (see setFullRefreshPeriod)
+	 */
+	private synchronized void refreshChannels() {
+		if (!isShadowValid) { return; } // Nothing sent yet
+		if (System.currentTimeMillis() - lastFullRefresh < fullRefreshPeriod) { return; }
+		
+		System.arraycopy(shadowChannels, 0, requestedChannels, 0, requestedChannels.length);
+		setChannels(requestedChannels);
+	}
+	
+	/**
+	 * Channel values are only sent when they change. Every 'period' milliseconds
+	 * all of them are sent again in case the Arduino missed one
+	 * @param period in milliseconds
+	 */
+	public synchronized void setFullRefreshPeriod(long period) {
+		fullRefreshPeriod = period;
+	}
+	
+	/**
+	 * Set flight mode, roll, pitch, throttle and yaw with a single command.
+	 * The Arduino updates all the channels at once (no PPM frame with only some of them changed).
+	 * Channels 6, 7 and 8 are set to CH_MIN (same as the Arduino does)
+	 * @param mode flight mode (MODE_LOITTER, MODE_ALTHOLD...)
+	 * @param roll channel 1
+	 * @param pitch channel 2
+	 * @param throttle channel 3
+	 * @param yaw channel 4
+	 * @throws AbortException
+	 */
+	public void setSticks(int mode, int roll, int pitch, int throttle, int yaw) throws AbortException {
+		if (isAborted) { throw new AbortException(); }
+		
+		setSticksWithoutException(mode, roll, pitch, throttle, yaw);
+	}
+	
+	private synchronized void setSticksWithoutException(int mode, int roll, int pitch, int throttle, int yaw) {
+		requestedChannels[0] = roll;
+		requestedChannels[1] = pitch;
+		requestedChannels[2] = throttle;
+		requestedChannels[3] = yaw;
+		requestedChannels[4] = mode;
+		requestedChannels[5] = CH_MIN; // Not used
+		requestedChannels[6] = CH_MIN; // Switch (no simple mode)
+		requestedChannels[7] = CH_MIN; // Not used
+		setChannels(requestedChannels);
 	}
 	
 	/**
@@ -78,18 +228,29 @@ public class MissionUtils {
 		returnToLaunch();
 	}
 	
+	/**
+	 * Abort mission because the link with the Arduino is down. Doesn't return to launch, only
+	 * sends hover in case it still arrives. LinkMonitor stops the heartbeats, so the Arduino
+	 * falls back to loiter with neutral sticks when it sees the phone silent
+	 */
+	public void linkLost() {
+		isAborted = true;
+		
+		if (isSleeping) { thread.interrupt(); }
+		isSleeping = false;
+		
+		// All the channels, we don't know what the Arduino got
+		synchronized (this) { isShadowValid = false; }
+		setSticksWithoutException(MODE_LOITTER, CH_NEUTRAL, CH_NEUTRAL, THROTTLE_NEUTRAL, CH_NEUTRAL);
+	}
+	
 	/**
 	 * Arms motors. Blocks for 'timeToArm' milliseconds. Switches to Altitude Hold flight mode
 	 * Leaves roll, pitch and yaw in neutral (1500) and throttle at minimum (1000).
 	 */
 	private void arm() throws AbortException {
 		// Set flight mode to altitude hold (can't arm in loitter)
-		send(ArduinoCommands.SET_MODE_ALTHOLD);
-
-		send(ArduinoCommands.SET_CH1, CH_NEUTRAL);
-		send(ArduinoCommands.SET_CH2, CH_NEUTRAL);
-		send(ArduinoCommands.SET_CH3, THROTTLE_MIN);
-		send(ArduinoCommands.SET_CH4, CH_MAX);
+		setSticks(MODE_ALTHOLD, CH_NEUTRAL, CH_NEUTRAL, THROTTLE_MIN, CH_MAX);
 
 		wait(TIME_TO_ARM);
 
@@ -116,11 +277,7 @@ public class MissionUtils {
 	 * Set roll, pitch, throttle and yaw to neutral (hover) and flight mode to Loitter
 	 */
 	public void hover() throws AbortException {
-		send(ArduinoCommands.SET_MODE_LOITTER);
-		send(ArduinoCommands.SET_CH1, CH_NEUTRAL);
-		send(ArduinoCommands.SET_CH2, CH_NEUTRAL);
-		send(ArduinoCommands.SET_CH3, THROTTLE_NEUTRAL);
-		send(ArduinoCommands.SET_CH4, CH_NEUTRAL);
+		setSticks(MODE_LOITTER, CH_NEUTRAL, CH_NEUTRAL, THROTTLE_NEUTRAL, CH_NEUTRAL);
 	}
 	
 	/**
@@ -153,21 +310,20 @@ public class MissionUtils {
 	 * Return to launch position, land and disarm. Executes even if mission is aborted
 	 */
 	public void returnToLaunch() {
+		// Send all the channels, don't trust what we think the Arduino has
+		synchronized (this) { isShadowValid = false; }
+		
 		// Hover
-		arduino.send(ArduinoCommands.SET_MODE_LOITTER);
-		arduino.send(ArduinoCommands.SET_CH1, CH_NEUTRAL);
-		arduino.send(ArduinoCommands.SET_CH2, CH_NEUTRAL);
-		arduino.send(ArduinoCommands.SET_CH3, THROTTLE_NEUTRAL);
-		arduino.send(ArduinoCommands.SET_CH4, CH_NEUTRAL);
+		setSticksWithoutException(MODE_LOITTER, CH_NEUTRAL, CH_NEUTRAL, THROTTLE_NEUTRAL, CH_NEUTRAL);
 		
 		// Set return to launch mode
-		arduino.send(ArduinoCommands.SET_MODE_RTL);
+		sendWithoutException(ArduinoCommands.SET_MODE_RTL);
 		
 		// Wait some time so it engages RTL
 		waitWithoutException(2000);
 				
 		// Set throttle to low (auto disarm after landing)
-		arduino.send(ArduinoCommands.SET_CH3, THROTTLE_MIN);
+		sendWithoutException(ArduinoCommands.SET_CH3, THROTTLE_MIN);
 	}
 	
 	/**
@@ -191,27 +347,58 @@ public class MissionUtils {
 	}
 	
 	/**
-	 * Read sensor and get result in MissionThread
+	 * Read sensor and get result in MissionThread (sensorListener) and in the returned SensorReading.
+	 * It doesn't wait for the result, you can request several sensors and then wait for all of them
+	 * (see waitFor)
+	 * @param sensor TEMPERATURE, HUMIDITY, NO2, CO, ALTITUDE or ALL_SENSORS
+	 * @return the reading, use waitFor to get its value
 	 * @throws AbortException 
 	 */
-	public void readSensor(byte sensor) throws AbortException {
-		switch (sensor) {
-		case TEMPERATURE:
-			send(ArduinoCommands.READ_SENSOR_TEMPERATURE);
-			break;
-		case HUMIDITY:
-			send(ArduinoCommands.READ_SENSOR_HUMIDITY);
-			break;
-		case NO2:
-			send(ArduinoCommands.READ_SENSOR_NO2);
-			break;
-		case CO:
-			send(ArduinoCommands.READ_SENSOR_CO);
-			break;
-		case ALTITUDE:
-			send(ArduinoCommands.READ_SENSOR_ALTITUDE);
-			break;
+	public SensorReading readSensor(byte sensor) throws AbortException {
+		if (isAborted) { throw new AbortException(); }
+		
+		return arduino.requestSensor(sensor);
+	}
+	
+	/**
+	 * Read all the sensors at the same time. Get the result in MissionThread (sensorListener.onAllSensors)
+	 * and in the returned SensorReading (getValue(sensor))
+	 * @return the reading, use waitFor to get its values
+	 * @throws AbortException
+	 */
+	public SensorReading readAllSensors() throws AbortException {
+		return readSensor(ALL_SENSORS);
+	}
+	
+	/**
+	 * Wait until all the readings have their value or the timeout expires
+	 * @param timeout in milliseconds, for all of them
+	 * @param readings
+	 * @return true if all the values arrived
+	 * @throws AbortException
+	 */
+	public boolean waitFor(int timeout, SensorReading... readings) throws AbortException {
+		if (isAborted) { throw new AbortException(); }
+		
+		long deadline = System.currentTimeMillis() + timeout;
+		isSleeping = true;
+		
+		try {
+			for (SensorReading reading : readings) {
+				long remaining = deadline - System.currentTimeMillis();
+				if (!reading.await(remaining)) { return false; }
+			}
 		}
+		// Abort mission if thread is interrupted
+		catch (InterruptedException e) {
+			if (isAborted) { throw new AbortException(); }
+			return false;
+		}
+		finally {
+			isSleeping = false;
+		}
+		
+		return true;
 	}
 	
 	/**
@@ -222,6 +409,8 @@ public class MissionUtils {
 	public void wait(int time) throws AbortException {
 		if (isAborted) { throw new AbortException(); }
 		
+		refreshChannels();
+		
 		isSleeping = true;
 		
 		try { Thread.sleep(time); }
@@ -0,0 +1,198 @@
+package es.upc.lewis.quadadk.mission;
+
+import java.util.ArrayList;
+
+/**
+ * Navigation to a list of waypoints, without threads nor Android: each step() reads the position
+ * from a LocationSource and sets the sticks of a StickOutput, every LOOP_PERIOD. What to do at
+ * a waypoint (sensors, pictures...) is in getWaypointAction, so MissionThread and ReplayRunner
+ * do the same.
+ *
+ * The quadcopter always points north: moving right increases longitude and moving forward
+ * increases latitude.
+ */
+public class Navigator {
+	// Result of step()
+	public static final int NO_POSITION = 0; // Nothing sent
+	public static final int MOVING      = 1; // Sticks set to move to the waypoint
+	public static final int REACHED     = 2; // Hovering at the waypoint (see getWaypointAction)
+	
+	// What to do at a reached waypoint (see getWaypointAction)
+	public static final int HOVER         = 0; // Nothing else this step
+	public static final int READ_SENSORS  = 1;
+	public static final int TAKE_PICTURE  = 2;
+	public static final int NEXT_WAYPOINT = 3;
+	public static final int FINISH        = 4; // Last waypoint: picture, go up, picture from above
+	
+	// Time between steps (milliseconds)
+	public static final int LOOP_PERIOD = 250;
+	
+	// Maximum error to consider we reached a waypoint. You may want to tweak it
+	public static final double DEFAULT_LATITUDE_ERROR  = 0.00005;
+	public static final double DEFAULT_LONGITUDE_ERROR = 0.00007;
+	private double latitudeError  = DEFAULT_LATITUDE_ERROR;
+	private double longitudeError = DEFAULT_LONGITUDE_ERROR;
+	
+	// Slider movement from neutral (RcChannels.CH_NEUTRAL)
+	// Set to a higher value to move faster. Recommended values: [200, 300]
+	private int horizontalMovementSlider = 200;
+	
+	private final LocationSource locationSource;
+	private final StickOutput sticks;
+	
+	// Waypoints not reached yet (latitude and longitude)
+	private final ArrayList<double[]> waypoints = new ArrayList<double[]>();
+	private double[] target = null;
+	private int currentWaypoint = 0;
+	private int cyclesInThisWaypoint = 0;
+	
+	private final double[] position = new double[2];
+	private double latitudeDelta, longitudeDelta;
+	
+	public Navigator(LocationSource locationSource, StickOutput sticks) {
+		this.locationSource = locationSource;
+		this.sticks = sticks;
+	}
+	
+	/**
+	 * Maximum error (degrees) to consider a waypoint reached
+	 */
+	public void setWaypointError(double latitude, double longitude) {
+		latitudeError = latitude;
+		longitudeError = longitude;
+	}
+	
+	/**
+	 * @param slider movement from neutral, [200, 300] recommended
+	 */
+	public void setHorizontalMovementSlider(int slider) {
+		horizontalMovementSlider = slider;
+	}
+	
+	public void addWaypoint(double latitude, double longitude) {
+		waypoints.add(new double[] { latitude, longitude });
+	}
+	
+	/**
+	 * Go to the next waypoint
+	 * @return false if there are no more waypoints
+	 */
+	public boolean nextWaypoint() {
+		if (waypoints.isEmpty()) {
+			target = null;
+			return false;
+		}
+		
+		target = waypoints.remove(0);
+		currentWaypoint++;
+		cyclesInThisWaypoint = 0;
+		return true;
+	}
+	
+	/**
+	 * Number of the waypoint we are going to (the first is 1)
+	 */
+	public int getCurrentWaypoint() { return currentWaypoint; }
+	
+	public boolean isLastWaypoint() { return target != null && waypoints.isEmpty(); }
+	
+	/**
+	 * Steps that returned REACHED since we arrived to this waypoint
+	 */
+	public int getCyclesInWaypoint() { return cyclesInThisWaypoint; }
+	
+	/**
+	 * What to do after a step that returned REACHED. At the last waypoint the mission finishes,
+	 * at the others the sensors are read (first step), a picture is taken (second step) and
+	 * we go to the next one (third step). Change it here to change both MissionThread and ReplayRunner
+	 * @return HOVER, READ_SENSORS, TAKE_PICTURE, NEXT_WAYPOINT or FINISH
+	 */
+	public int getWaypointAction() {
+		if (isLastWaypoint()) { return FINISH; }
+		
+		switch (cyclesInThisWaypoint) {
+		case 1:  return READ_SENSORS;
+		case 2:  return TAKE_PICTURE;
+		case 3:  return NEXT_WAYPOINT;
+		default: return HOVER;
+		}
+	}
+	
+	/**
+	 * Latitude and longitude of the last step (valid if it didn't return NO_POSITION)
+	 */
+	public double getLatitude() { return position[0]; }
+	
+	public double getLongitude() { return position[1]; }
+	
+	/**
+	 * Read the position and move to the current waypoint (or hover if we are there).
+	 * Call nextWaypoint() before the first step
+	 * @return NO_POSITION, MOVING or REACHED
+	 * @throws AbortException
+	 */
+	public int step() throws AbortException {
+		if (target == null) { throw new IllegalStateException("No waypoint"); }
+		if (!locationSource.getPosition(position)) { return NO_POSITION; }
+		
+		// Calculate distance, in degrees, to the target
+		latitudeDelta  = position[0] - target[0];
+		longitudeDelta = position[1] - target[1];
+		
+		if (!waypointReached()) {
+			performMovement();
+			return MOVING;
+		}
+		
+		// Hover
+		sticks.setSticks(RcChannels.MODE_LOITTER, RcChannels.CH_NEUTRAL, RcChannels.CH_NEUTRAL,
+				RcChannels.THROTTLE_NEUTRAL, RcChannels.CH_NEUTRAL);
+		cyclesInThisWaypoint++;
+		return REACHED;
+	}
+	
+	/**
+	 * Sets sticks to move to the waypoint (independent of previous movement direction) and throttle to neutral
+	 * @throws AbortException
+	 */
+	private void performMovement() throws AbortException {
+		// This method sets channels 1 and 2 to move to the current waypoint target
+		// It always moves at the same speed (horizontalMovementSlider)
+		
+		boolean latitudeMovement = Math.abs(latitudeDelta) > latitudeError;
+		boolean longitudeMovement = Math.abs(longitudeDelta) > longitudeError;
+		
+		// Neutral unless we have to move in that direction
+		int roll  = RcChannels.CH_NEUTRAL;
+		int pitch = RcChannels.CH_NEUTRAL;
+		
+		if (latitudeMovement) {
+			// Set latitude movement
+			if (latitudeDelta < 0) {
+				pitch = RcChannels.CH_NEUTRAL - horizontalMovementSlider;
+			}
+			else if (latitudeDelta > 0) {
+				pitch = RcChannels.CH_NEUTRAL + horizontalMovementSlider;
+			}
+		}
+		
+		if (longitudeMovement) {
+			// Set longitude movement
+			if (longitudeDelta < 0) {
+				roll = RcChannels.CH_NEUTRAL + horizontalMovementSlider;
+			}
+			else if (longitudeDelta > 0) {
+				roll = RcChannels.CH_NEUTRAL - horizontalMovementSlider;
+			}
+		}
+		
+		// All channels in a single command
+		sticks.setSticks(RcChannels.MODE_LOITTER, roll, pitch, RcChannels.THROTTLE_NEUTRAL, RcChannels.CH_NEUTRAL);
+	}
+	
+	private boolean waypointReached() {
+		if (Math.abs(latitudeDelta) > latitudeError) { return false; }
+		if (Math.abs(longitudeDelta) > longitudeError) { return false; }
+		return true;
+	}
+}
@@ -0,0 +1,21 @@
+package es.upc.lewis.quadadk.mission;
+
+/**
+ * Channel values the Arduino takes (same as rc.h and ArduinoADK_with_PPM.ino).
+ * MissionUtils has the same names, Navigator and ReplayRunner use these
+ */
+public class RcChannels {
+	// Channel values
+	public static final int THROTTLE_MIN     = 1150; // Throttle has a different minimum value
+	public static final int THROTTLE_NEUTRAL = 1650;
+	public static final int CH_MIN       = 1000;
+	public static final int CH_NEUTRAL   = 1500;
+	public static final int CH_MAX       = 2000;
+	
+	// Flight modes (channel 5 values)
+	public static final int MODE_LOITTER = 1296;
+	public static final int MODE_AUTO    = 1426;
+	public static final int MODE_STB     = 1556;
+	public static final int MODE_ALTHOLD = 1685;
+	public static final int MODE_RTL     = 1900;
+}
@@ -0,0 +1,165 @@
+package es.upc.lewis.quadadk.mission;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+
+import es.upc.lewis.quadadk.tools.FlightLog;
+import es.upc.lewis.quadadk.tools.FlightLogReader;
+
+/**
+ * Positions from a recorded log, as the GPS gave them: getPosition() returns the last fix
+ * at the replay time, which only moves with advance() (the caller decides how fast).
+ *
+ * Reads the text logs of GPSLogger (latitude;longitude;altitude;accuracy; like the logs in Matlab,
+ * a fix every fixPeriod) and FlightLog files (.flog, with times). Lines cut by a crash are skipped.
+ */
+public class ReplayLocationSource implements LocationSource {
+	// Time between fixes of a text log (they have no time)
+	public static final long DEFAULT_FIX_PERIOD = 1000; // Milliseconds
+	
+	// Shared by the copies
+	private final String name;
+	private final long[] times; // Milliseconds from the first fix
+	private final double[] latitudes;
+	private final double[] longitudes;
+	private final int skippedLines;
+	
+	// Replay time (milliseconds from the first fix) and fix returned
+	private long time = 0;
+	private int current = 0;
+	
+	private ReplayLocationSource(String name, long[] times, double[] latitudes, double[] longitudes, int skippedLines) {
+		this.name = name;
+		this.times = times;
+		this.latitudes = latitudes;
+		this.longitudes = longitudes;
+		this.skippedLines = skippedLines;
+	}
+	
+	/**
+	 * Same fixes, replay from the start (to run several replays of a log at the same time)
+	 */
+	public ReplayLocationSource(ReplayLocationSource other) {
+		this(other.name, other.times, other.latitudes, other.longitudes, other.skippedLines);
+	}
+	
+	/**
+	 * Read a log: FlightLog if it ends with .flog, text otherwise
+	 * @param fixPeriod milliseconds between the fixes of a text log
+	 */
+	public static ReplayLocationSource open(File file, long fixPeriod) throws IOException {
+		if (file.getName().endsWith(".flog")) { return readFlightLog(file); }
+		return readTextLog(file, fixPeriod);
+	}
+	
+	private static ReplayLocationSource readTextLog(File file, long fixPeriod) throws IOException {
+		ArrayList<double[]> fixes = new ArrayList<double[]>();
+		int skipped = 0;
+		
+		BufferedReader reader = new BufferedReader(new FileReader(file));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String[] fields = line.split(";");
+				if (fields.length < 4) {
+					skipped++;
+					continue;
+				}
+				
+				try {
+					fixes.add(new double[] { Double.parseDouble(fields[0]), Double.parseDouble(fields[1]) });
+				} catch (NumberFormatException e) {
+					skipped++;
+				}
+			}
+		} finally {
+			reader.close();
+		}
+		
+		long[] times = new long[fixes.size()];
+		double[] latitudes = new double[fixes.size()];
+		double[] longitudes = new double[fixes.size()];
+		for (int i = 0; i < fixes.size(); i++) {
+			times[i] = i * fixPeriod;
+			latitudes[i] = fixes.get(i)[0];
+			longitudes[i] = fixes.get(i)[1];
+		}
+		return new ReplayLocationSource(file.getName(), times, latitudes, longitudes, skipped);
+	}
+	
+	private static ReplayLocationSource readFlightLog(File file) throws IOException {
+		ArrayList<long[]> fixes = new ArrayList<long[]>(); // Time and the raw bits of latitude and longitude
+		
+		FlightLogReader reader = new FlightLogReader(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			FlightLogReader.Record record = new FlightLogReader.Record();
+			while (reader.next(record)) {
+				if (record.type != FlightLog.FIX) { continue; }
+				fixes.add(new long[] { record.time, Double.doubleToRawLongBits(record.latitude),
+						Double.doubleToRawLongBits(record.longitude) });
+			}
+		} finally {
+			reader.close();
+		}
+		
+		long[] times = new long[fixes.size()];
+		double[] latitudes = new double[fixes.size()];
+		double[] longitudes = new double[fixes.size()];
+		for (int i = 0; i < fixes.size(); i++) {
+			long[] fix = fixes.get(i);
+			times[i] = (fix[0] - fixes.get(0)[0]) / 1000000;
+			latitudes[i] = Double.longBitsToDouble(fix[1]);
+			longitudes[i] = Double.longBitsToDouble(fix[2]);
+		}
+		return new ReplayLocationSource(file.getName(), times, latitudes, longitudes, 0);
+	}
+	
+	@Override
+	public boolean getPosition(double[] position) {
+		if (times.length == 0) { return false; }
+		
+		position[0] = latitudes[current];
+		position[1] = longitudes[current];
+		return true;
+	}
+	
+	/**
+	 * Move the replay time forward
+	 * @param milliseconds
+	 */
+	public void advance(long milliseconds) {
+		time += milliseconds;
+		while (current + 1 < times.length && times[current + 1] <= time) { current++; }
+	}
+	
+	/**
+	 * Milliseconds from the first fix
+	 */
+	public long getTime() { return time; }
+	
+	/**
+	 * True once the replay time is after the last fix
+	 */
+	public boolean isFinished() { return times.length == 0 || time > times[times.length - 1]; }
+	
+	public String getName() { return name; }
+	
+	/**
+	 * Number of fixes
+	 */
+	public int size() { return times.length; }
+	
+	public double getLatitude(int fix) { return latitudes[fix]; }
+	
+	public double getLongitude(int fix) { return longitudes[fix]; }
+	
+	/**
+	 * Lines of a text log that were not a fix (cut by a crash)
+	 */
+	public int getSkippedLines() { return skippedLines; }
+}
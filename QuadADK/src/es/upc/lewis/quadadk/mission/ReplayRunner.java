@@ -0,0 +1,238 @@
+package es.upc.lewis.quadadk.mission;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Runs the Navigator against recorded logs, without a phone nor an Arduino, and reports
+ * the commands it produced. Each run (scenario) takes waypoints near points of a log track
+ * and replays the log from the start, with the same loop period and waypoint actions as
+ * MissionThread (see Navigator).
+ *
+ * The track doesn't react to the sticks (it's what the quadcopter did then), so this checks
+ * the decisions along a real track: direction of the commands, when waypoints are reached...
+ *
+ *   java es.upc.lewis.quadadk.mission.ReplayRunner [-speed 1000] [-runs 100] [-seed 1]
+ *       [-threads 4] [-verbose] ../Matlab/*.log
+ *
+ * -speed is times real time (1 to 1000, 0 for as fast as possible). The results don't
+ * depend on it, the replay time only moves with the loop.
+ */
+public class ReplayRunner {
+	private static final int MAX_WAYPOINTS = 4;
+	private static final int MAX_SPEED = 1000;
+
+	/**
+	 * Records the sticks set by the Navigator (only the changes are kept)
+	 */
+	private static class StickRecorder implements StickOutput {
+		final ReplayLocationSource source;
+		final StringBuilder commands = new StringBuilder();
+		int calls = 0;
+		int changes = 0;
+		int lastRoll = -1;
+		int lastPitch = -1;
+
+		StickRecorder(ReplayLocationSource source) {
+			this.source = source;
+		}
+
+		@Override
+		public void setSticks(int mode, int roll, int pitch, int throttle, int yaw) {
+			calls++;
+			if (roll == lastRoll && pitch == lastPitch) { return; }
+
+			changes++;
+			lastRoll = roll;
+			lastPitch = pitch;
+			event("sticks roll=" + roll + " pitch=" + pitch + " " + direction(roll, pitch));
+		}
+
+		void event(String text) {
+			commands.append(String.format(Locale.US, "  %8.2f s  %s\n", source.getTime() / 1000.0, text));
+		}
+
+		private static String direction(int roll, int pitch) {
+			String direction = "";
+			if (pitch < RcChannels.CH_NEUTRAL) { direction = "FORWARD"; }
+			if (pitch > RcChannels.CH_NEUTRAL) { direction = "BACKWARD"; }
+			if (roll > RcChannels.CH_NEUTRAL) { direction += " RIGHT"; }
+			if (roll < RcChannels.CH_NEUTRAL) { direction += " LEFT"; }
+			return direction.length() == 0 ? "(hover)" : direction.trim();
+		}
+	}
+
+	/**
+	 * Result of a run
+	 */
+	private static class Result {
+		String log;
+		int waypoints;
+		int reached = 0;
+		long time; // Replay milliseconds until the end of the mission (or of the log)
+		int calls;
+		int changes;
+		String commands;
+
+		boolean isCompleted() { return reached == waypoints; }
+	}
+
+	/**
+	 * One scenario: a log and some waypoints
+	 */
+	private static Result run(ReplayLocationSource log, double[][] waypoints, int speed) throws AbortException {
+		ReplayLocationSource source = new ReplayLocationSource(log);
+		StickRecorder sticks = new StickRecorder(source);
+		Navigator navigator = new Navigator(source, sticks);
+		for (double[] waypoint : waypoints) { navigator.addWaypoint(waypoint[0], waypoint[1]); }
+
+		Result result = new Result();
+		result.log = log.getName();
+		result.waypoints = waypoints.length;
+
+		long period = speed > 0 ? Navigator.LOOP_PERIOD * 1000000L / speed : 0; // Nanoseconds
+		long next = System.nanoTime();
+
+		boolean navigating = navigator.nextWaypoint();
+		while (navigating && !source.isFinished()) {
+			if (navigator.step() == Navigator.REACHED) {
+				if (navigator.getCyclesInWaypoint() == 1) { result.reached++; }
+
+				// Same actions as MissionThread
+				switch (navigator.getWaypointAction()) {
+				case Navigator.FINISH:
+					sticks.event("picture local_" + navigator.getCurrentWaypoint() + ", go up, picture global");
+					navigating = false;
+					break;
+				case Navigator.READ_SENSORS:
+					sticks.event("read sensors at waypoint " + navigator.getCurrentWaypoint());
+					break;
+				case Navigator.TAKE_PICTURE:
+					sticks.event("picture local_" + navigator.getCurrentWaypoint());
+					break;
+				case Navigator.NEXT_WAYPOINT:
+					navigating = navigator.nextWaypoint();
+					break;
+				}
+			}
+
+			source.advance(Navigator.LOOP_PERIOD);
+
+			if (period > 0) {
+				next += period;
+				long wait = next - System.nanoTime();
+				if (wait > 0) { LockSupport.parkNanos(wait); }
+			}
+		}
+
+		result.time = source.getTime();
+		result.calls = sticks.calls;
+		result.changes = sticks.changes;
+		result.commands = sticks.commands.toString();
+		return result;
+	}
+
+	/**
+	 * Waypoints near points of the track, in the order they were flown
+	 */
+	private static double[][] scenario(ReplayLocationSource log, Random random) {
+		int count = 1 + random.nextInt(MAX_WAYPOINTS);
+		int[] fixes = new int[count];
+		for (int i = 0; i < count; i++) { fixes[i] = random.nextInt(log.size()); }
+		Arrays.sort(fixes);
+
+		// Up to the waypoint error away from the track (every fix is replayed, so they can be reached)
+		double[][] waypoints = new double[count][];
+		for (int i = 0; i < count; i++) {
+			waypoints[i] = new double[] {
+				log.getLatitude(fixes[i]) + (random.nextDouble() * 2 - 1) * Navigator.DEFAULT_LATITUDE_ERROR,
+				log.getLongitude(fixes[i]) + (random.nextDouble() * 2 - 1) * Navigator.DEFAULT_LONGITUDE_ERROR };
+		}
+		return waypoints;
+	}
+
+	public static void main(String[] args) throws Exception {
+		int speed = MAX_SPEED;
+		int runs = 100;
+		long seed = 1;
+		int threads = Runtime.getRuntime().availableProcessors();
+		boolean verbose = false;
+		List<ReplayLocationSource> logs = new ArrayList<ReplayLocationSource>();
+
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-speed")) { speed = Integer.parseInt(args[++i]); }
+			else if (args[i].equals("-runs")) { runs = Integer.parseInt(args[++i]); }
+			else if (args[i].equals("-seed")) { seed = Long.parseLong(args[++i]); }
+			else if (args[i].equals("-threads")) { threads = Integer.parseInt(args[++i]); }
+			else if (args[i].equals("-verbose")) { verbose = true; }
+			else { logs.add(open(args[i])); }
+		}
+
+		if (logs.isEmpty() || speed < 0 || speed > MAX_SPEED || runs < 1 || threads < 1) {
+			System.err.println("Usage: ReplayRunner [-speed 1-" + MAX_SPEED + ", 0 for no limit] [-runs N] [-seed N] [-threads N] [-verbose] log...");
+			System.exit(1);
+		}
+
+		// Scenarios are made before running, so they don't depend on the threads
+		Random random = new Random(seed);
+		final int runSpeed = speed;
+		List<Callable<Result>> tasks = new ArrayList<Callable<Result>>();
+		for (int i = 0; i < runs; i++) {
+			final ReplayLocationSource log = logs.get(i % logs.size());
+			final double[][] waypoints = scenario(log, random);
+			tasks.add(new Callable<Result>() {
+				@Override
+				public Result call() throws Exception { return run(log, waypoints, runSpeed); }
+			});
+		}
+
+		long start = System.nanoTime();
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		List<Future<Result>> results;
+		try {
+			results = executor.invokeAll(tasks);
+		} finally {
+			executor.shutdown();
+		}
+		long elapsed = System.nanoTime() - start;
+
+		int completed = 0;
+		long reached = 0, waypoints = 0, calls = 0, changes = 0, replayTime = 0;
+		for (int i = 0; i < results.size(); i++) {
+			Result result = results.get(i).get();
+			if (result.isCompleted()) { completed++; }
+			reached += result.reached;
+			waypoints += result.waypoints;
+			calls += result.calls;
+			changes += result.changes;
+			replayTime += result.time;
+
+			System.out.println(String.format(Locale.US, "Run %d (%s): %d/%d waypoints, %.1f s, %d commands (%d changes)",
+					i, result.log, result.reached, result.waypoints, result.time / 1000.0, result.calls, result.changes));
+			if (verbose) { System.out.print(result.commands); }
+		}
+
+		System.out.println(String.format(Locale.US, "%d runs, %d completed, %d/%d waypoints reached, %d commands (%d changes)",
+				runs, completed, reached, waypoints, calls, changes));
+		System.out.println(String.format(Locale.US, "%.0f s of flight replayed in %.2f s (%d threads, speed %s)",
+				replayTime / 1000.0, elapsed / 1e9, threads, speed == 0 ? "no limit" : speed + "x"));
+	}
+
+	private static ReplayLocationSource open(String path) throws IOException {
+		ReplayLocationSource log = ReplayLocationSource.open(new File(path), ReplayLocationSource.DEFAULT_FIX_PERIOD);
+		if (log.size() == 0) { throw new IOException("No fixes in " + path); }
+
+		System.out.println(log.getName() + ": " + log.size() + " fixes (" + log.getSkippedLines() + " lines skipped)");
+		return log;
+	}
+}
@@ -0,0 +1,13 @@
+package es.upc.lewis.quadadk.mission;
+
+/**
+ * Where the Navigator sends the sticks: the Arduino (MissionUtils) or a recorder (see ReplayRunner)
+ */
+public interface StickOutput {
+	/**
+	 * Set flight mode, roll, pitch, throttle and yaw with a single command
+	 * (see MissionUtils for the values)
+	 * @throws AbortException
+	 */
+	public void setSticks(int mode, int roll, int pitch, int throttle, int yaw) throws AbortException;
+}
@@ -0,0 +1,275 @@
+package es.upc.lewis.quadadk.tools;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Locale;
+
+/**
+ * Writes FlightLog records from its own thread, so the threads that log never do I/O.
+ *
+ * Records are appended to one of two preallocated buffers while this thread writes the other
+ * (double buffering). append() never waits: if the buffer is full (the storage is too slow)
+ * the record is discarded and counted.
+ *
+ * The buffer is written when half full or every WRITE_PERIOD, and synced to the storage every
+ * fsync interval. The log is split in files (name_000.flog, name_001.flog...) by size and time.
+ * drain() and close() write and sync everything appended before (mission end or abort).
+ */
+public class AsyncLogWriter extends Thread {
+	public static final int DEFAULT_BUFFER_RECORDS = 1024; // 40 KB each buffer
+
+	// Records appended wait at most this long to be written (milliseconds)
+	private static final long WRITE_PERIOD = 100;
+
+	private final File directory;
+	private final String name;
+
+	// Guarded by 'lock'
+	private final Object lock = new Object();
+	private ByteBuffer active; // Being appended to
+	private final int threshold; // Write when it has this many bytes
+	private long dropped = 0;
+	private long drainRequested = 0; // drain() calls
+	private long drained = 0; // drain() calls done
+	private boolean enabled = true;
+
+	// Only used by this thread
+	private ByteBuffer writing;
+	private FlightLog log = null;
+	private int fileNumber = 0;
+	private long fileStart;
+	private long lastSync;
+
+	// Policy (milliseconds and bytes, 0 to disable)
+	private volatile long fsyncInterval = 1000; // 0: sync every write
+	private volatile long maxFileSize = 0;
+	private volatile long maxFileTime = 0;
+
+	// Metrics
+	private volatile long written = 0;
+	private volatile long errors = 0;
+	private volatile long syncs = 0;
+	private volatile IOException lastError = null;
+
+	/**
+	 * Start the thread (the first file is created here)
+	 * @param directory
+	 * @param name of the files, without number nor extension
+	 * @param bufferRecords records that fit in each buffer
+	 */
+	public AsyncLogWriter(File directory, String name, int bufferRecords) throws IOException {
+		super("Log writer");
+		if (bufferRecords < 2) { throw new IllegalArgumentException("Buffer too small"); }
+
+		this.directory = directory;
+		this.name = name;
+
+		active = ByteBuffer.allocate(bufferRecords * FlightLog.RECORD_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		writing = ByteBuffer.allocate(bufferRecords * FlightLog.RECORD_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		threshold = (bufferRecords / 2) * FlightLog.RECORD_SIZE;
+
+		openNext();
+		lastSync = System.currentTimeMillis();
+
+		setDaemon(true);
+		start();
+	}
+
+	/**
+	 * @param milliseconds between syncs to the storage, 0 to sync after every write
+	 */
+	public void setFsyncInterval(long milliseconds) { fsyncInterval = milliseconds; }
+
+	/**
+	 * Start a new file after 'bytes' or 'milliseconds' (0 for no limit)
+	 */
+	public void setRotation(long bytes, long milliseconds) {
+		maxFileSize = bytes;
+		maxFileTime = milliseconds;
+	}
+
+	/**
+	 * Append a record. Never blocks on I/O
+	 * @param type FlightLog.FIX or FlightLog.ESTIMATE
+	 * @param time nanoseconds
+	 * @return false if it was discarded (buffer full or closed)
+	 */
+	public boolean append(byte type, long time, double latitude, double longitude, double altitude, float accuracy) {
+		synchronized (lock) {
+			if (!enabled || active.remaining() < FlightLog.RECORD_SIZE) {
+				dropped++;
+				return false;
+			}
+
+			FlightLog.put(active, type, time, latitude, longitude, altitude, accuracy);
+			if (active.position() == threshold) { lock.notifyAll(); }
+			return true;
+		}
+	}
+
+	/**
+	 * Wait until the records appended so far are written and synced
+	 * @param timeout milliseconds
+	 * @return false if it took longer (or the thread is stopped)
+	 */
+	public boolean drain(long timeout) {
+		long deadline = System.currentTimeMillis() + timeout;
+
+		synchronized (lock) {
+			long number = ++drainRequested;
+			lock.notifyAll();
+
+			while (drained < number) {
+				long remaining = deadline - System.currentTimeMillis();
+				if (remaining <= 0 || !isAlive()) { return false; }
+				try {
+					lock.wait(remaining);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * Write and sync what is left, close the file and stop the thread.
+	 * Records appended after this are discarded
+	 * @param timeout milliseconds
+	 * @return false if the thread didn't finish in time
+	 */
+	public boolean close(long timeout) {
+		synchronized (lock) {
+			enabled = false;
+			lock.notifyAll();
+		}
+
+		try {
+			join(timeout);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		return !isAlive();
+	}
+
+	@Override
+	public void run() {
+		boolean stop = false;
+
+		while (!stop) {
+			long drainNumber;
+
+			synchronized (lock) {
+				if (enabled && active.position() < threshold && drained == drainRequested) {
+					try { lock.wait(WRITE_PERIOD); } catch (InterruptedException e) { enabled = false; }
+				}
+
+				// Swap the buffers
+				ByteBuffer full = active;
+				active = writing;
+				writing = full;
+
+				drainNumber = drainRequested;
+				stop = !enabled;
+			}
+
+			writing.flip();
+			write(writing);
+			writing.clear();
+
+			long now = System.currentTimeMillis();
+			boolean isDrain = drainNumber != drained;
+			if (isDrain || stop || now - lastSync >= fsyncInterval) {
+				if (log != null) { log.flush(); }
+				lastSync = now;
+				syncs++;
+			}
+
+			synchronized (lock) {
+				drained = drainNumber;
+				lock.notifyAll();
+			}
+		}
+
+		if (log != null) {
+			try {
+				log.close();
+			} catch (IOException e) {
+				error(e);
+			}
+			log = null;
+		}
+	}
+
+	/**
+	 * Write the records, starting a new file first if it's time
+	 */
+	private void write(ByteBuffer records) {
+		int count = records.remaining() / FlightLog.RECORD_SIZE;
+
+		try {
+			if (log == null || isRotationDue(records.remaining())) { openNext(); }
+			if (count == 0) { return; }
+
+			log.append(records);
+			written += count;
+		} catch (IOException e) {
+			error(e);
+			synchronized (lock) { dropped += count; }
+		}
+	}
+
+	private boolean isRotationDue(int bytes) {
+		if (log.getRecords() == 0) { return false; }
+
+		long size = maxFileSize;
+		long time = maxFileTime;
+		if (size > 0 && log.getSize() + bytes > size) { return true; }
+		if (time > 0 && System.currentTimeMillis() - fileStart >= time) { return true; }
+		return false;
+	}
+
+	/**
+	 * Close the current file (if any) and create the next one
+	 */
+	private void openNext() throws IOException {
+		if (log != null) {
+			FlightLog old = log;
+			log = null;
+			old.close();
+		}
+
+		File file = new File(directory, String.format(Locale.US, "%s_%03d.flog", name, fileNumber));
+		fileNumber++;
+		log = new FlightLog(file);
+		fileStart = System.currentTimeMillis();
+	}
+
+	private void error(IOException e) {
+		errors++;
+		lastError = e;
+	}
+
+	public long getWritten() { return written; }
+
+	public long getDropped() {
+		synchronized (lock) { return dropped; }
+	}
+
+	public long getErrors() { return errors; }
+
+	public IOException getLastError() { return lastError; }
+
+	/**
+	 * Number of files created
+	 */
+	public int getFiles() { return fileNumber; }
+
+	public String report() {
+		return "Log writer: written=" + written + " dropped=" + getDropped() + " files=" + fileNumber
+				+ " syncs=" + syncs + " errors=" + errors;
+	}
+}
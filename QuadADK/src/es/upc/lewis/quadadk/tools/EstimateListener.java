@@ -0,0 +1,11 @@
+package es.upc.lewis.quadadk.tools;
+
+/**
+ * Receives the position estimates (see EstimatePublisher). Called from the publisher thread
+ */
+public interface EstimateListener {
+	/**
+	 * @param estimate reused for the next one, copy what you need
+	 */
+	public void onEstimate(PositionEstimator.Estimate estimate);
+}
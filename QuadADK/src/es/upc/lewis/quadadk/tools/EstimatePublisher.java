@@ -0,0 +1,111 @@
+package es.upc.lewis.quadadk.tools;
+
+/**
+ * Reads the PositionEstimator at a fixed rate and gives the estimate to the listeners.
+ *
+ * The estimate object is reused, nothing is allocated after construction (except when
+ * registering listeners).
+ *
+ * The thread starts with the first listener (nobody to publish to until then).
+ */
+public class EstimatePublisher extends Thread {
+	public static final int MIN_RATE = 20; // Hz
+	public static final int MAX_RATE = 50;
+	public static final int DEFAULT_RATE = 25;
+
+	private final PositionEstimator estimator;
+	private final PositionEstimator.Estimate estimate = new PositionEstimator.Estimate();
+	private volatile long period; // Nanoseconds
+	private volatile boolean enabled = true;
+
+	// Copy on write
+	private volatile EstimateListener[] listeners = new EstimateListener[0];
+
+	// Statistics
+	private volatile long published = 0;
+	private volatile long maxLateness = 0; // Nanoseconds
+
+	public EstimatePublisher(PositionEstimator estimator) {
+		super("EstimatePublisher");
+		this.estimator = estimator;
+		setRate(DEFAULT_RATE);
+		setDaemon(true);
+	}
+
+	/**
+	 * @param rate estimates per second (MIN_RATE to MAX_RATE)
+	 */
+	public void setRate(int rate) {
+		if (rate < MIN_RATE || rate > MAX_RATE) { throw new IllegalArgumentException("Rate out of range"); }
+		period = 1000000000L / rate;
+	}
+
+	public void finish() {
+		enabled = false;
+		interrupt();
+	}
+
+	public synchronized void register(EstimateListener listener) {
+		EstimateListener[] copy = new EstimateListener[listeners.length + 1];
+		System.arraycopy(listeners, 0, copy, 0, listeners.length);
+		copy[listeners.length] = listener;
+		listeners = copy;
+
+		if (getState() == State.NEW && enabled) { start(); }
+	}
+
+	public synchronized void unregister(EstimateListener listener) {
+		EstimateListener[] current = listeners;
+		for (int i = 0; i < current.length; i++) {
+			if (current[i] == listener) {
+				EstimateListener[] copy = new EstimateListener[current.length - 1];
+				System.arraycopy(current, 0, copy, 0, i);
+				System.arraycopy(current, i + 1, copy, i, current.length - i - 1);
+				listeners = copy;
+				return;
+			}
+		}
+	}
+
+	@Override
+	public void run() {
+		// Fixed rate: the next time doesn't move if a listener is slow
+		long next = System.nanoTime();
+
+		while (enabled) {
+			long now = System.nanoTime();
+			long lateness = now - next;
+			if (lateness > maxLateness) { maxLateness = lateness; }
+
+			if (estimator.getEstimate(now, estimate)) {
+				EstimateListener[] current = listeners;
+				for (int i = 0; i < current.length; i++) { current[i].onEstimate(estimate); }
+				published++;
+			}
+
+			next += period;
+			long wait = next - System.nanoTime();
+			if (wait < 0) {
+				// Too late, skip the missed ones
+				next = System.nanoTime();
+				continue;
+			}
+
+			try {
+				sleep(wait / 1000000, (int) (wait % 1000000));
+			} catch (InterruptedException e) {
+				// finish()
+			}
+		}
+	}
+
+	/**
+	 * Estimates given to the listeners
+	 */
+	public long getPublished() { return published; }
+
+	/**
+	 * Longest delay of an estimate from its scheduled time (nanoseconds)
+	 */
+	public long getMaxLateness() { return maxLateness; }
+}
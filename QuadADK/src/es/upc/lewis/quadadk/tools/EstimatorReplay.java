@@ -0,0 +1,168 @@
+package es.upc.lewis.quadadk.tools;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Replays recorded GPS logs through the PositionEstimator (without accelerometer, the logs don't have it):
+ *   java es.upc.lewis.quadadk.tools.EstimatorReplay Matlab/*.log [flight.flog...]
+ *
+ * Before each fix is added, the position estimated for its time is compared with the fix
+ * and so is the previous fix (what getLastLocation() gives until then). Also counts the fixes
+ * inside two standard deviations (estimate and fix accuracy) and how many estimates per second
+ * can be read at EstimatePublisher.DEFAULT_RATE between the fixes.
+ *
+ * Text logs have no times: a line every LINE_PERIOD, a fix when the line changes
+ * (GPSLogger wrote the last fix again until there was a new one).
+ */
+public class EstimatorReplay {
+	public static final long LINE_PERIOD = 250; // Milliseconds
+
+	private static final double METERS_PER_DEGREE_LATITUDE = 6371000 * Math.PI / 180;
+
+	// A fix: time (nanoseconds), latitude, longitude, altitude, accuracy
+	private static final int TIME      = 0;
+	private static final int LATITUDE  = 1;
+	private static final int LONGITUDE = 2;
+	private static final int ALTITUDE  = 3;
+	private static final int ACCURACY  = 4;
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 1) {
+			System.err.println("Usage: EstimatorReplay <log>...");
+			System.exit(1);
+		}
+
+		for (String name : args) {
+			File file = new File(name);
+			ArrayList<double[]> fixes = file.getName().endsWith(".flog") ? readFlightLog(file) : readTextLog(file);
+			if (fixes.size() < 2) {
+				System.out.println(file.getName() + ": not enough fixes");
+				continue;
+			}
+			System.out.println(replay(file.getName(), fixes));
+		}
+	}
+
+	private static ArrayList<double[]> readTextLog(File file) throws IOException {
+		ArrayList<double[]> fixes = new ArrayList<double[]>();
+
+		BufferedReader reader = new BufferedReader(new FileReader(file));
+		try {
+			String line;
+			String previous = null;
+			long time = 0;
+			for (; (line = reader.readLine()) != null; time += LINE_PERIOD * 1000000L) {
+				if (line.equals(previous)) { continue; } // Same fix
+				previous = line;
+
+				String[] fields = line.split(";");
+				if (fields.length < 4) { continue; } // Cut by a crash
+
+				try {
+					fixes.add(new double[] { time, Double.parseDouble(fields[0]), Double.parseDouble(fields[1]),
+							Double.parseDouble(fields[2]), Double.parseDouble(fields[3]) });
+				} catch (NumberFormatException e) {
+					// Cut by a crash
+				}
+			}
+		} finally {
+			reader.close();
+		}
+		return fixes;
+	}
+
+	private static ArrayList<double[]> readFlightLog(File file) throws IOException {
+		ArrayList<double[]> fixes = new ArrayList<double[]>();
+
+		FlightLogReader reader = new FlightLogReader(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			FlightLogReader.Record record = new FlightLogReader.Record();
+			long start = -1;
+			while (reader.next(record)) {
+				if (record.type != FlightLog.FIX) { continue; }
+				if (start < 0) { start = record.time; }
+				fixes.add(new double[] { record.time - start, record.latitude, record.longitude,
+						record.altitude, record.accuracy });
+			}
+		} finally {
+			reader.close();
+		}
+		return fixes;
+	}
+
+	private static String replay(String name, ArrayList<double[]> fixes) {
+		PositionEstimator estimator = new PositionEstimator();
+		PositionEstimator.Estimate estimate = new PositionEstimator.Estimate();
+		long period = 1000000000L / EstimatePublisher.DEFAULT_RATE;
+
+		double[] estimateErrors = new double[fixes.size() - 1];
+		double[] staleErrors = new double[fixes.size() - 1];
+		int inside = 0;
+		long estimates = 0;
+		long elapsed = 0; // Nanoseconds reading estimates
+
+		double[] first = fixes.get(0);
+		estimator.addFix(first[LATITUDE], first[LONGITUDE], first[ALTITUDE], first[ACCURACY], (long) first[TIME]);
+
+		for (int i = 1; i < fixes.size(); i++) {
+			double[] previous = fixes.get(i - 1);
+			double[] fix = fixes.get(i);
+			long time = (long) fix[TIME];
+
+			// What the publisher would read until this fix arrives
+			long start = System.nanoTime();
+			for (long t = (long) previous[TIME] + period; t < time; t += period) {
+				estimator.getEstimate(t, estimate);
+				estimates++;
+			}
+			elapsed += System.nanoTime() - start;
+
+			estimator.getEstimate(time, estimate);
+			double error = distance(estimate.latitude, estimate.longitude, fix[LATITUDE], fix[LONGITUDE]);
+			estimateErrors[i - 1] = error;
+			staleErrors[i - 1] = distance(previous[LATITUDE], previous[LONGITUDE], fix[LATITUDE], fix[LONGITUDE]);
+
+			double variance = estimate.positionVariance[PositionEstimator.EAST]
+					+ estimate.positionVariance[PositionEstimator.NORTH] + fix[ACCURACY] * fix[ACCURACY];
+			if (error <= 2 * Math.sqrt(variance)) { inside++; }
+
+			estimator.addFix(fix[LATITUDE], fix[LONGITUDE], fix[ALTITUDE], fix[ACCURACY], time);
+		}
+
+		int compared = estimateErrors.length;
+		return String.format(Locale.US, "%s: %d fixes, error (m) estimate mean %.2f p95 %.2f, last fix mean %.2f p95 %.2f,"
+				+ " inside 2 sigma %.1f%%, rejected %d, %.0f estimates/s",
+				name, fixes.size(), mean(estimateErrors), percentile(estimateErrors, 0.95),
+				mean(staleErrors), percentile(staleErrors, 0.95), 100.0 * inside / compared,
+				estimator.getRejectedFixes(), (elapsed > 0) ? estimates * 1e9 / elapsed : 0.0);
+	}
+
+	/**
+	 * Meters between two positions (close enough to be flat)
+	 */
+	private static double distance(double latitude1, double longitude1, double latitude2, double longitude2) {
+		double north = (latitude2 - latitude1) * METERS_PER_DEGREE_LATITUDE;
+		double east = (longitude2 - longitude1) * METERS_PER_DEGREE_LATITUDE * Math.cos(Math.toRadians(latitude1));
+		return Math.hypot(east, north);
+	}
+
+	private static double mean(double[] values) {
+		double sum = 0;
+		for (double value : values) { sum += value; }
+		return sum / values.length;
+	}
+
+	private static double percentile(double[] values, double fraction) {
+		double[] sorted = values.clone();
+		Arrays.sort(sorted);
+		return sorted[Math.min(sorted.length - 1, (int) (fraction * sorted.length))];
+	}
+}
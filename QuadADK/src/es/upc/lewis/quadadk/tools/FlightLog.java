@@ -0,0 +1,171 @@
+package es.upc.lewis.quadadk.tools;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Binary flight log: a header and fixed size records, appended through a memory mapped file
+ * (no text formatting, no write() call per record).
+ *
+ * Header (HEADER_SIZE bytes, little endian): "QLOG", version, header size, record size,
+ * schema length and the schema (ASCII, see SCHEMA), padded with zeros.
+ * Record (RECORD_SIZE bytes): time (long, nanoseconds), latitude, longitude, altitude (double),
+ * accuracy (float), type (byte) and 3 reserved bytes.
+ *
+ * The file grows a mapping at a time. close() cuts it to the records written. If the app dies
+ * before, the rest of the last mapping is zeros: a record of type END, where readers stop.
+ * See FlightLogReader (and Matlab/readFlightLog.m).
+ */
+public class FlightLog {
+	public static final int VERSION = 1;
+	public static final int HEADER_SIZE = 128;
+	public static final int RECORD_SIZE = 40;
+	public static final String SCHEMA = "time:i64;latitude:f64;longitude:f64;altitude:f64;accuracy:f32;type:u8;reserved:u8[3]";
+	static final byte[] MAGIC = { 'Q', 'L', 'O', 'G' };
+
+	// Record types
+	public static final byte END = 0; // Not written (zeros)
+	public static final byte FIX = 1; // GPS fix
+	public static final byte ESTIMATE = 2; // Position used by the navigation (see PositionEstimator)
+
+	// Offsets in a record
+	static final int TIME      = 0;
+	static final int LATITUDE  = 8;
+	static final int LONGITUDE = 16;
+	static final int ALTITUDE  = 24;
+	static final int ACCURACY  = 32;
+	static final int TYPE      = 36;
+
+	// Records mapped at a time (640 KB, about half an hour of fixes at 10 Hz)
+	private static final int RECORDS_PER_MAP = 16384;
+
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private MappedByteBuffer buffer = null;
+	private long records = 0;
+	private boolean isClosed = false;
+
+	/**
+	 * Create the file (or replace it) and write the header
+	 */
+	public FlightLog(File file) throws IOException {
+		this.file = new RandomAccessFile(file, "rw");
+		channel = this.file.getChannel();
+
+		try {
+			channel.truncate(0);
+			channel.write(header(), 0);
+		} catch (IOException e) {
+			this.file.close();
+			throw e;
+		}
+	}
+
+	private static ByteBuffer header() {
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		header.put(MAGIC);
+		header.putShort((short) VERSION);
+		header.putShort((short) HEADER_SIZE);
+		header.putShort((short) RECORD_SIZE);
+		header.putShort((short) SCHEMA.length());
+		for (int i = 0; i < SCHEMA.length(); i++) { header.put((byte) SCHEMA.charAt(i)); }
+		header.clear(); // Write all of it (the rest are zeros)
+		return header;
+	}
+
+	/**
+	 * Append a record
+	 * @param type FIX or ESTIMATE
+	 * @param time nanoseconds
+	 */
+	public synchronized void append(byte type, long time, double latitude, double longitude, double altitude, float accuracy) throws IOException {
+		if (isClosed) { throw new IOException("Log closed"); }
+		if (buffer == null || !buffer.hasRemaining()) { map(); }
+
+		put(buffer, type, time, latitude, longitude, altitude, accuracy);
+		records++;
+	}
+
+	/**
+	 * Append records already encoded (see put), from position to limit
+	 */
+	public synchronized void append(ByteBuffer encoded) throws IOException {
+		if (isClosed) { throw new IOException("Log closed"); }
+		if (encoded.remaining() % RECORD_SIZE != 0) { throw new IllegalArgumentException("Not whole records"); }
+
+		while (encoded.hasRemaining()) {
+			if (buffer == null || !buffer.hasRemaining()) { map(); }
+
+			// Copy what fits in this mapping
+			int bytes = Math.min(encoded.remaining(), buffer.remaining());
+			int limit = encoded.limit();
+			encoded.limit(encoded.position() + bytes);
+			buffer.put(encoded);
+			encoded.limit(limit);
+
+			records += bytes / RECORD_SIZE;
+		}
+	}
+
+	/**
+	 * Encode a record at the position of 'buffer' (little endian) and move past it
+	 */
+	public static void put(ByteBuffer buffer, byte type, long time, double latitude, double longitude, double altitude, float accuracy) {
+		int offset = buffer.position();
+		buffer.putLong(offset + TIME, time);
+		buffer.putDouble(offset + LATITUDE, latitude);
+		buffer.putDouble(offset + LONGITUDE, longitude);
+		buffer.putDouble(offset + ALTITUDE, altitude);
+		buffer.putFloat(offset + ACCURACY, accuracy);
+		buffer.put(offset + TYPE, type);
+		buffer.putShort(offset + TYPE + 1, (short) 0); // Reserved
+		buffer.put(offset + TYPE + 3, (byte) 0);
+		buffer.position(offset + RECORD_SIZE);
+	}
+
+	/**
+	 * Map the space for the next records (the file grows)
+	 */
+	private void map() throws IOException {
+		if (buffer != null) { buffer.force(); }
+
+		long position = HEADER_SIZE + records * RECORD_SIZE;
+		buffer = channel.map(FileChannel.MapMode.READ_WRITE, position, (long) RECORDS_PER_MAP * RECORD_SIZE);
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	/**
+	 * Write the records to the storage (they survive the app anyway, not the phone)
+	 */
+	public synchronized void flush() {
+		if (buffer != null) { buffer.force(); }
+	}
+
+	public synchronized long getRecords() { return records; }
+
+	/**
+	 * Bytes of the file once closed
+	 */
+	public synchronized long getSize() { return HEADER_SIZE + records * RECORD_SIZE; }
+
+	/**
+	 * Flush and cut the file to the records written
+	 */
+	public synchronized void close() throws IOException {
+		if (isClosed) { return; }
+		isClosed = true;
+
+		try {
+			flush();
+			buffer = null;
+			channel.truncate(HEADER_SIZE + records * RECORD_SIZE);
+		} finally {
+			file.close();
+		}
+	}
+}
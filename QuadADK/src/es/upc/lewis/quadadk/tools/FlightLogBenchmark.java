@@ -0,0 +1,165 @@
+package es.upc.lewis.quadadk.tools;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Locale;
+
+/**
+ * Records per second written and read with the text log (as GPSLogger wrote it: a synchronized
+ * write, four Double.toString and a BufferedWriter) and with the binary FlightLog:
+ *   java es.upc.lewis.quadadk.tools.FlightLogBenchmark [-records 1000000] [-dir /tmp]
+ *
+ * The records follow a track around the lab, like the logs in Matlab. Reading checks that
+ * every record comes back.
+ */
+public class FlightLogBenchmark {
+	private static final int ROUNDS = 3; // The first one warms up the JIT
+
+	private static final double LATITUDE = 41.38956148;
+	private static final double LONGITUDE = 2.11244425;
+	private static final double ALTITUDE = 152.2;
+
+	private BufferedWriter textWriter;
+
+	public static void main(String[] args) throws IOException {
+		int records = 1000000;
+		File dir = new File(System.getProperty("java.io.tmpdir"));
+
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-records")) { records = Integer.parseInt(args[++i]); }
+			else if (args[i].equals("-dir")) { dir = new File(args[++i]); }
+			else {
+				System.err.println("Usage: FlightLogBenchmark [-records N] [-dir directory]");
+				System.exit(1);
+			}
+		}
+
+		File text = new File(dir, "benchmark.log");
+		File binary = new File(dir, "benchmark.flog");
+		System.out.println(records + " records, files in " + dir);
+
+		try {
+			for (int round = 0; round < ROUNDS; round++) {
+				long textWrite = new FlightLogBenchmark().writeText(text, records);
+				long binaryWrite = writeBinary(binary, records);
+				long textRead = readText(text, records);
+				long binaryRead = readBinary(binary, records);
+
+				System.out.println(String.format(Locale.US, "round %d%s", round + 1, (round == 0) ? " (warm-up)" : ""));
+				System.out.println(String.format(Locale.US, "  write: text %.0f records/s, binary %.0f records/s",
+						records * 1e9 / textWrite, records * 1e9 / binaryWrite));
+				System.out.println(String.format(Locale.US, "  read:  text %.0f records/s, binary %.0f records/s",
+						records * 1e9 / textRead, records * 1e9 / binaryRead));
+				System.out.println(String.format(Locale.US, "  size:  text %d bytes, binary %d bytes",
+						text.length(), binary.length()));
+			}
+		} finally {
+			text.delete();
+			binary.delete();
+		}
+	}
+
+	/**
+	 * The old GPSLogger.write
+	 */
+	private synchronized void write(double latitude, double longitude, double altitude, float accuracy) throws IOException {
+		textWriter.write(Double.toString(latitude) + ";"
+				+ Double.toString(longitude) + ";"
+				+ Double.toString(altitude) + ";"
+				+ Double.toString(accuracy) + ";\n");
+	}
+
+	/**
+	 * @return nanoseconds
+	 */
+	private long writeText(File file, int records) throws IOException {
+		long start = System.nanoTime();
+		textWriter = new BufferedWriter(new FileWriter(file));
+		try {
+			for (int i = 0; i < records; i++) {
+				write(latitude(i), longitude(i), ALTITUDE, accuracy(i));
+			}
+		} finally {
+			textWriter.close();
+		}
+		return System.nanoTime() - start;
+	}
+
+	private static long writeBinary(File file, int records) throws IOException {
+		long start = System.nanoTime();
+		FlightLog log = new FlightLog(file);
+		try {
+			for (int i = 0; i < records; i++) {
+				log.append(FlightLog.FIX, i * 100000000L, latitude(i), longitude(i), ALTITUDE, accuracy(i));
+			}
+		} finally {
+			log.close();
+		}
+		return System.nanoTime() - start;
+	}
+
+	/**
+	 * Like Matlab/readLog.m: split the fields and parse them
+	 */
+	private static long readText(File file, int records) throws IOException {
+		long start = System.nanoTime();
+		int read = 0;
+		double sum = 0;
+
+		BufferedReader reader = new BufferedReader(new FileReader(file));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String[] fields = line.split(";");
+				sum += Double.parseDouble(fields[0]) + Double.parseDouble(fields[1])
+						+ Double.parseDouble(fields[2]) + Double.parseDouble(fields[3]);
+				read++;
+			}
+		} finally {
+			reader.close();
+		}
+
+		check("text", read, records, sum);
+		return System.nanoTime() - start;
+	}
+
+	private static long readBinary(File file, int records) throws IOException {
+		long start = System.nanoTime();
+		int read = 0;
+		double sum = 0;
+
+		FlightLogReader reader = new FlightLogReader(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			FlightLogReader.Record record = new FlightLogReader.Record();
+			while (reader.next(record)) {
+				sum += record.latitude + record.longitude + record.altitude + record.accuracy;
+				read++;
+			}
+		} finally {
+			reader.close();
+		}
+
+		check("binary", read, records, sum);
+		return System.nanoTime() - start;
+	}
+
+	private static void check(String format, int read, int records, double sum) {
+		if (read != records || Double.isNaN(sum)) {
+			System.err.println("Wrong " + format + " log: " + read + " records read");
+			System.exit(1);
+		}
+	}
+
+	// A circle of about 20 m radius, the accuracy between 4 and 12 m
+	private static double latitude(int i) { return LATITUDE + 0.0002 * Math.sin(i * 0.001); }
+
+	private static double longitude(int i) { return LONGITUDE + 0.0002 * Math.cos(i * 0.001); }
+
+	private static float accuracy(int i) { return 4 + (i % 9); }
+}
@@ -0,0 +1,159 @@
+package es.upc.lewis.quadadk.tools;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Reads a FlightLog record by record (streaming, the whole log is never in memory).
+ *
+ * It can also export the fixes to the old text format (latitude;longitude;altitude;accuracy;),
+ * so Matlab/readLog.m and plotLog.m still work:
+ *   java es.upc.lewis.quadadk.tools.FlightLogReader flight.flog [flight.log]
+ */
+public class FlightLogReader {
+	/**
+	 * A record, filled by next() (reuse it)
+	 */
+	public static class Record {
+		public byte type;
+		public long time; // Nanoseconds
+		public double latitude;
+		public double longitude;
+		public double altitude;
+		public float accuracy;
+	}
+
+	private final InputStream in;
+	private final int version;
+	private final String schema;
+	private final byte[] bytes;
+	private final ByteBuffer buffer;
+
+	/**
+	 * Read the header
+	 * @throws IOException if it's not a FlightLog (or a newer version)
+	 */
+	public FlightLogReader(InputStream in) throws IOException {
+		this.in = in;
+
+		byte[] start = new byte[12];
+		readFully(start, 12);
+		ByteBuffer header = ByteBuffer.wrap(start).order(ByteOrder.LITTLE_ENDIAN);
+		for (int i = 0; i < FlightLog.MAGIC.length; i++) {
+			if (header.get() != FlightLog.MAGIC[i]) { throw new IOException("Not a flight log"); }
+		}
+
+		version = header.getShort();
+		int headerSize = header.getShort();
+		int recordSize = header.getShort();
+		int schemaLength = header.getShort();
+		if (version > FlightLog.VERSION) { throw new IOException("Unsupported version " + version); }
+		if (recordSize < FlightLog.RECORD_SIZE || 12 + schemaLength > headerSize) {
+			throw new IOException("Bad header");
+		}
+
+		// The rest of the header (schema and padding)
+		byte[] rest = new byte[headerSize - 12];
+		readFully(rest, rest.length);
+		schema = new String(rest, 0, schemaLength, "US-ASCII");
+
+		// Records may be longer in later versions, the known fields come first
+		bytes = new byte[recordSize];
+		buffer = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	public int getVersion() { return version; }
+
+	public String getSchema() { return schema; }
+
+	/**
+	 * Read the next record
+	 * @return false at the end of the log (a record cut by a crash is not returned)
+	 */
+	public boolean next(Record record) throws IOException {
+		try {
+			readFully(bytes, bytes.length);
+		} catch (EOFException e) {
+			return false;
+		}
+
+		record.type = buffer.get(FlightLog.TYPE);
+		if (record.type == FlightLog.END) { return false; }
+
+		record.time = buffer.getLong(FlightLog.TIME);
+		record.latitude = buffer.getDouble(FlightLog.LATITUDE);
+		record.longitude = buffer.getDouble(FlightLog.LONGITUDE);
+		record.altitude = buffer.getDouble(FlightLog.ALTITUDE);
+		record.accuracy = buffer.getFloat(FlightLog.ACCURACY);
+		return true;
+	}
+
+	private void readFully(byte[] data, int length) throws IOException {
+		int read = 0;
+		while (read < length) {
+			int res = in.read(data, read, length - read);
+			if (res < 0) { throw new EOFException(); }
+			read += res;
+		}
+	}
+
+	public void close() throws IOException {
+		in.close();
+	}
+
+	/**
+	 * Write the fixes as text, one per line: latitude;longitude;altitude;accuracy;
+	 * @return number of fixes written
+	 */
+	public long exportCsv(Writer out) throws IOException {
+		Record record = new Record();
+		long fixes = 0;
+
+		while (next(record)) {
+			if (record.type != FlightLog.FIX) { continue; }
+
+			out.write(Double.toString(record.latitude) + ";"
+					+ Double.toString(record.longitude) + ";"
+					+ Double.toString(record.altitude) + ";"
+					+ Double.toString(record.accuracy) + ";\n");
+			fixes++;
+		}
+		out.flush();
+		return fixes;
+	}
+
+	/**
+	 * Export a log to text (to the standard output if there is no second file)
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length < 1) {
+			System.err.println("Usage: FlightLogReader <flight log> [<text log>]");
+			System.exit(1);
+		}
+
+		FlightLogReader reader = new FlightLogReader(new BufferedInputStream(new FileInputStream(args[0])));
+		Writer out;
+		if (args.length > 1) {
+			out = new BufferedWriter(new FileWriter(args[1]));
+		} else {
+			out = new BufferedWriter(new OutputStreamWriter(System.out));
+		}
+
+		try {
+			long fixes = reader.exportCsv(out);
+			System.err.println(fixes + " fixes (version " + reader.getVersion() + ": " + reader.getSchema() + ")");
+		} finally {
+			reader.close();
+			out.close();
+		}
+	}
+}
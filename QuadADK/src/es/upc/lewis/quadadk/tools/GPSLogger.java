@@ -1,21 +1,39 @@
 package es.upc.lewis.quadadk.tools;
 
-import java.io.BufferedWriter;
-import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
 
 import android.content.Context;
 import android.location.Location;
 import android.os.Environment;
+import android.os.SystemClock;
 import android.text.format.Time;
+import android.util.Log;
 
+/**
+ * Logs the GPS fixes (and the positions used by the navigation) to binary FlightLog files
+ * (see FlightLogReader to get the old text format). Writing is done by an AsyncLogWriter,
+ * write() never does I/O
+ */
 public class GPSLogger {
+	private static final String TAG = "GPSLogger";
+	
+	// Sync to the storage every second, a new file every 8 MB or 10 minutes
+	private static final long FSYNC_INTERVAL = 1000; // Milliseconds
+	private static final long MAX_FILE_SIZE = 8 * 1024 * 1024; // Bytes
+	private static final long MAX_FILE_TIME = 10 * 60 * 1000; // Milliseconds
+	
+	// Time close() waits for the records still in memory
+	private static final long DRAIN_TIMEOUT = 2000; // Milliseconds
+	
 	private Context context;
-	private BufferedWriter bufferedWriter;
+	private AsyncLogWriter writer;
+	
+	// Newest fix logged (elapsedRealtime nanoseconds) and a copy of a fix, only used by write()
+	private long lastFixTime = Long.MIN_VALUE;
+	private final LocationHistory.Fix fix = new LocationHistory.Fix();
 
 	// To check if it is ready and working (can write)
-	private boolean isReady;
+	private volatile boolean isReady;
 
 	public GPSLogger(Context context) {
 		this.context = context;
@@ -23,28 +41,47 @@ public class GPSLogger {
 		isReady = false;
 	}
 	
-	public synchronized void write(Location location) {
+	/**
+	 * Log the fixes added to the history since the last call, oldest first. A broadcast that
+	 * arrives after the next fix doesn't lose one fix and log the other twice.
+	 * Call it from the thread that adds the fixes (the main thread)
+	 */
+	public void write(LocationHistory history) {
 		if (!isReady) { return; }
-		if (location == null) { return; }
 		
-		try {
-			bufferedWriter.write(Double.toString(location.getLatitude()) + ";" 
-					+ Double.toString(location.getLongitude()) + ";"
-					+ Double.toString(location.getAltitude()) + ";"
-					+ Double.toString(location.getAccuracy()) + ";\n");
-		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+		// Oldest fix not logged yet (the ones overwritten in the ring are lost)
+		int age = 0;
+		while (history.get(age, fix) && fix.time > lastFixTime) { age++; }
+		
+		for (age--; age >= 0; age--) {
+			if (!history.get(age, fix)) { continue; }
+			
+			writer.append(FlightLog.FIX, fix.time, fix.latitude, fix.longitude, fix.altitude, (float) fix.accuracy);
+			lastFixTime = fix.time;
 		}
 	}
 	
-	public void close() {
-		try {
-			bufferedWriter.close();
-		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		}
+	/**
+	 * Log a position used by the navigation (see MyLocation.getEstimatedLocation)
+	 */
+	public void writeEstimate(Location location) {
+		if (!isReady) { return; }
+		if (location == null) { return; }
+		
+		writer.append(FlightLog.ESTIMATE, SystemClock.elapsedRealtime() * 1000000L, location.getLatitude(),
+				location.getLongitude(), location.getAltitude(), location.getAccuracy());
+	}
+	
+	/**
+	 * Write and sync what is left and close the file (mission ended or aborted).
+	 * Called from the mission thread and the activity, only the first call closes it
+	 */
+	public synchronized void close() {
+		if (!isReady) { return; }
+		isReady = false;
+		
+		if (!writer.close(DRAIN_TIMEOUT)) { Log.e(TAG, "Log not closed in time"); }
+		Log.i(TAG, writer.report());
 	}
 
 	/**
@@ -60,17 +97,17 @@ public class GPSLogger {
 		return false;
 	}
 
-	public void createLogFile() {
+	public synchronized void createLogFile() {
 		// Check if filesystem is writable
 		if (!isExternalStorageWritable()) { return; }
 				
 		String fileName = getDefaultFileName();
 
-		File file = new File(context.getExternalFilesDir(null), fileName + ".log");
-
-		// BufferedWriter for performance
 		try {
-			bufferedWriter = new BufferedWriter(new FileWriter(file));
+			writer = new AsyncLogWriter(context.getExternalFilesDir(null), fileName,
+					AsyncLogWriter.DEFAULT_BUFFER_RECORDS);
+			writer.setFsyncInterval(FSYNC_INTERVAL);
+			writer.setRotation(MAX_FILE_SIZE, MAX_FILE_TIME);
 			isReady = true;
 		} catch (IOException e) {
 			isReady = false;
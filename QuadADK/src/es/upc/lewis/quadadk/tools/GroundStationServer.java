@@ -0,0 +1,585 @@
+package es.upc.lewis.quadadk.tools;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonSyntaxException;
+
+import es.upc.lewis.quadadk.comms.TelemetryBatch;
+
+/**
+ * Stand-in for the GroundStation server, to test the app (or parts of it) without the real one.
+ * Point HTTPCalls.setServerAddress to getAddress(), or run main() on a computer and start
+ * the app with its address (see MainActivity.EXTRA_SERVER_ADDRESS).
+ *
+ * Minimal HTTP/1.1 server (keep-alive, Content-Length bodies), one thread per connection.
+ *
+ * Endpoints:
+ * send_data.php		Legacy, one value (id, varname and value in the query)
+ * send_data_batch.php	JSON body (TelemetryBatch). Can be disabled to test the fallback
+ * send_logs.php		One log line (id and data in the query)
+ * send_picture.php	Multipart body (id, pic, tier and key in the query), only the size is kept
+ * get_startmission.php	"start" after startMission()
+ * get_endmission.php	"end" after abortMission()
+ * wait_missionstatus.php	Long poll, answers the mission status when it's not 'status' (or after 'timeout' seconds).
+ * 						Can be disabled to test the fallback
+ * 
+ * Requests with a key (see Outbox) are only taken once, repeated ones get OK and are ignored.
+ *
+ * A bad link can be simulated with setLatency, setLossRate (the connection is closed
+ * without an answer) and setErrorRate (500). Every request is kept in the request log.
+ */
+public class GroundStationServer extends Thread {
+	// Longest request body we accept (bytes)
+	private static final int MAX_BODY_LENGTH = 16 * 1024 * 1024;
+	
+	private ServerSocket serverSocket;
+	private volatile boolean enabled = true;
+	private final Gson gson = new Gson();
+	
+	// Guarded by 'this'
+	private final List<TelemetryBatch.Sample> samples = new ArrayList<TelemetryBatch.Sample>();
+	private final List<Socket> connections = new ArrayList<Socket>();
+	private long requests = 0;
+	private long batches = 0;
+	private long duplicates = 0;
+	private final List<String> pictures = new ArrayList<String>();
+	private long pictureBytes = 0;
+	private final Set<String> keys = new HashSet<String>();
+	private final List<String> logs = new ArrayList<String>();
+	private final List<LoggedRequest> requestLog = new ArrayList<LoggedRequest>();
+	
+	// Injected faults (guarded by 'this')
+	private long minLatency = 0; // Milliseconds
+	private long maxLatency = 0;
+	private double lossRate = 0;
+	private double errorRate = 0;
+	private Random random = new Random();
+	
+	// Status of a request that was not answered (see setLossRate)
+	public static final int LOST = -1;
+	
+	/**
+	 * A received request (see getRequestLog)
+	 */
+	public static class LoggedRequest {
+		public final long time; // System.currentTimeMillis() when it arrived
+		public final String method;
+		public final String target; // Path and query
+		public final int bodyLength;
+		public int status; // LOST if not answered
+		
+		LoggedRequest(long time, String method, String target, int bodyLength) {
+			this.time = time;
+			this.method = method;
+			this.target = target;
+			this.bodyLength = bodyLength;
+		}
+		
+		@Override
+		public String toString() {
+			return time + " " + method + " " + target + " (" + bodyLength + " bytes) " + status;
+		}
+	}
+	
+	private volatile boolean isBatchSupported = true;
+	private volatile boolean isLongPollSupported = true;
+	
+	// Mission status of all the quads: START, END or NONE (guarded by 'missionLock')
+	private static final String START = "start";
+	private static final String END   = "end";
+	private static final String NONE  = "none";
+	private final Object missionLock = new Object();
+	private String missionStatus = NONE;
+	
+	// Longest long poll (seconds)
+	private static final int MAX_LONG_POLL_TIMEOUT = 60;
+	
+	/**
+	 * Listen on localhost
+	 * @param port 0 for any free port (see getPort)
+	 * @throws IOException
+	 */
+	public GroundStationServer(int port) throws IOException {
+		this(InetAddress.getByName("127.0.0.1"), port);
+	}
+	
+	/**
+	 * @param address interface to listen on, null for all (so a phone can connect)
+	 * @param port 0 for any free port (see getPort)
+	 * @throws IOException
+	 */
+	public GroundStationServer(InetAddress address, int port) throws IOException {
+		super("GroundStationServer");
+		serverSocket = new ServerSocket(port, 50, address);
+		setDaemon(true);
+	}
+	
+	public int getPort() { return serverSocket.getLocalPort(); }
+	
+	/**
+	 * Address for HTTPCalls.setServerAddress
+	 */
+	public String getAddress() { return "http://127.0.0.1:" + getPort() + "/"; }
+	
+	/**
+	 * Stop accepting connections and close the open ones
+	 */
+	public void finish() {
+		enabled = false;
+		try { serverSocket.close(); } catch (IOException e) { }
+		
+		synchronized (this) {
+			for (Socket socket : connections) {
+				try { socket.close(); } catch (IOException e) { }
+			}
+			connections.clear();
+		}
+		
+		synchronized (missionLock) { missionLock.notifyAll(); }
+	}
+	
+	/**
+	 * Answer 404 to send_data_batch.php, like a server without batches
+	 */
+	public void setBatchSupported(boolean isBatchSupported) {
+		this.isBatchSupported = isBatchSupported;
+	}
+	
+	/**
+	 * Answer 404 to wait_missionstatus.php, like a server without long polls
+	 */
+	public void setLongPollSupported(boolean isLongPollSupported) {
+		this.isLongPollSupported = isLongPollSupported;
+	}
+	
+	/**
+	 * Wait before answering each request
+	 * @param minLatency milliseconds
+	 * @param maxLatency milliseconds (a random time between both)
+	 */
+	public synchronized void setLatency(long minLatency, long maxLatency) {
+		if (minLatency < 0 || maxLatency < minLatency) { throw new IllegalArgumentException("Bad latency"); }
+		
+		this.minLatency = minLatency;
+		this.maxLatency = maxLatency;
+	}
+	
+	/**
+	 * Close the connection without answering this fraction of the requests (they are not processed)
+	 * @param lossRate from 0 to 1
+	 */
+	public synchronized void setLossRate(double lossRate) {
+		if (lossRate < 0 || lossRate > 1) { throw new IllegalArgumentException("Bad rate"); }
+		this.lossRate = lossRate;
+	}
+	
+	/**
+	 * Answer 500 to this fraction of the requests (they are not processed)
+	 * @param errorRate from 0 to 1
+	 */
+	public synchronized void setErrorRate(double errorRate) {
+		if (errorRate < 0 || errorRate > 1) { throw new IllegalArgumentException("Bad rate"); }
+		this.errorRate = errorRate;
+	}
+	
+	/**
+	 * Seed of the injected latencies, losses and errors (to repeat a test)
+	 */
+	public synchronized void setSeed(long seed) { random = new Random(seed); }
+	
+	/**
+	 * The quads get "start" from now on
+	 */
+	public void startMission() { setMissionStatus(START); }
+	
+	/**
+	 * The quads get "end" from now on
+	 */
+	public void abortMission() { setMissionStatus(END); }
+	
+	/**
+	 * Neither start nor end
+	 */
+	public void resetMission() { setMissionStatus(NONE); }
+	
+	private void setMissionStatus(String status) {
+		synchronized (missionLock) {
+			missionStatus = status;
+			missionLock.notifyAll(); // Answer the long polls
+		}
+	}
+	
+	/**
+	 * Copy of the telemetry values received (legacy and batches), in arrival order
+	 */
+	public synchronized List<TelemetryBatch.Sample> getSamples() {
+		return new ArrayList<TelemetryBatch.Sample>(samples);
+	}
+	
+	/**
+	 * pic_id of the pictures received, in arrival order. Thumbnails and previews
+	 * are "pic_id:tier" (see PictureTiers)
+	 */
+	public synchronized List<String> getPictures() { return new ArrayList<String>(pictures); }
+	
+	/**
+	 * Size of the picture requests received (multipart bodies)
+	 */
+	public synchronized long getPictureBytes() { return pictureBytes; }
+	
+	/**
+	 * Lines received by send_logs.php, in arrival order
+	 */
+	public synchronized List<String> getLogs() { return new ArrayList<String>(logs); }
+	
+	/**
+	 * Copy of all the requests received (including lost ones and errors), in arrival order
+	 */
+	public synchronized List<LoggedRequest> getRequestLog() { return new ArrayList<LoggedRequest>(requestLog); }
+	
+	public synchronized void clearRequestLog() { requestLog.clear(); }
+	
+	public synchronized long getRequests() { return requests; }
+	
+	public synchronized long getBatches() { return batches; }
+	
+	/**
+	 * Requests ignored because their key was already received
+	 */
+	public synchronized long getDuplicates() { return duplicates; }
+	
+	@Override
+	public void run() {
+		while (enabled) {
+			final Socket socket;
+			try {
+				socket = serverSocket.accept();
+			} catch (IOException e) {
+				return; // Closed
+			}
+			
+			synchronized (this) { connections.add(socket); }
+			
+			Thread connection = new Thread("GroundStationServer connection") {
+				@Override
+				public void run() {
+					serve(socket);
+				}
+			};
+			connection.setDaemon(true);
+			connection.start();
+		}
+	}
+	
+	/**
+	 * Answer the requests of a connection until it's closed
+	 */
+	private void serve(Socket socket) {
+		try {
+			socket.setTcpNoDelay(true);
+			InputStream in = new BufferedInputStream(socket.getInputStream());
+			OutputStream out = socket.getOutputStream();
+			
+			while (enabled) {
+				String requestLine = readLine(in);
+				if (requestLine == null) { return; }
+				if (requestLine.length() == 0) { continue; }
+				
+				// Headers
+				int contentLength = 0;
+				boolean isClose = false;
+				String line;
+				while ((line = readLine(in)) != null && line.length() > 0) {
+					int colon = line.indexOf(':');
+					if (colon < 0) { continue; }
+					String name = line.substring(0, colon).trim().toLowerCase();
+					String value = line.substring(colon + 1).trim();
+					
+					if (name.equals("content-length")) { contentLength = Integer.parseInt(value); }
+					if (name.equals("connection") && value.equalsIgnoreCase("close")) { isClose = true; }
+				}
+				if (line == null) { return; }
+				if (contentLength < 0 || contentLength > MAX_BODY_LENGTH) { return; }
+				
+				byte[] body = new byte[contentLength];
+				int read = 0;
+				while (read < contentLength) {
+					int bytes = in.read(body, read, contentLength - read);
+					if (bytes < 0) { return; }
+					read += bytes;
+				}
+				
+				// "GET /send_data.php?id=... HTTP/1.1"
+				String[] parts = requestLine.split(" ");
+				if (parts.length < 2) { return; }
+				
+				Response response = injectFaults(parts[0], parts[1], body);
+				if (response == null) { return; } // Lost
+				writeResponse(out, response, isClose);
+				
+				if (isClose) { return; }
+			}
+		} catch (IOException e) {
+			// Connection closed
+		} catch (NumberFormatException e) {
+			// Bad request, close it
+		} finally {
+			try { socket.close(); } catch (IOException e) { }
+			synchronized (this) { connections.remove(socket); }
+		}
+	}
+	
+	private static class Response {
+		int status;
+		String body;
+		
+		Response(int status, String body) {
+			this.status = status;
+			this.body = body;
+		}
+	}
+	
+	/**
+	 * Log the request, then delay, lose, fail or handle it
+	 * @return null if it has to be lost
+	 */
+	private Response injectFaults(String method, String target, byte[] body) throws UnsupportedEncodingException {
+		LoggedRequest logged = new LoggedRequest(System.currentTimeMillis(), method, target, body.length);
+		long latency;
+		boolean isLost;
+		boolean isError;
+		
+		synchronized (this) {
+			requestLog.add(logged);
+			latency = minLatency + (long) (random.nextDouble() * (maxLatency - minLatency));
+			isLost = random.nextDouble() < lossRate;
+			isError = random.nextDouble() < errorRate;
+		}
+		
+		if (latency > 0) {
+			try {
+				Thread.sleep(latency);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		
+		Response response;
+		if (isLost) {
+			response = null;
+		} else if (isError) {
+			response = new Response(500, "injected error");
+		} else {
+			response = handle(method, target, body);
+		}
+		
+		synchronized (this) { logged.status = (response != null) ? response.status : LOST; }
+		return response;
+	}
+	
+	/**
+	 * @param method GET or POST
+	 * @param target path and query
+	 * @param body request body (may be empty)
+	 */
+	private Response handle(String method, String target, byte[] body) throws UnsupportedEncodingException {
+		synchronized (this) { requests++; }
+		
+		String path = target;
+		Map<String, String> query = new HashMap<String, String>();
+		int questionMark = target.indexOf('?');
+		if (questionMark >= 0) {
+			path = target.substring(0, questionMark);
+			parseQuery(target.substring(questionMark + 1), query);
+		}
+		if (path.startsWith("/")) { path = path.substring(1); }
+		
+		// Already received?
+		String key = query.get("key");
+		if (key != null) {
+			synchronized (this) {
+				if (keys.contains(key)) {
+					duplicates++;
+					return new Response(200, "ok");
+				}
+			}
+		}
+		
+		if (path.equals("send_data.php")) {
+			TelemetryBatch.Sample sample = new TelemetryBatch.Sample();
+			sample.varname = query.get("varname");
+			sample.value = query.get("value");
+			sample.timestamp = System.currentTimeMillis();
+			synchronized (this) { samples.add(sample); }
+			return new Response(200, "ok");
+		}
+		
+		if (path.equals("send_data_batch.php") && isBatchSupported) {
+			TelemetryBatch batch;
+			try {
+				batch = gson.fromJson(new String(body, "UTF-8"), TelemetryBatch.class);
+			} catch (JsonSyntaxException e) {
+				return new Response(400, "bad json");
+			}
+			if (batch == null || batch.samples == null) { return new Response(400, "no samples"); }
+			
+			synchronized (this) {
+				samples.addAll(batch.samples);
+				batches++;
+				if (key != null) { keys.add(key); }
+			}
+			return new Response(200, "ok");
+		}
+		
+		if (path.equals("send_logs.php")) {
+			synchronized (this) { logs.add(query.get("data")); }
+			return new Response(200, "ok");
+		}
+		
+		if (path.equals("send_picture.php")) {
+			if (body.length == 0) { return new Response(400, "no picture"); }
+			
+			synchronized (this) {
+				String tier = query.get("tier");
+				pictures.add((tier != null) ? query.get("pic") + ":" + tier : query.get("pic"));
+				pictureBytes += body.length;
+				if (key != null) { keys.add(key); }
+			}
+			return new Response(200, "ok");
+		}
+		
+		if (path.equals("get_startmission.php")) {
+			synchronized (missionLock) { return new Response(200, START.equals(missionStatus) ? START : ""); }
+		}
+		
+		if (path.equals("get_endmission.php")) {
+			synchronized (missionLock) { return new Response(200, END.equals(missionStatus) ? END : ""); }
+		}
+		
+		if (path.equals("wait_missionstatus.php") && isLongPollSupported) {
+			return new Response(200, waitMissionStatus(query.get("status"), query.get("timeout")));
+		}
+		
+		return new Response(404, "not found");
+	}
+	
+	/**
+	 * Hold a long poll until the mission status is not 'known'
+	 * @param known status the quad has (may be null)
+	 * @param timeout seconds (may be null)
+	 * @return current status
+	 */
+	private String waitMissionStatus(String known, String timeout) {
+		long milliseconds = 0;
+		try {
+			milliseconds = Math.min(Integer.parseInt(timeout), MAX_LONG_POLL_TIMEOUT) * 1000L;
+		} catch (NumberFormatException e) {
+			// Answer now
+		}
+		long deadline = System.currentTimeMillis() + milliseconds;
+		
+		synchronized (missionLock) {
+			long remaining = milliseconds;
+			while (enabled && missionStatus.equals(known) && remaining > 0) {
+				try { missionLock.wait(remaining); } catch (InterruptedException e) { break; }
+				remaining = deadline - System.currentTimeMillis();
+			}
+			return missionStatus;
+		}
+	}
+	
+	/**
+	 * Run a server for the app (all interfaces). The mission is scripted from the console:
+	 * start, abort, reset, log (requests received) or quit
+	 * @param args port (default 8080)
+	 */
+	public static void main(String[] args) throws IOException {
+		int port = (args.length > 0) ? Integer.parseInt(args[0]) : 8080;
+		GroundStationServer server = new GroundStationServer(null, port);
+		server.start();
+		System.out.println("GroundStation stand-in listening on port " + server.getPort());
+		
+		BufferedReader console = new BufferedReader(new InputStreamReader(System.in));
+		String command;
+		while ((command = console.readLine()) != null) {
+			command = command.trim();
+			if (command.equals("start")) { server.startMission(); }
+			else if (command.equals("abort")) { server.abortMission(); }
+			else if (command.equals("reset")) { server.resetMission(); }
+			else if (command.equals("log")) {
+				for (LoggedRequest request : server.getRequestLog()) { System.out.println(request); }
+			}
+			else if (command.equals("quit")) { break; }
+			else if (command.length() > 0) { System.out.println("start, abort, reset, log or quit"); }
+		}
+		
+		server.finish();
+	}
+	
+	private static void parseQuery(String query, Map<String, String> parameters) throws UnsupportedEncodingException {
+		for (String pair : query.split("&")) {
+			int equals = pair.indexOf('=');
+			if (equals < 0) {
+				parameters.put(URLDecoder.decode(pair, "UTF-8"), "");
+			} else {
+				parameters.put(URLDecoder.decode(pair.substring(0, equals), "UTF-8"),
+						URLDecoder.decode(pair.substring(equals + 1), "UTF-8"));
+			}
+		}
+	}
+	
+	private static void writeResponse(OutputStream out, Response response, boolean isClose) throws IOException {
+		byte[] body = response.body.getBytes("UTF-8");
+		String reason = (response.status == 200) ? "OK" : "Error";
+		
+		StringBuilder header = new StringBuilder();
+		header.append("HTTP/1.1 ").append(response.status).append(' ').append(reason).append("\r\n");
+		header.append("Content-Type: text/plain; charset=UTF-8\r\n");
+		header.append("Content-Length: ").append(body.length).append("\r\n");
+		if (isClose) { header.append("Connection: close\r\n"); }
+		header.append("\r\n");
+		
+		// Single write (headers and body in the same packet)
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream(header.length() + body.length);
+		buffer.write(header.toString().getBytes("UTF-8"));
+		buffer.write(body);
+		buffer.writeTo(out);
+		out.flush();
+	}
+	
+	/**
+	 * Read a line (without the line break)
+	 * @return the line or null at the end of the stream
+	 */
+	private static String readLine(InputStream in) throws IOException {
+		StringBuilder builder = new StringBuilder();
+		
+		int c;
+		while ((c = in.read()) >= 0) {
+			if (c == '\n') { break; }
+			if (c != '\r') { builder.append((char) c); }
+		}
+		
+		if (c < 0 && builder.length() == 0) { return null; }
+		return builder.toString();
+	}
+}
@@ -0,0 +1,78 @@
+package es.upc.lewis.quadadk.tools;
+
+import android.content.Context;
+import android.hardware.Sensor;
+import android.hardware.SensorEvent;
+import android.hardware.SensorEventListener;
+import android.hardware.SensorManager;
+
+/**
+ * Gives the phone acceleration to a PositionEstimator, in world axes (east, north, up)
+ * and without gravity.
+ *
+ * Uses the linear acceleration sensor (phone axes, no gravity) rotated with the
+ * rotation vector sensor. Both are fused sensors available since Android 2.3.
+ */
+public class ImuSource implements SensorEventListener {
+	private SensorManager sensorManager;
+	private PositionEstimator estimator;
+	private boolean isAvailable = false;
+
+	// Phone to world rotation (row major)
+	private final float[] rotation = new float[9];
+	private final float[] rotationVector = new float[4];
+	private boolean hasRotation = false;
+
+	public ImuSource(Context context, PositionEstimator estimator) {
+		this.estimator = estimator;
+
+		sensorManager = (SensorManager) context.getSystemService(Context.SENSOR_SERVICE);
+		Sensor acceleration = sensorManager.getDefaultSensor(Sensor.TYPE_LINEAR_ACCELERATION);
+		Sensor orientation = sensorManager.getDefaultSensor(Sensor.TYPE_ROTATION_VECTOR);
+		if (acceleration == null || orientation == null) { return; } // GPS only
+
+		sensorManager.registerListener(this, orientation, SensorManager.SENSOR_DELAY_GAME);
+		sensorManager.registerListener(this, acceleration, SensorManager.SENSOR_DELAY_GAME);
+		isAvailable = true;
+	}
+
+	/**
+	 * False if the phone doesn't have the sensors (the estimator uses only GPS)
+	 */
+	public boolean isAvailable() { return isAvailable; }
+
+	public void stop() {
+		if (isAvailable) { sensorManager.unregisterListener(this); }
+		isAvailable = false;
+	}
+
+	@Override
+	public void onSensorChanged(SensorEvent event) {
+		switch (event.sensor.getType()) {
+		case Sensor.TYPE_ROTATION_VECTOR:
+			// Some versions fail with more than 4 values
+			System.arraycopy(event.values, 0, rotationVector, 0, Math.min(4, event.values.length));
+			SensorManager.getRotationMatrixFromVector(rotation, rotationVector);
+			hasRotation = true;
+			break;
+
+		case Sensor.TYPE_LINEAR_ACCELERATION:
+			if (!hasRotation) { return; }
+
+			float x = event.values[0];
+			float y = event.values[1];
+			float z = event.values[2];
+			estimator.addAcceleration(
+					rotation[0] * x + rotation[1] * y + rotation[2] * z,
+					rotation[3] * x + rotation[4] * y + rotation[5] * z,
+					rotation[6] * x + rotation[7] * y + rotation[8] * z,
+					System.nanoTime());
+			break;
+		}
+	}
+
+	@Override
+	public void onAccuracyChanged(Sensor sensor, int accuracy) {
+
+	}
+}
@@ -0,0 +1,258 @@
+package es.upc.lewis.quadadk.tools;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The last GPS fixes (time, latitude, longitude, altitude, accuracy) in a ring of fixed capacity.
+ *
+ * One thread writes (the location callback), any number of threads read without locks
+ * and without allocating: each slot has a sequence number (seqlock), a reader copies the slot
+ * and tries again if the sequence changed meanwhile. The sequence also tells which fix
+ * a slot holds, so a slot overwritten by a newer fix is detected.
+ *
+ * Times are nanoseconds of any clock that doesn't go back (MyLocation uses elapsedRealtimeNanos).
+ */
+public class LocationHistory {
+	public static final int DEFAULT_CAPACITY = 256;
+
+	private static final double METERS_PER_DEGREE_LATITUDE = 6371000 * Math.PI / 180;
+
+	// Slot layout: sequence and the fields (doubles as raw bits)
+	private static final int SEQUENCE  = 0;
+	private static final int TIME      = 1;
+	private static final int LATITUDE  = 2;
+	private static final int LONGITUDE = 3;
+	private static final int ALTITUDE  = 4;
+	private static final int ACCURACY  = 5;
+	private static final int SLOT_SIZE = 6;
+
+	// A reader gives up after this many attempts on a slot being written (the writer is stuck?)
+	private static final int MAX_RETRIES = 1000;
+
+	private final int capacity;
+	private final AtomicLongArray slots;
+
+	// Fixes written so far (the next fix number)
+	private volatile long count = 0;
+
+	/**
+	 * A fix, filled by the read methods (reuse it)
+	 */
+	public static class Fix {
+		public long time; // Nanoseconds
+		public double latitude;
+		public double longitude;
+		public double altitude;
+		public double accuracy;
+	}
+
+	public LocationHistory() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	public LocationHistory(int capacity) {
+		if (capacity < 2) { throw new IllegalArgumentException("Capacity too small"); }
+
+		this.capacity = capacity;
+		slots = new AtomicLongArray(capacity * SLOT_SIZE);
+	}
+
+	/**
+	 * Add a fix. Only one thread can call it
+	 * @param time nanoseconds, not before the previous fix
+	 */
+	public void add(long time, double latitude, double longitude, double altitude, double accuracy) {
+		long number = count;
+		int base = (int) (number % capacity) * SLOT_SIZE;
+
+		// Odd: being written
+		slots.set(base + SEQUENCE, 2 * number + 1);
+		slots.set(base + TIME, time);
+		slots.set(base + LATITUDE, Double.doubleToRawLongBits(latitude));
+		slots.set(base + LONGITUDE, Double.doubleToRawLongBits(longitude));
+		slots.set(base + ALTITUDE, Double.doubleToRawLongBits(altitude));
+		slots.set(base + ACCURACY, Double.doubleToRawLongBits(accuracy));
+		// Even: fix 'number' is complete
+		slots.set(base + SEQUENCE, 2 * number + 2);
+
+		count = number + 1;
+	}
+
+	/**
+	 * Number of fixes that can be read (up to the capacity)
+	 */
+	public int size() {
+		return (int) Math.min(count, capacity);
+	}
+
+	public int getCapacity() { return capacity; }
+
+	/**
+	 * Copy a fix
+	 * @param number fix number (0 is the first fix ever added)
+	 * @return false if it's not in the ring (not written yet or overwritten)
+	 */
+	private boolean read(long number, Fix fix) {
+		if (number < 0) { return false; }
+		int base = (int) (number % capacity) * SLOT_SIZE;
+		long complete = 2 * number + 2;
+
+		for (int retry = 0; retry < MAX_RETRIES; retry++) {
+			long before = slots.get(base + SEQUENCE);
+			if (before > complete) { return false; } // Overwritten by a newer fix
+			if (before < complete) {
+				if (before == complete - 1) { continue; } // Being written
+				return false; // Not written yet
+			}
+
+			fix.time = slots.get(base + TIME);
+			fix.latitude = Double.longBitsToDouble(slots.get(base + LATITUDE));
+			fix.longitude = Double.longBitsToDouble(slots.get(base + LONGITUDE));
+			fix.altitude = Double.longBitsToDouble(slots.get(base + ALTITUDE));
+			fix.accuracy = Double.longBitsToDouble(slots.get(base + ACCURACY));
+
+			if (slots.get(base + SEQUENCE) == before) { return true; }
+		}
+		return false;
+	}
+
+	/**
+	 * Copy the newest fix
+	 * @return false if there are none
+	 */
+	public boolean getLatest(Fix fix) {
+		for (int retry = 0; retry < MAX_RETRIES; retry++) {
+			long newest = count - 1;
+			if (newest < 0) { return false; }
+			if (read(newest, fix)) { return true; }
+		}
+		return false;
+	}
+
+	/**
+	 * Copy a fix by age
+	 * @param age 0 for the newest, 1 for the previous one...
+	 * @return false if it's not in the ring
+	 */
+	public boolean get(int age, Fix fix) {
+		return read(count - 1 - age, fix);
+	}
+
+	/**
+	 * Position at a given time, interpolated between the fixes before and after it.
+	 * After the newest fix it's the newest fix (no extrapolation, see PositionEstimator)
+	 * @param time nanoseconds
+	 * @param fix result (time is 'time')
+	 * @param before for temporary use (no allocation)
+	 * @return false if 'time' is older than all the fixes (or there are none)
+	 */
+	public boolean positionAt(long time, Fix fix, Fix before) {
+		for (int retry = 0; retry < MAX_RETRIES; retry++) {
+			long newest = count - 1;
+			if (newest < 0) { return false; }
+			if (!read(newest, fix)) { continue; } // Overwritten meanwhile, start again
+			if (time >= fix.time) {
+				fix.time = time;
+				return true;
+			}
+
+			// Go back until a fix not after 'time' ('fix' is the one after it)
+			long oldest = Math.max(0, newest - capacity + 1);
+			boolean isOverwritten = false;
+			for (long number = newest - 1; number >= oldest; number--) {
+				if (!read(number, before)) {
+					isOverwritten = true;
+					break;
+				}
+
+				if (before.time <= time) {
+					interpolate(before, fix, time, fix);
+					return true;
+				}
+
+				copy(before, fix);
+			}
+
+			// Older than everything we have
+			if (!isOverwritten) { return false; }
+		}
+		return false;
+	}
+
+	/**
+	 * Average velocity over the last 'window' milliseconds (newest fix and the oldest
+	 * fix inside the window)
+	 * @param window milliseconds
+	 * @param velocity result: east, north and up (meters per second)
+	 * @param fix for temporary use
+	 * @param oldest for temporary use
+	 * @return false if there are not two fixes in the window
+	 */
+	public boolean velocity(long window, double[] velocity, Fix fix, Fix oldest) {
+		for (int retry = 0; retry < MAX_RETRIES; retry++) {
+			long newest = count - 1;
+			if (newest < 1) { return false; }
+			if (!read(newest, fix)) { continue; }
+
+			long start = fix.time - window * 1000000L;
+			long first = Math.max(0, newest - capacity + 1);
+			boolean isFound = false;
+			boolean isOverwritten = false;
+
+			for (long number = newest - 1; number >= first; number--) {
+				if (!read(number, oldest)) {
+					// Overwritten while we were reading: what we have is still in the window
+					isOverwritten = !isFound;
+					break;
+				}
+				if (oldest.time < start) { break; }
+
+				// The last one computed is with the oldest fix in the window
+				isFound = true;
+				velocityBetween(oldest, fix, velocity);
+			}
+
+			if (isFound) { return true; }
+			if (!isOverwritten) { return false; }
+		}
+		return false;
+	}
+
+	/**
+	 * Velocity from 'from' to 'to' (meters per second)
+	 */
+	private static void velocityBetween(Fix from, Fix to, double[] velocity) {
+		double seconds = (to.time - from.time) / 1e9;
+		if (seconds <= 0) {
+			velocity[0] = velocity[1] = velocity[2] = 0;
+			return;
+		}
+
+		double metersPerDegreeLongitude = METERS_PER_DEGREE_LATITUDE * Math.cos(Math.toRadians(to.latitude));
+		velocity[0] = (to.longitude - from.longitude) * metersPerDegreeLongitude / seconds;
+		velocity[1] = (to.latitude - from.latitude) * METERS_PER_DEGREE_LATITUDE / seconds;
+		velocity[2] = (to.altitude - from.altitude) / seconds;
+	}
+
+	/**
+	 * Linear interpolation between two fixes
+	 * @param result may be 'a' or 'b'
+	 */
+	private static void interpolate(Fix a, Fix b, long time, Fix result) {
+		double fraction = (b.time == a.time) ? 1 : (double) (time - a.time) / (b.time - a.time);
+
+		result.latitude = a.latitude + (b.latitude - a.latitude) * fraction;
+		result.longitude = a.longitude + (b.longitude - a.longitude) * fraction;
+		result.altitude = a.altitude + (b.altitude - a.altitude) * fraction;
+		result.accuracy = a.accuracy + (b.accuracy - a.accuracy) * fraction;
+		result.time = time;
+	}
+
+	private static void copy(Fix from, Fix to) {
+		to.time = from.time;
+		to.latitude = from.latitude;
+		to.longitude = from.longitude;
+		to.altitude = from.altitude;
+		to.accuracy = from.accuracy;
+	}
+}
@@ -1,12 +1,14 @@
 package es.upc.lewis.quadadk.tools;
 
-import es.upc.lewis.quadadk.comms.SendDataThread;
+import es.upc.lewis.quadadk.comms.TelemetryBatcher;
 import android.content.Context;
 import android.content.Intent;
 import android.location.Location;
 import android.location.LocationListener;
 import android.location.LocationManager;
+import android.os.Build;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.support.v4.content.LocalBroadcastManager;
 
 public class MyLocation implements LocationListener {
@@ -18,7 +20,15 @@ public class MyLocation implements LocationListener {
 	private int numberOfBadReadings = 0;
 	
 	private LocationManager locationManager;
-	private Location lastLocation = null;
+	private volatile Location lastLocation = null; // Read from other threads (MissionThread)
+	
+	// Recent fixes, logged by GPSLogger (written only from the location callback)
+	private LocationHistory history = new LocationHistory();
+	
+	// GPS and phone acceleration fused, much more often than the GPS
+	private PositionEstimator estimator = new PositionEstimator();
+	private ImuSource imuSource;
+	private EstimatePublisher estimatePublisher;
 	
 	public static final String GPS_UPDATE = "g";
 	private Intent intent;
@@ -31,18 +41,58 @@ public class MyLocation implements LocationListener {
 				.getSystemService(Context.LOCATION_SERVICE);
 		locationManager.requestLocationUpdates(LocationManager.GPS_PROVIDER,
 				MIN_TIME_BETWEEN_UPDATES, MIN_DISTANCE_BETWEEN_UPDATES, this);
+		
+		imuSource = new ImuSource(context, estimator);
+		estimatePublisher = new EstimatePublisher(estimator); // Starts with its first listener
 	}
 
 	public Location getLastLocation() {
 		return lastLocation;
 	}
 	
+	/**
+	 * Position estimated now (GPS and acceleration, see PositionEstimator)
+	 * @return the last GPS location if there is no estimate yet (may be null)
+	 */
+	public Location getEstimatedLocation() {
+		PositionEstimator.Estimate estimate = new PositionEstimator.Estimate();
+		if (!estimator.getEstimate(System.nanoTime(), estimate)) { return lastLocation; }
+		
+		Location location = new Location(LocationManager.GPS_PROVIDER);
+		location.setLatitude(estimate.latitude);
+		location.setLongitude(estimate.longitude);
+		location.setAltitude(estimate.altitude);
+		location.setAccuracy((float) estimate.getAccuracy());
+		location.setSpeed((float) estimate.getSpeed());
+		location.setBearing((float) estimate.getBearing());
+		location.setTime(System.currentTimeMillis());
+		return location;
+	}
+	
+	public PositionEstimator getEstimator() { return estimator; }
+	
+	/**
+	 * Recent fixes (times are elapsedRealtimeNanos). Can be read from any thread
+	 */
+	public LocationHistory getHistory() { return history; }
+	
+	/**
+	 * Register an EstimateListener here to get the estimates at a fixed rate
+	 * (the navigation reads getEstimatedLocation() when it needs it instead)
+	 */
+	public EstimatePublisher getEstimatePublisher() { return estimatePublisher; }
+	
 	public void stop() {
 		locationManager.removeUpdates(this);
+		imuSource.stop();
+		estimatePublisher.finish();
 	}
 
 	public void setLocation_DEBUG_ONLY(Location location) {
 		lastLocation = location;
+		addToHistory(location);
+		estimator.addFix(location.getLatitude(), location.getLongitude(), location.getAltitude(),
+				location.getAccuracy(), estimatorTime(location));
 		// Notify there's an update
 		intent = new Intent(GPS_UPDATE);
 		LocalBroadcastManager.getInstance(context).sendBroadcast(intent);
@@ -59,15 +109,48 @@ public class MyLocation implements LocationListener {
 		
 		numberOfBadReadings = 0;
 		lastLocation = location;
+		addToHistory(location);
+		estimator.addFix(location.getLatitude(), location.getLongitude(), location.getAltitude(),
+				location.getAccuracy(), estimatorTime(location));
 		
 		// Notify there's an update
 		intent = new Intent(GPS_UPDATE);
 		LocalBroadcastManager.getInstance(context).sendBroadcast(intent);
 		
+		// Position of the next telemetry values
+		TelemetryBatcher.getInstance().setPosition(location.getLatitude(), location.getLongitude());
+		
 		// Send altitude
-		new SendDataThread("alt_gps", Double.toString(lastLocation.getAltitude()));
+		TelemetryBatcher.sendData("alt_gps", Double.toString(lastLocation.getAltitude()));
 	}
 
+	private void addToHistory(Location location) {
+		history.add(fixTime(location), location.getLatitude(), location.getLongitude(), location.getAltitude(),
+				location.getAccuracy());
+	}
+	
+	/**
+	 * Time of the fix (not of this call) when the system has it
+	 * @return elapsedRealtime nanoseconds
+	 */
+	static long fixTime(Location location) {
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1) {
+			return location.getElapsedRealtimeNanos();
+		}
+		return SystemClock.elapsedRealtime() * 1000000L;
+	}
+	
+	/**
+	 * Time of the fix in the clock of the estimator (a fix delivered late is not taken as current)
+	 * @return System.nanoTime() nanoseconds
+	 */
+	private static long estimatorTime(Location location) {
+		long now = (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1)
+				? SystemClock.elapsedRealtimeNanos()
+				: SystemClock.elapsedRealtime() * 1000000L;
+		return System.nanoTime() - (now - fixTime(location));
+	}
+	
 	private void gpsFailsafe() {
 		// Send abort mission broadcast
 		//TODO: we don't do it yet
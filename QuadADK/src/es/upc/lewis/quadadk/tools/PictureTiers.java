@@ -0,0 +1,188 @@
+package es.upc.lewis.quadadk.tools;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import es.upc.lewis.quadadk.comms.HTTPCalls;
+import es.upc.lewis.quadadk.comms.TelemetryDispatcher;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+
+/**
+ * Sends a picture in quality tiers, so the GroundStation sees something soon over a weak link:
+ * a small thumbnail and a preview first, then the full JPEG at low priority.
+ *
+ * The tiers of each picture depend on its pic_id (see setTiers). The thumbnail and the preview
+ * are made from a single subsampled decode (BitmapFactory inSampleSize), never from the full size image.
+ * They are sent once (not kept in the Outbox), the full picture is.
+ */
+public class PictureTiers {
+	private static final String TAG = "PictureTiers";
+
+	// Names of the tiers (tier parameter of send_picture.php)
+	public static final String THUMBNAIL = "thumb";
+	public static final String PREVIEW   = "preview";
+
+	/**
+	 * Sizes and qualities of a picture. A size of 0 disables that tier
+	 */
+	public static class Tiers {
+		final int thumbnailSize;    // Longest side (pixels)
+		final int thumbnailQuality; // JPEG quality (0 - 100)
+		final int previewSize;
+		final int previewQuality;
+		final boolean isFullSent;
+
+		public Tiers(int thumbnailSize, int thumbnailQuality, int previewSize, int previewQuality, boolean isFullSent) {
+			this.thumbnailSize = thumbnailSize;
+			this.thumbnailQuality = thumbnailQuality;
+			this.previewSize = previewSize;
+			this.previewQuality = previewQuality;
+			this.isFullSent = isFullSent;
+		}
+	}
+
+	// Rule of setTiers
+	private static class Rule {
+		final Pattern pattern;
+		final Tiers tiers;
+
+		Rule(Pattern pattern, Tiers tiers) {
+			this.pattern = pattern;
+			this.tiers = tiers;
+		}
+	}
+
+	// For pictures that don't match any rule
+	private static final Tiers DEFAULT_TIERS = new Tiers(160, 60, 640, 75, true);
+
+	// Checked in order, the first match is used (guarded by 'rules')
+	private static final List<Rule> rules = new ArrayList<Rule>();
+
+	/**
+	 * Use 'tiers' for the pictures whose pic_id matches 'regex' (like "local_\\d+" or "global").
+	 * Rules added before have precedence
+	 */
+	public static void setTiers(String regex, Tiers tiers) {
+		synchronized (rules) { rules.add(new Rule(Pattern.compile(regex), tiers)); }
+	}
+
+	/**
+	 * Remove all the rules (every picture gets the default tiers)
+	 */
+	public static void clearTiers() {
+		synchronized (rules) { rules.clear(); }
+	}
+
+	static Tiers getTiers(String picId) {
+		synchronized (rules) {
+			for (Rule rule : rules) {
+				if (rule.pattern.matcher(picId).matches()) { return rule.tiers; }
+			}
+		}
+		return DEFAULT_TIERS;
+	}
+
+	/**
+	 * Send a picture in tiers. Returns at once (decoding and sending are done by the dispatchers).
+	 * The full picture is written to 'file' in any case (see TelemetryDispatcher.sendPicture)
+	 * @param data JPEG from the camera
+	 * @param file archive copy
+	 * @param picId
+	 * @param shutterTime System.nanoTime() when the picture was taken
+	 */
+	public static void send(final byte[] data, File file, final String picId, final long shutterTime) {
+		final Tiers tiers = getTiers(picId);
+
+		if (tiers.thumbnailSize > 0 || tiers.previewSize > 0) {
+			TelemetryDispatcher.getPreviews().submit(new TelemetryDispatcher.Item() {
+				@Override
+				public boolean send() { return sendPreviews(data, picId, tiers, shutterTime); }
+
+				@Override
+				public void dropped() { }
+			}, shutterTime);
+		}
+
+		if (tiers.isFullSent) {
+			TelemetryDispatcher.sendPicture(data, file, picId, shutterTime);
+		} else {
+			TelemetryDispatcher.archivePicture(data, file);
+		}
+	}
+
+	/**
+	 * Decode once, send the thumbnail and then the preview
+	 * @return false if any of them failed
+	 */
+	private static boolean sendPreviews(byte[] data, String picId, Tiers tiers, long shutterTime) {
+		int largest = Math.max(tiers.thumbnailSize, tiers.previewSize);
+
+		Bitmap bitmap = decode(data, largest);
+		if (bitmap == null) {
+			Log.e(TAG, "Error decoding picture " + picId);
+			return false;
+		}
+
+		boolean res = true;
+
+		if (tiers.thumbnailSize > 0) {
+			Bitmap thumbnail = scale(bitmap, tiers.thumbnailSize);
+			res = HTTPCalls.send_picture(compress(thumbnail, tiers.thumbnailQuality), picId, THUMBNAIL, null);
+			if (thumbnail != bitmap) { thumbnail.recycle(); }
+			Log.d(TAG, "Thumbnail sent: " + res + " (" + (System.nanoTime() - shutterTime) / 1000000 + " ms after the shutter)");
+		}
+
+		if (tiers.previewSize > 0) {
+			Bitmap preview = scale(bitmap, tiers.previewSize);
+			res &= HTTPCalls.send_picture(compress(preview, tiers.previewQuality), picId, PREVIEW, null);
+			if (preview != bitmap) { preview.recycle(); }
+		}
+
+		bitmap.recycle();
+		return res;
+	}
+
+	/**
+	 * Decode with the largest subsampling (power of 2) that keeps the longest side at least 'size'
+	 * @return null if it can't be decoded
+	 */
+	static Bitmap decode(byte[] data, int size) {
+		BitmapFactory.Options options = new BitmapFactory.Options();
+		options.inJustDecodeBounds = true;
+		BitmapFactory.decodeByteArray(data, 0, data.length, options);
+		if (options.outWidth <= 0 || options.outHeight <= 0) { return null; }
+
+		int longest = Math.max(options.outWidth, options.outHeight);
+		int sampleSize = 1;
+		while (longest / (sampleSize * 2) >= size) { sampleSize *= 2; }
+
+		options = new BitmapFactory.Options();
+		options.inSampleSize = sampleSize;
+		options.inPreferredConfig = Bitmap.Config.RGB_565; // Half the memory, no alpha in a JPEG
+		return BitmapFactory.decodeByteArray(data, 0, data.length, options);
+	}
+
+	/**
+	 * Scale so the longest side is 'size' (never up)
+	 * @return the same bitmap if it's small enough
+	 */
+	private static Bitmap scale(Bitmap bitmap, int size) {
+		int width = bitmap.getWidth();
+		int height = bitmap.getHeight();
+		int longest = Math.max(width, height);
+		if (longest <= size) { return bitmap; }
+
+		return Bitmap.createScaledBitmap(bitmap, width * size / longest, height * size / longest, true);
+	}
+
+	private static byte[] compress(Bitmap bitmap, int quality) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		bitmap.compress(Bitmap.CompressFormat.JPEG, quality, out);
+		return out.toByteArray();
+	}
+}
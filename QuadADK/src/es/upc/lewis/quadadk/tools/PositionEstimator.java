@@ -0,0 +1,330 @@
+package es.upc.lewis.quadadk.tools;
+
+/**
+ * Position and velocity from GPS fixes and accelerometer readings (Kalman filter).
+ *
+ * GPS arrives about once per second, the estimate can be read at any time: between fixes
+ * the position moves with the estimated velocity and the measured acceleration.
+ * Each fix is weighted by its accuracy.
+ *
+ * Works in meters east, north and up from the first fix, one filter per axis with
+ * position, velocity and accelerometer bias (phone accelerometers are off by some tenths of m/s^2,
+ * integrated that's meters). Without recent accelerometer readings the velocity is assumed
+ * constant (with more uncertainty). Times are System.nanoTime().
+ */
+public class PositionEstimator {
+	// Axes
+	public static final int EAST  = 0;
+	public static final int NORTH = 1;
+	public static final int UP    = 2;
+	private static final int AXES = 3;
+
+	private static final double EARTH_RADIUS = 6371000; // Meters
+
+	// Uncertainty of the acceleration (m/s^2): measured and assumed constant velocity
+	private static final double ACCELEROMETER_NOISE = 0.5;
+	private static final double MANEUVER_NOISE      = 2.0;
+	// Accelerometer bias: initial uncertainty (m/s^2) and drift (m/s^2 per square root of second)
+	private static final double INITIAL_BIAS = 0.5;
+	private static final double BIAS_DRIFT   = 0.02;
+
+	// Readings older than this are not used (nanoseconds)
+	private static final long ACCELERATION_TIMEOUT = 200000000L;
+
+	// GPS altitude is worse than the horizontal position
+	private static final double VERTICAL_ACCURACY_FACTOR = 1.5;
+
+	// A fix further than this (in standard deviations) is rejected...
+	private static final double REJECT_DISTANCE = 5;
+	// ...unless this many are rejected in a row (then the filter starts again from the fix)
+	private static final int MAX_REJECTED_FIXES = 3;
+
+	/**
+	 * Estimated state at a given time
+	 */
+	public static class Estimate {
+		public long time; // System.nanoTime()
+		public double latitude;
+		public double longitude;
+		public double altitude;
+
+		// Meters per second, by axis (EAST, NORTH, UP)
+		public final double[] velocity = new double[AXES];
+
+		// Covariance of each axis: position (m^2), velocity (m^2/s^2) and position-velocity
+		public final double[] positionVariance = new double[AXES];
+		public final double[] velocityVariance = new double[AXES];
+		public final double[] covariance = new double[AXES];
+
+		/**
+		 * Horizontal accuracy (meters, one standard deviation), comparable to Location.getAccuracy()
+		 */
+		public double getAccuracy() {
+			return Math.sqrt(positionVariance[EAST] + positionVariance[NORTH]);
+		}
+
+		/**
+		 * Horizontal speed (m/s)
+		 */
+		public double getSpeed() {
+			return Math.hypot(velocity[EAST], velocity[NORTH]);
+		}
+
+		/**
+		 * Direction of the horizontal velocity (degrees east of north, 0 to 360)
+		 */
+		public double getBearing() {
+			double bearing = Math.toDegrees(Math.atan2(velocity[EAST], velocity[NORTH]));
+			return (bearing < 0) ? bearing + 360 : bearing;
+		}
+	}
+
+	// Filter state by axis (guarded by 'this')
+	private final double[] position = new double[AXES];
+	private final double[] velocity = new double[AXES];
+	private final double[] bias = new double[AXES];
+	// Covariance of position, velocity and bias by axis (3x3, by rows)
+	private final double[][] covariances = new double[AXES][9];
+	private final double[] predicted = new double[9]; // For getEstimate
+	private final double[] product = new double[9];   // For propagate
+
+	private boolean isInitialized = false;
+	private long time; // Of the state
+
+	// Origin of the local coordinates
+	private double originLatitude;
+	private double originLongitude;
+	private double metersPerDegreeLongitude;
+	private static final double METERS_PER_DEGREE_LATITUDE = EARTH_RADIUS * Math.PI / 180;
+
+	// Last accelerometer reading (world axes, without gravity)
+	private final double[] acceleration = new double[AXES];
+	private long accelerationTime = 0;
+
+	// Statistics
+	private long fixes = 0;
+	private long rejectedFixes = 0;
+	private int rejectedInARow = 0;
+
+	/**
+	 * Add a GPS fix
+	 * @param latitude degrees
+	 * @param longitude degrees
+	 * @param altitude meters
+	 * @param accuracy meters (Location.getAccuracy())
+	 * @param time System.nanoTime() of the fix
+	 */
+	public synchronized void addFix(double latitude, double longitude, double altitude, double accuracy, long time) {
+		if (accuracy <= 0) { accuracy = 1; }
+		double horizontal = accuracy * accuracy;
+		double vertical = horizontal * VERTICAL_ACCURACY_FACTOR * VERTICAL_ACCURACY_FACTOR;
+
+		if (!isInitialized) {
+			originLatitude = latitude;
+			originLongitude = longitude;
+			metersPerDegreeLongitude = METERS_PER_DEGREE_LATITUDE * Math.cos(Math.toRadians(latitude));
+
+			reset(latitude, longitude, altitude, horizontal, vertical);
+			this.time = time;
+			isInitialized = true;
+			fixes++;
+			return;
+		}
+
+		predict(time);
+
+		double east = (longitude - originLongitude) * metersPerDegreeLongitude;
+		double north = (latitude - originLatitude) * METERS_PER_DEGREE_LATITUDE;
+
+		// Too far from what we expected?
+		double innovationEast = east - position[EAST];
+		double innovationNorth = north - position[NORTH];
+		double distance = innovationEast * innovationEast / (covariances[EAST][0] + horizontal)
+				+ innovationNorth * innovationNorth / (covariances[NORTH][0] + horizontal);
+		if (distance > REJECT_DISTANCE * REJECT_DISTANCE) {
+			rejectedFixes++;
+			rejectedInARow++;
+			if (rejectedInARow < MAX_REJECTED_FIXES) { return; }
+
+			// The filter is the one that's wrong (or the GPS jumped for good)
+			reset(latitude, longitude, altitude, horizontal, vertical);
+		}
+		rejectedInARow = 0;
+		fixes++;
+
+		correct(EAST, east, horizontal);
+		correct(NORTH, north, horizontal);
+		correct(UP, altitude, vertical);
+	}
+
+	/**
+	 * Start again from a fix, not knowing the velocity nor the bias
+	 */
+	private void reset(double latitude, double longitude, double altitude, double horizontal, double vertical) {
+		position[EAST] = (longitude - originLongitude) * metersPerDegreeLongitude;
+		position[NORTH] = (latitude - originLatitude) * METERS_PER_DEGREE_LATITUDE;
+		position[UP] = altitude;
+
+		for (int axis = 0; axis < AXES; axis++) {
+			velocity[axis] = 0;
+			bias[axis] = 0;
+
+			double[] covariance = covariances[axis];
+			for (int i = 0; i < 9; i++) { covariance[i] = 0; }
+			covariance[0] = (axis == UP) ? vertical : horizontal;
+			covariance[4] = MANEUVER_NOISE * MANEUVER_NOISE; // We don't know if it's moving
+			covariance[8] = INITIAL_BIAS * INITIAL_BIAS;
+		}
+	}
+
+	/**
+	 * Add an accelerometer reading
+	 * @param east m/s^2, in world axes and without gravity
+	 * @param north
+	 * @param up
+	 * @param time System.nanoTime() of the reading
+	 */
+	public synchronized void addAcceleration(double east, double north, double up, long time) {
+		// Until now, the previous acceleration applies
+		if (isInitialized) { predict(time); }
+
+		acceleration[EAST] = east;
+		acceleration[NORTH] = north;
+		acceleration[UP] = up;
+		accelerationTime = time;
+	}
+
+	/**
+	 * Estimate at a given time (usually now). Doesn't change the filter
+	 * @param time System.nanoTime()
+	 * @param estimate filled with the result
+	 * @return false if there has not been any fix yet
+	 */
+	public synchronized boolean getEstimate(long time, Estimate estimate) {
+		if (!isInitialized) { return false; }
+
+		double dt = Math.max(0, (time - this.time) / 1e9);
+		boolean isAccelerating = isAccelerationValid(time);
+
+		for (int axis = 0; axis < AXES; axis++) {
+			double a = isAccelerating ? acceleration[axis] - bias[axis] : 0;
+			double p = position[axis] + velocity[axis] * dt + 0.5 * a * dt * dt;
+			double v = velocity[axis] + a * dt;
+
+			if (axis == EAST) { estimate.longitude = originLongitude + p / metersPerDegreeLongitude; }
+			else if (axis == NORTH) { estimate.latitude = originLatitude + p / METERS_PER_DEGREE_LATITUDE; }
+			else { estimate.altitude = p; }
+			estimate.velocity[axis] = v;
+
+			propagate(covariances[axis], dt, isAccelerating, predicted);
+			estimate.positionVariance[axis] = predicted[0];
+			estimate.covariance[axis] = predicted[1];
+			estimate.velocityVariance[axis] = predicted[4];
+		}
+		estimate.time = time;
+		return true;
+	}
+
+	/**
+	 * Move the state to 'time'. Call it holding 'this'
+	 */
+	private void predict(long time) {
+		double dt = (time - this.time) / 1e9;
+		if (dt <= 0) { return; } // Readings out of order are applied now
+
+		boolean isAccelerating = isAccelerationValid(time);
+
+		for (int axis = 0; axis < AXES; axis++) {
+			double a = isAccelerating ? acceleration[axis] - bias[axis] : 0;
+			position[axis] += velocity[axis] * dt + 0.5 * a * dt * dt;
+			velocity[axis] += a * dt;
+
+			propagate(covariances[axis], dt, isAccelerating, covariances[axis]);
+		}
+		this.time = time;
+	}
+
+	/**
+	 * Covariance after 'dt' seconds: F P F' + Q. Call it holding 'this'
+	 * @param covariance 3x3
+	 * @param isAccelerating the bias is only used with accelerometer readings
+	 * @param result may be 'covariance'
+	 */
+	private void propagate(double[] covariance, double dt, boolean isAccelerating, double[] result) {
+		// Transition: position += velocity dt - bias dt^2 / 2, velocity -= bias dt
+		double f02 = isAccelerating ? -dt * dt / 2 : 0;
+		double f12 = isAccelerating ? -dt : 0;
+
+		// F P
+		for (int column = 0; column < 3; column++) {
+			double p0 = covariance[column];
+			double p1 = covariance[3 + column];
+			double p2 = covariance[6 + column];
+			product[column]     = p0 + dt * p1 + f02 * p2;
+			product[3 + column] = p1 + f12 * p2;
+			product[6 + column] = p2;
+		}
+
+		// (F P) F'
+		for (int row = 0; row < 3; row++) {
+			double q0 = product[3 * row];
+			double q1 = product[3 * row + 1];
+			double q2 = product[3 * row + 2];
+			result[3 * row]     = q0 + dt * q1 + f02 * q2;
+			result[3 * row + 1] = q1 + f12 * q2;
+			result[3 * row + 2] = q2;
+		}
+
+		// Q: unknown acceleration and bias drift
+		double sigma = isAccelerating ? ACCELEROMETER_NOISE : MANEUVER_NOISE;
+		double noise = sigma * sigma;
+		result[0] += noise * dt * dt * dt * dt / 4;
+		result[1] += noise * dt * dt * dt / 2;
+		result[3] += noise * dt * dt * dt / 2;
+		result[4] += noise * dt * dt;
+		result[8] += BIAS_DRIFT * BIAS_DRIFT * dt;
+	}
+
+	/**
+	 * Kalman update of an axis with a position measurement. Call it holding 'this'
+	 * @param variance of the measurement
+	 */
+	private void correct(int axis, double measurement, double variance) {
+		double[] covariance = covariances[axis];
+		double innovation = measurement - position[axis];
+		double s = covariance[0] + variance;
+
+		// Gain: first column of P divided by S
+		double k0 = covariance[0] / s;
+		double k1 = covariance[3] / s;
+		double k2 = covariance[6] / s;
+
+		position[axis] += k0 * innovation;
+		velocity[axis] += k1 * innovation;
+		bias[axis] += k2 * innovation;
+
+		// P -= K (first row of P)
+		double r0 = covariance[0];
+		double r1 = covariance[1];
+		double r2 = covariance[2];
+		covariance[0] -= k0 * r0; covariance[1] -= k0 * r1; covariance[2] -= k0 * r2;
+		covariance[3] -= k1 * r0; covariance[4] -= k1 * r1; covariance[5] -= k1 * r2;
+		covariance[6] -= k2 * r0; covariance[7] -= k2 * r1; covariance[8] -= k2 * r2;
+	}
+
+	private boolean isAccelerationValid(long time) {
+		return accelerationTime != 0 && time - accelerationTime < ACCELERATION_TIMEOUT;
+	}
+
+	public synchronized boolean isInitialized() { return isInitialized; }
+
+	/**
+	 * Fixes used
+	 */
+	public synchronized long getFixes() { return fixes; }
+
+	/**
+	 * Fixes too far from the estimate (see REJECT_DISTANCE)
+	 */
+	public synchronized long getRejectedFixes() { return rejectedFixes; }
+}
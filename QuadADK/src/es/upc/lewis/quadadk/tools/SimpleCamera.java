@@ -1,11 +1,7 @@
 package es.upc.lewis.quadadk.tools;
 
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
-import java.io.IOException;
 
-import es.upc.lewis.quadadk.comms.SendPictureThread;
 import android.content.Context;
 import android.content.pm.PackageManager;
 import android.hardware.Camera;
@@ -23,6 +19,7 @@ public class SimpleCamera {
 	
 	private String FOLDER_NAME = "QuadADK";
 	private String pictureName;
+	private long shutterTime; // System.nanoTime()
 
 	private Camera mCamera;
 	private CameraPreview mPreview;
@@ -54,6 +51,7 @@ public class SimpleCamera {
 	
 	public void takePicture(String name) {
 		pictureName = name;
+		shutterTime = System.nanoTime();
         mCamera.takePicture(null, null, mPicture);
 	}
 	
@@ -92,25 +90,14 @@ public class SimpleCamera {
 	        	close();
 	        }
 
-	    	// Save picture
-	        File pictureFile = getOutputMediaFile(MEDIA_TYPE_IMAGE);
+	    	File pictureFile = getOutputMediaFile(MEDIA_TYPE_IMAGE);
 	        if (pictureFile == null){
 	            Log.d(TAG, "Error creating media file.");
 	            return;
 	        }
 
-	        try {
-	            FileOutputStream fos = new FileOutputStream(pictureFile);
-	            fos.write(data);
-	            fos.close();
-	        } catch (FileNotFoundException e) {
-	            Log.d(TAG, "File not found: " + e.getMessage());
-	        } catch (IOException e) {
-	            Log.d(TAG, "Error accessing file: " + e.getMessage());
-	        }
-	        
-	        // Send picture to GroundStation
-	        new SendPictureThread(pictureFile, pictureName);
+	        // Send picture to GroundStation from memory (thumbnail and preview first), it's saved to the file at the same time
+	        PictureTiers.send(data, pictureFile, pictureName, shutterTime);
 	    }
 	};
 	